@@ -0,0 +1,269 @@
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
+import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Block allocator using a packed bitmap, one bit per block. A set bit means
+ * that the block is free. Searching is done a whole word (64 blocks) at a time
+ * and starts where the last allocation was made (next fit), so finding a free
+ * block does not get slower when the device fills up from the start.
+ *
+ * The allocator can be shared by threads without locking. Bits are changed
+ * with compare-and-set on their word, so when two threads try to take the
+ * same block only one of them gets it and the other one searches again.
+ * The blocks whose bits changed are remembered until the file system has
+ * written them to its copy of the bitmap on the device.
+ */
+public class BitmapAllocator implements BlockAllocator, Serializable {
+    // Same as before the bitmap was atomic so that old images can be read
+    private static final long serialVersionUID = 4844364548304832836L;
+    // The bitmap is saved as a plain long array, like before
+    private static final ObjectStreamField[] serialPersistentFields = {
+        new ObjectStreamField("words", long[].class),
+        new ObjectStreamField("numBlocks", int.class),
+        new ObjectStreamField("freeCount", int.class),
+        new ObjectStreamField("cursor", int.class)
+    };
+
+    private transient AtomicLongArray words;
+    private transient int numBlocks;
+    private transient AtomicInteger freeCount;
+    // Only a hint where to search, races on it are harmless
+    private transient volatile int cursor;
+    private transient ChangedBlocks changed;
+
+    /**
+     * Creates an allocator where all blocks are free.
+     * @param numBlocks Number of blocks on the device.
+     */
+    public BitmapAllocator(int numBlocks) {
+        this.numBlocks = numBlocks;
+        words = new AtomicLongArray((numBlocks + 63) >>> 6);
+        for (int i = 0; i < numBlocks >>> 6; i++) {
+            words.set(i, -1L);
+        }
+        // Only the bits for existing blocks may be set in the last word
+        if ((numBlocks & 63) != 0) {
+            words.set(words.length() - 1, (1L << (numBlocks & 63)) - 1);
+        }
+        freeCount = new AtomicInteger(numBlocks);
+        cursor = 0;
+        changed = new ChangedBlocks(numBlocks);
+    }
+
+    public int findFree() {
+        int result = -1;
+        if (freeCount.get() > 0) {
+            int start = cursor;
+            int w = start >>> 6;
+            // Ignore the blocks before the cursor in the first word. They are
+            // checked last, when the search has wrapped around.
+            long word = words.get(w) & (-1L << (start & 63));
+            int n = 0;
+            while (word == 0 && n < words.length()) {
+                w++;
+                if (w == words.length()) {
+                    w = 0;
+                }
+                word = words.get(w);
+                n++;
+            }
+            if (word != 0) {
+                result = (w << 6) + Long.numberOfTrailingZeros(word);
+            }
+        }
+        return result;
+    }
+
+    public int getFreeRunLength(int blockId, int maxLength) {
+        int length = 0;
+        int b = blockId;
+        boolean done = false;
+        while (!done && length < maxLength && b < numBlocks) {
+            // Count the set bits in a row from b to the end of its word. The
+            // shift fills with zeros so the count stops at the word boundary.
+            long word = words.get(b >>> 6) >>> (b & 63);
+            int run = Long.numberOfTrailingZeros(~word);
+            int bitsLeftInWord = 64 - (b & 63);
+            if (run > bitsLeftInWord) {
+                run = bitsLeftInWord;
+            }
+            length += run;
+            b += run;
+            done = run < bitsLeftInWord;
+        }
+        return Math.min(length, maxLength);
+    }
+
+    public int allocate() {
+        int result = -1;
+        boolean done = false;
+        while (!done) {
+            result = findFree();
+            // Someone else may take the block between finding and claiming it
+            done = result == -1 || allocateRun(result, 1) == 1;
+        }
+        return result;
+    }
+
+    public BlockRun allocate(int count) {
+        BlockRun result = null;
+        boolean done = count <= 0;
+        while (!done) {
+            int start = findFree();
+            if (start == -1) {
+                done = true;
+            } else {
+                int length = allocateRun(start, count);
+                if (length > 0) {
+                    result = new BlockRun(start, length);
+                    done = true;
+                }
+            }
+        }
+        return result;
+    }
+
+    public int allocateRun(int blockId, int maxLength) {
+        int length = 0;
+        int b = blockId;
+        boolean done = false;
+        while (!done && length < maxLength && b < numBlocks) {
+            // Claim the free blocks in a row from b to the end of its word
+            // with one compare-and-set. Start over on the word if it changed.
+            int w = b >>> 6;
+            long word = words.get(w);
+            int run = Long.numberOfTrailingZeros(~(word >>> (b & 63)));
+            int bitsLeftInWord = 64 - (b & 63);
+            run = Math.min(run, Math.min(bitsLeftInWord, maxLength - length));
+            if (run == 0) {
+                done = true;
+            } else {
+                long mask = (run == 64 ? -1L : (1L << run) - 1) << (b & 63);
+                if (words.compareAndSet(w, word, word & ~mask)) {
+                    freeCount.addAndGet(-run);
+                    changed.mark(b, b + run);
+                    length += run;
+                    b += run;
+                    done = run < bitsLeftInWord;
+                }
+            }
+        }
+        if (length > 0) {
+            // Continue searching after the last used block
+            cursor = b < numBlocks ? b : 0;
+        }
+        return length;
+    }
+
+    public void free(BlockRun run) {
+        int b = run.getStart();
+        while (b < run.getEnd()) {
+            int w = b >>> 6;
+            int bits = Math.min(64 - (b & 63), run.getEnd() - b);
+            long mask = (bits == 64 ? -1L : (1L << bits) - 1) << (b & 63);
+            long word = words.get(w);
+            if (words.compareAndSet(w, word, word | mask)) {
+                // Only the blocks that were in use count
+                int freed = Long.bitCount(~word & mask);
+                if (freed > 0) {
+                    freeCount.addAndGet(freed);
+                    changed.mark(b, b + bits);
+                }
+                b += bits;
+            }
+        }
+    }
+
+    public void markUsed(int blockId) {
+        long mask = 1L << (blockId & 63);
+        int w = blockId >>> 6;
+        long word = words.get(w);
+        while ((word & mask) != 0 && !words.compareAndSet(w, word, word & ~mask)) {
+            word = words.get(w);
+        }
+        if ((word & mask) != 0) {
+            freeCount.decrementAndGet();
+            changed.mark(blockId);
+        }
+
+        // Continue searching after the last used block
+        int next = blockId + 1;
+        cursor = next < numBlocks ? next : 0;
+    }
+
+    public void markFree(int blockId) {
+        long mask = 1L << (blockId & 63);
+        int w = blockId >>> 6;
+        long word = words.get(w);
+        while ((word & mask) == 0 && !words.compareAndSet(w, word, word | mask)) {
+            word = words.get(w);
+        }
+        if ((word & mask) == 0) {
+            freeCount.incrementAndGet();
+            changed.mark(blockId);
+        }
+    }
+
+    public boolean isFree(int blockId) {
+        return (words.get(blockId >>> 6) & (1L << (blockId & 63))) != 0;
+    }
+
+    public int getFreeCount() {
+        return freeCount.get();
+    }
+
+    public int getNumBlocks() {
+        return numBlocks;
+    }
+
+    public int getCursor() {
+        return cursor;
+    }
+
+    public void getUsed(int start, int end, byte[] dst) {
+        for (int b = start; b < end; b += 8) {
+            // A byte never crosses a word since start is a multiple of 8
+            int used = (int) ~(words.get(b >>> 6) >>> (b & 63)) & 0xFF;
+            if (end - b < 8) {
+                used &= (1 << (end - b)) - 1;
+            }
+            dst[(b - start) >>> 3] = (byte) used;
+        }
+    }
+
+    public int nextChanged(int blockId) {
+        return changed.next(blockId);
+    }
+
+    public void clearChanged(int start, int end) {
+        changed.clear(start, end);
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        long[] array = new long[words.length()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = words.get(i);
+        }
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("words", array);
+        fields.put("numBlocks", numBlocks);
+        fields.put("freeCount", freeCount.get());
+        fields.put("cursor", cursor);
+        out.writeFields();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        long[] array = (long[]) fields.get("words", null);
+        words = new AtomicLongArray(array);
+        numBlocks = fields.get("numBlocks", 0);
+        freeCount = new AtomicInteger(fields.get("freeCount", 0));
+        cursor = fields.get("cursor", 0);
+        changed = new ChangedBlocks(numBlocks);
+    }
+}
@@ -0,0 +1,117 @@
+/**
+ * Keeps track of which blocks on the block device are free. The file system
+ * only talks to this interface so that the way free space is stored can be
+ * changed without touching the rest of the code.
+ *
+ * Implementations have to be safe to use from several threads. allocate(),
+ * allocate(int) and allocateRun() never give the same block to two callers.
+ */
+public interface BlockAllocator {
+
+    /**
+     * Get an unused block. The block will not be reserved, the caller has to
+     * use markUsed() when the block actually gets written to.
+     * @return The ID of a free block or -1 if the device is full.
+     */
+    public int findFree();
+
+    /**
+     * Count how many free blocks there are in a row, starting at a block. 
+     * Used to hand out contiguous runs of blocks.
+     * @param blockId First block of the run.
+     * @param maxLength Stop counting when this many blocks have been found.
+     * @return Length of the run, 0 if blockId is in use.
+     */
+    public int getFreeRunLength(int blockId, int maxLength);
+
+    /**
+     * Find a free block and mark it as used, as one atomic step. Two threads 
+     * never get the same block.
+     * @return The ID of the block or -1 if the device is full.
+     */
+    public int allocate();
+
+    /**
+     * Find free blocks in a row and mark them as used. The run starts at the
+     * first free block found and ends at the first used block, so it can be
+     * shorter than asked for.
+     * @param count Take at most this many blocks.
+     * @return The blocks taken, or null if the device is full.
+     */
+    public BlockRun allocate(int count);
+
+    /**
+     * Give back blocks, for example a run from allocate(int) that wasn't 
+     * needed.
+     * @param run The blocks to mark as free.
+     */
+    public void free(BlockRun run);
+
+    /**
+     * Mark the free blocks in a row from a block as used, as one atomic step.
+     * @param blockId First block of the run.
+     * @param maxLength Take at most this many blocks.
+     * @return Number of blocks taken, 0 if blockId is in use.
+     */
+    public int allocateRun(int blockId, int maxLength);
+
+    /**
+     * Mark a block as in use.
+     * @param blockId Which block.
+     */
+    public void markUsed(int blockId);
+
+    /**
+     * Mark a block as free.
+     * @param blockId Which block.
+     */
+    public void markFree(int blockId);
+
+    /**
+     * Check if a block is free.
+     * @param blockId Which block.
+     * @return true if the block is free.
+     */
+    public boolean isFree(int blockId);
+
+    /**
+     * @return Number of free blocks left on the device.
+     */
+    public int getFreeCount();
+
+    /**
+     * @return Number of blocks handled by the allocator.
+     */
+    public int getNumBlocks();
+
+    /**
+     * @return The block where the next search for a free block starts.
+     */
+    public int getCursor();
+
+    /**
+     * Copy which blocks are used to a bitmap with a set bit for each used
+     * block, 8 blocks per byte, the lowest bit first. Used to save the 
+     * allocator on the device.
+     * @param start First block, a multiple of 8.
+     * @param end The block after the last one.
+     * @param dst Gets the bits from its first byte on.
+     */
+    public void getUsed(int start, int end, byte[] dst);
+
+    /**
+     * Find a block that was taken or freed since clearChanged() was last 
+     * called for it, so that a copy of the free blocks on the device only 
+     * has to be written where it changed.
+     * @param blockId Where to start looking.
+     * @return The first changed block at or after blockId, or -1.
+     */
+    public int nextChanged(int blockId);
+
+    /**
+     * Forget that blocks changed, before they are saved.
+     * @param start First block.
+     * @param end The block after the last one.
+     */
+    public void clearChanged(int start, int end);
+}
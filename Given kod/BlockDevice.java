@@ -0,0 +1,118 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The storage under the file system: a number of fixed size blocks. The file
+ * system only reads and writes blocks through this interface so that the
+ * blocks can live on the heap or in a file on a real disk.
+ */
+public interface BlockDevice {
+
+    /**
+     * @return Number of blocks on the device.
+     */
+    public int getNumBlocks();
+
+    /**
+     * @return Size of a block in bytes.
+     */
+    public int getBlockSize();
+
+    /**
+     * Copy bytes out of a block.
+     * @param blockId Which block.
+     * @param offset Where in the block to start.
+     * @param dst Where to put the bytes.
+     * @param off Where in dst to put the bytes.
+     * @param len Number of bytes. offset + len may not pass the block end.
+     */
+    public void read(int blockId, int offset, byte[] dst, int off, int len);
+
+    /**
+     * Copy whole blocks in a row out of the device, in one read if the 
+     * device can do that.
+     * @param blockId First block.
+     * @param count Number of blocks.
+     * @param dst Where to put the blocks, one after the other.
+     * @param off Where in dst to put the first block.
+     */
+    public void readBlocks(int blockId, int count, byte[] dst, int off);
+
+    /**
+     * Get a part of a block without copying it, to write it to a channel. The
+     * buffer may share memory with the device, so it is only valid as long as
+     * the block isn't changed.
+     * @param blockId Which block.
+     * @param offset Where in the block to start.
+     * @param len Number of bytes. offset + len may not pass the block end.
+     * @return A read-only buffer with the bytes between its position and 
+     * limit.
+     */
+    public ByteBuffer view(int blockId, int offset, int len);
+
+    /**
+     * Copy bytes into a block.
+     * @param blockId Which block.
+     * @param offset Where in the block to start.
+     * @param src The bytes to write.
+     * @param off Where in src the bytes start.
+     * @param len Number of bytes. offset + len may not pass the block end.
+     */
+    public void write(int blockId, int offset, byte[] src, int off, int len);
+
+    /**
+     * Copy whole blocks in a row into the device, in one write if the device
+     * can do that.
+     * @param blockId First block.
+     * @param count Number of blocks.
+     * @param src The blocks, one after the other.
+     * @param off Where in src the first block starts.
+     */
+    public void writeBlocks(int blockId, int count, byte[] src, int off);
+
+    /**
+     * Set a part of a block to zeros.
+     * @param blockId Which block.
+     * @param offset Where in the block to start.
+     * @param len Number of bytes.
+     */
+    public void clear(int blockId, int offset, int len);
+
+    /**
+     * Read a big-endian int from a block.
+     * @param blockId Which block.
+     * @param offset Where in the block the int is.
+     * @return The int.
+     */
+    public int getInt(int blockId, int offset);
+
+    /**
+     * Write a big-endian int to a block.
+     * @param blockId Which block.
+     * @param offset Where in the block to put the int.
+     * @param value The int.
+     */
+    public void putInt(int blockId, int offset, int value);
+
+    /**
+     * Change the number and size of the blocks. The content of the blocks is
+     * undefined afterwards, the file system formats the device.
+     * @param numBlocks Number of blocks.
+     * @param blockSize Size of a block in bytes.
+     * @throws IOException If the storage can't be resized.
+     */
+    public void resize(int numBlocks, int blockSize) throws IOException;
+
+    /**
+     * Make sure everything written so far is stored. Does nothing for devices
+     * that don't store anything.
+     * @throws IOException If the storage fails.
+     */
+    public void flush() throws IOException;
+
+    /**
+     * Flush and release the device. It can't be used after this.
+     * @throws IOException If the storage fails.
+     */
+    public void close() throws IOException;
+}
@@ -0,0 +1,32 @@
+/**
+ * Blocks in a row on the block device, handed out by
+ * BlockAllocator.allocate(int).
+ */
+public class BlockRun {
+    private final int start;
+    private final int length;
+
+    /**
+     * @param start First block of the run.
+     * @param length Number of blocks.
+     */
+    public BlockRun(int start, int length) {
+        this.start = start;
+        this.length = length;
+    }
+
+    public int getStart() {
+        return start;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * @return The block after the last block of the run.
+     */
+    public int getEnd() {
+        return start + length;
+    }
+}
@@ -0,0 +1,628 @@
+import java.io.IOException;
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Write-back cache of blocks in front of a block device. A fixed number of
+ * buffers hold recently used blocks. Writes only change the buffer and mark
+ * it dirty, and a background thread writes the dirty buffers to the device.
+ * Dirty blocks next to each other are written with one writeBlocks() call.
+ *
+ * When a block that isn't cached is needed, a buffer is taken with the CLOCK
+ * algorithm: a hand goes around the buffers, buffers used since the hand last
+ * passed get a second chance, and pinned buffers are skipped. A dirty buffer
+ * taken this way is written first.
+ *
+ * flush() writes all dirty buffers and then flushes the device, so a journal
+ * on top of the cache can rely on it like on the device itself. Between
+ * flushes the blocks reach the device in any order, as on a real disk.
+ *
+ * Blocks can be read ahead with prefetch(). The blocks get their buffers 
+ * right away and are read without holding the lock, a thread that needs one
+ * before it is read waits for it.
+ *
+ * All methods are synchronized. Reading a block that isn't cached is done
+ * while holding the lock, except for prefetch(). The background thread 
+ * writes without it.
+ */
+public class BufferCache implements BlockDevice, Serializable {
+    private static final long serialVersionUID = 1215341749959860416L;
+    /** Number of buffers used when no size is given. */
+    public static final int DEFAULT_SIZE = 4096;
+    /** Longest time a block stays dirty, in ms, unless the device fails. */
+    public static final long FLUSH_DELAY = 1000;
+    /** Most blocks written to the device in one call. */
+    public static final int MAX_RUN = 64;
+
+    private BlockDevice device;
+    private int blockSize;
+    private int size;
+    // Per buffer: the block it holds or -1, its content and state
+    private int[] bufferBlocks;
+    private byte[][] buffers;
+    private int[] pins;
+    private boolean[] referenced;
+    private boolean[] dirty;
+    // Being read by prefetch()
+    private boolean[] loading;
+    // Changes when the buffers are replaced, a prefetch in progress then 
+    // drops its block
+    private int generation;
+    // Block id to buffer
+    private HashMap<Integer, Integer> cached = new HashMap<Integer, Integer>();
+    private int hand;
+    private int numDirty;
+    private boolean closed;
+    // Only one thread writes dirty buffers back at a time, so an old copy of
+    // a block is never written after a newer one
+    private final ReentrantLock writeBackLock = new ReentrantLock();
+    private Thread flusher;
+    private long numHits;
+    private long numMisses;
+    private long numPrefetched;
+    private long numRuns;
+    private long numWrittenBlocks;
+    private long writeTime;
+    private long maxWriteTime;
+
+    /**
+     * @param device The device to cache.
+     * @param size Number of buffers, at least MAX_RUN + 1.
+     */
+    public BufferCache(BlockDevice device, int size) {
+        this.device = device;
+        this.size = Math.max(size, MAX_RUN + 1);
+        createBuffers();
+        flusher = new Thread(new Runnable() {
+            public void run() {
+                flushLoop();
+            }
+        }, "BufferCache flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Make all buffers empty, for the current block size.
+     */
+    private void createBuffers() {
+        blockSize = device.getBlockSize();
+        bufferBlocks = new int[size];
+        Arrays.fill(bufferBlocks, -1);
+        buffers = new byte[size][blockSize];
+        pins = new int[size];
+        referenced = new boolean[size];
+        dirty = new boolean[size];
+        loading = new boolean[size];
+        generation++;
+        cached.clear();
+        hand = 0;
+        numDirty = 0;
+    }
+
+    /**
+     * Write back dirty buffers until the cache is closed. Wakes up when half
+     * of the buffers are dirty or FLUSH_DELAY has passed, after a failed 
+     * write only when FLUSH_DELAY has passed.
+     */
+    private void flushLoop() {
+        boolean done = false;
+        boolean failed = false;
+        while (!done) {
+            synchronized (this) {
+                if (!closed && (failed || numDirty < size / 2)) {
+                    try {
+                        wait(FLUSH_DELAY);
+                    } catch (InterruptedException ex) {
+                        closed = true;
+                    }
+                }
+                done = closed;
+            }
+            if (!done) {
+                try {
+                    writeBack();
+                    failed = false;
+                } catch (IllegalStateException ex) {
+                    // The blocks stay dirty, flush() reports the error
+                    failed = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Find the buffer holding a block, reading the block if it isn't cached.
+     * @param blockId Which block.
+     * @param read false if the caller overwrites the whole block anyway.
+     * @return The buffer.
+     */
+    private int getBuffer(int blockId, boolean read) {
+        Integer buffer = cached.get(blockId);
+        boolean hit = true;
+        boolean interrupted = false;
+        while (buffer == null || loading[buffer]) {
+            if (buffer == null) {
+                // Another thread may cache the block while this one waits 
+                // for a buffer, the buffer is left empty then
+                int taken = takeBuffer();
+                buffer = cached.get(blockId);
+                if (buffer == null) {
+                    if (read) {
+                        device.read(blockId, 0, buffers[taken], 0, blockSize);
+                    }
+                    bufferBlocks[taken] = blockId;
+                    cached.put(blockId, taken);
+                    buffer = taken;
+                    hit = false;
+                }
+            } else {
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                }
+                buffer = cached.get(blockId);
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (hit) {
+            numHits++;
+        } else {
+            numMisses++;
+        }
+        referenced[buffer] = true;
+        return buffer;
+    }
+
+    /**
+     * Get an empty buffer, taking one from another block with CLOCK if needed.
+     * Waits if all buffers are pinned.
+     */
+    private int takeBuffer() {
+        int result = -1;
+        int passed = 0;
+        boolean interrupted = false;
+        while (result == -1) {
+            int b = hand;
+            hand = (hand + 1) % size;
+            if (bufferBlocks[b] == -1) {
+                result = b;
+            } else if (pins[b] == 0) {
+                if (referenced[b]) {
+                    referenced[b] = false;
+                } else {
+                    result = b;
+                }
+            }
+            passed++;
+            // Twice around clears all references, so everything is pinned
+            if (result == -1 && passed >= 2 * size) {
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                }
+                passed = 0;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (bufferBlocks[result] != -1) {
+            if (dirty[result]) {
+                device.write(bufferBlocks[result], 0, buffers[result], 0, blockSize);
+                setDirty(result, false);
+            }
+            cached.remove(bufferBlocks[result]);
+            bufferBlocks[result] = -1;
+        }
+        return result;
+    }
+
+    private void setDirty(int buffer, boolean value) {
+        if (dirty[buffer] != value) {
+            dirty[buffer] = value;
+            if (value) {
+                numDirty++;
+                if (numDirty == size / 2) {
+                    notifyAll();
+                }
+            } else {
+                numDirty--;
+            }
+        }
+    }
+
+    /**
+     * Write all dirty buffers to the device, as few writes as possible.
+     */
+    private void writeBack() {
+        writeBackLock.lock();
+        try {
+            int[] blockIds;
+            synchronized (this) {
+                blockIds = new int[numDirty];
+                int n = 0;
+                for (int b = 0; b < size && n < blockIds.length; b++) {
+                    if (dirty[b]) {
+                        blockIds[n++] = bufferBlocks[b];
+                    }
+                }
+            }
+            Arrays.sort(blockIds);
+            byte[] run = blockIds.length > 0 ? new byte[MAX_RUN * blockSize] : null;
+            int i = 0;
+            while (i < blockIds.length) {
+                int start = blockIds[i];
+                int count = 0;
+                synchronized (this) {
+                    // A block may have been written when its buffer was taken
+                    // since the ids were collected, the run ends there
+                    boolean done = false;
+                    while (!done && count < MAX_RUN && i + count < blockIds.length
+                            && blockIds[i + count] == start + count) {
+                        Integer buffer = cached.get(start + count);
+                        if (buffer != null && dirty[buffer]) {
+                            System.arraycopy(buffers[buffer], 0, run, count * blockSize, blockSize);
+                            setDirty(buffer, false);
+                            pins[buffer]++;
+                            count++;
+                        } else {
+                            done = true;
+                        }
+                    }
+                }
+                if (count > 0) {
+                    writeRun(start, count, run);
+                    i += count;
+                } else {
+                    i++;
+                }
+            }
+        } finally {
+            writeBackLock.unlock();
+        }
+    }
+
+    /**
+     * Write pinned blocks to the device without holding the lock, and unpin
+     * them. They are dirty again if the write fails.
+     */
+    private void writeRun(int start, int count, byte[] run) {
+        boolean written = false;
+        long time = System.nanoTime();
+        try {
+            device.writeBlocks(start, count, run, 0);
+            written = true;
+        } finally {
+            time = System.nanoTime() - time;
+            synchronized (this) {
+                for (int b = start; b < start + count; b++) {
+                    int buffer = cached.get(b);
+                    pins[buffer]--;
+                    if (!written) {
+                        setDirty(buffer, true);
+                    }
+                }
+                if (written) {
+                    numRuns++;
+                    numWrittenBlocks += count;
+                    writeTime += time;
+                    maxWriteTime = Math.max(maxWriteTime, time);
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Read blocks in a row into the cache, for reading ahead. Blocks that are
+     * cached already are skipped and the rest is read in runs, each with one
+     * readBlocks() call, without holding the lock. At most MAX_RUN blocks are
+     * read at a time. Doesn't count as hits or misses.
+     * @param blockId First block.
+     * @param count Number of blocks.
+     * @return Number of blocks read.
+     */
+    public int prefetch(int blockId, int count) {
+        int result = 0;
+        int[] run = new int[MAX_RUN];
+        byte[] data = null;
+        int b = blockId;
+        boolean stop = false;
+        while (b < blockId + count && !stop) {
+            int start;
+            int n = 0;
+            int gen;
+            synchronized (this) {
+                gen = generation;
+                while (b < blockId + count && cached.containsKey(b)) {
+                    b++;
+                }
+                start = b;
+                // Take buffers for the blocks up to the next cached one
+                while (b < blockId + count && n < MAX_RUN && !cached.containsKey(b) && !stop) {
+                    int buffer = takeBuffer();
+                    // Taking a buffer may wait. Meanwhile the block may have 
+                    // been cached, or all buffers replaced.
+                    stop = gen != generation;
+                    if (!stop && !cached.containsKey(b)) {
+                        bufferBlocks[buffer] = b;
+                        cached.put(b, buffer);
+                        // Used soon, keep it one round of the hand
+                        referenced[buffer] = true;
+                        pins[buffer]++;
+                        loading[buffer] = true;
+                        run[n] = buffer;
+                        n++;
+                        b++;
+                    }
+                }
+            }
+            if (n > 0) {
+                if (data == null) {
+                    data = new byte[MAX_RUN * blockSize];
+                }
+                boolean done = false;
+                try {
+                    device.readBlocks(start, n, data, 0);
+                    done = true;
+                } finally {
+                    synchronized (this) {
+                        if (gen == generation) {
+                            for (int i = 0; i < n; i++) {
+                                if (done) {
+                                    System.arraycopy(data, i * blockSize, buffers[run[i]], 0, blockSize);
+                                } else {
+                                    cached.remove(start + i);
+                                    bufferBlocks[run[i]] = -1;
+                                }
+                                loading[run[i]] = false;
+                                pins[run[i]]--;
+                            }
+                            if (done) {
+                                numPrefetched += n;
+                            }
+                        }
+                        notifyAll();
+                    }
+                }
+                result += n;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param blockId Which block.
+     * @return true if the block is in the cache or being read into it.
+     */
+    public synchronized boolean isCached(int blockId) {
+        return cached.containsKey(blockId);
+    }
+
+    /**
+     * Keep a block in the cache until unpin() is called, reading it if
+     * needed. A block can be pinned more than once.
+     * @param blockId Which block.
+     */
+    public synchronized void pin(int blockId) {
+        pins[getBuffer(blockId, true)]++;
+    }
+
+    /**
+     * Undo one pin() of a block.
+     * @param blockId Which block.
+     */
+    public synchronized void unpin(int blockId) {
+        Integer buffer = cached.get(blockId);
+        if (buffer != null && pins[buffer] > 0) {
+            pins[buffer]--;
+            notifyAll();
+        }
+    }
+
+    public int getNumBlocks() {
+        return device.getNumBlocks();
+    }
+
+    public synchronized int getBlockSize() {
+        return blockSize;
+    }
+
+    public synchronized void read(int blockId, int offset, byte[] dst, int off, int len) {
+        System.arraycopy(buffers[getBuffer(blockId, true)], offset, dst, off, len);
+    }
+
+    public synchronized void readBlocks(int blockId, int count, byte[] dst, int off) {
+        for (int i = 0; i < count; i++) {
+            System.arraycopy(buffers[getBuffer(blockId + i, true)], 0, dst, off + i * blockSize, blockSize);
+        }
+    }
+
+    /**
+     * The bytes are copied, the buffer can be given to another block as soon
+     * as the lock is released.
+     */
+    public synchronized ByteBuffer view(int blockId, int offset, int len) {
+        byte[] copy = new byte[len];
+        System.arraycopy(buffers[getBuffer(blockId, true)], offset, copy, 0, len);
+        return ByteBuffer.wrap(copy).asReadOnlyBuffer();
+    }
+
+    public synchronized void write(int blockId, int offset, byte[] src, int off, int len) {
+        int buffer = getBuffer(blockId, offset != 0 || len != blockSize);
+        System.arraycopy(src, off, buffers[buffer], offset, len);
+        setDirty(buffer, true);
+    }
+
+    public synchronized void writeBlocks(int blockId, int count, byte[] src, int off) {
+        for (int i = 0; i < count; i++) {
+            int buffer = getBuffer(blockId + i, false);
+            System.arraycopy(src, off + i * blockSize, buffers[buffer], 0, blockSize);
+            setDirty(buffer, true);
+        }
+    }
+
+    public synchronized void clear(int blockId, int offset, int len) {
+        int buffer = getBuffer(blockId, offset != 0 || len != blockSize);
+        Arrays.fill(buffers[buffer], offset, offset + len, (byte) 0);
+        setDirty(buffer, true);
+    }
+
+    public synchronized int getInt(int blockId, int offset) {
+        return FileSystem.byteArrayToInt(buffers[getBuffer(blockId, true)], offset);
+    }
+
+    public synchronized void putInt(int blockId, int offset, int value) {
+        int buffer = getBuffer(blockId, true);
+        FileSystem.intToByteArray(value, buffers[buffer], offset);
+        setDirty(buffer, true);
+    }
+
+    /**
+     * Cached blocks are thrown away, dirty or not, the file system formats
+     * the device after resizing it.
+     */
+    public void resize(int numBlocks, int blockSize) throws IOException {
+        writeBackLock.lock();
+        try {
+            synchronized (this) {
+                device.resize(numBlocks, blockSize);
+                createBuffers();
+            }
+        } finally {
+            writeBackLock.unlock();
+        }
+    }
+
+    /**
+     * Write all dirty blocks and flush the device.
+     * @throws IOException If the device fails.
+     */
+    public void flush() throws IOException {
+        try {
+            writeBack();
+        } catch (IllegalStateException ex) {
+            throw new IOException("Writing cached blocks failed", ex);
+        }
+        device.flush();
+    }
+
+    /**
+     * Stop the background thread, write everything and close the device.
+     */
+    public void close() throws IOException {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+        device.close();
+    }
+
+    /**
+     * @return Number of buffers.
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * @return Number of dirty buffers.
+     */
+    public synchronized int getNumDirty() {
+        return numDirty;
+    }
+
+    /**
+     * @return Number of block accesses served from the cache.
+     */
+    public synchronized long getNumHits() {
+        return numHits;
+    }
+
+    /**
+     * @return Number of block accesses that needed a buffer for the block.
+     */
+    public synchronized long getNumMisses() {
+        return numMisses;
+    }
+
+    /**
+     * @return Number of blocks read by prefetch().
+     */
+    public synchronized long getNumPrefetched() {
+        return numPrefetched;
+    }
+
+    /**
+     * @return Share of the block accesses served from the cache, 0 to 1.
+     */
+    public synchronized double getHitRatio() {
+        long total = numHits + numMisses;
+        return total == 0 ? 0 : (double) numHits / total;
+    }
+
+    /**
+     * @return Number of writes made by the write back, each of one or more
+     * blocks in a row.
+     */
+    public synchronized long getNumRuns() {
+        return numRuns;
+    }
+
+    /**
+     * @return Number of blocks written by the write back.
+     */
+    public synchronized long getNumWrittenBlocks() {
+        return numWrittenBlocks;
+    }
+
+    /**
+     * @return Average time of a write made by the write back, in ms.
+     */
+    public synchronized double getAverageWriteTime() {
+        return numRuns == 0 ? 0 : writeTime / 1e6 / numRuns;
+    }
+
+    /**
+     * @return Longest time of a write made by the write back, in ms.
+     */
+    public synchronized double getMaxWriteTime() {
+        return maxWriteTime / 1e6;
+    }
+
+    /**
+     * Set the hit and write counters to zero.
+     */
+    public synchronized void resetStatistics() {
+        numHits = 0;
+        numMisses = 0;
+        numPrefetched = 0;
+        numRuns = 0;
+        numWrittenBlocks = 0;
+        writeTime = 0;
+        maxWriteTime = 0;
+    }
+
+    /**
+     * The buffers and the thread can't be serialized. A file system saved
+     * with Java serialization gets a copy of the blocks on the heap instead.
+     */
+    private Object writeReplace() throws ObjectStreamException {
+        return HeapBlockDevice.copyOf(this);
+    }
+}
@@ -0,0 +1,81 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Remembers which blocks changed since they were last saved, one bit per
+ * block. Used by the allocator and the reference counts, so that the file
+ * system only writes the parts of their copy on the device that changed.
+ *
+ * Blocks can be marked from several threads without locking. The bits are
+ * set with compare-and-set on their word, like the bitmap of the allocator.
+ */
+public class ChangedBlocks {
+    private final AtomicLongArray words;
+
+    /**
+     * Creates a set where no block has changed.
+     * @param numBlocks Number of blocks on the device.
+     */
+    public ChangedBlocks(int numBlocks) {
+        words = new AtomicLongArray((numBlocks + 63) >>> 6);
+    }
+
+    /**
+     * Mark a block as changed.
+     * @param blockId Which block.
+     */
+    public void mark(int blockId) {
+        update(blockId, blockId + 1, true);
+    }
+
+    /**
+     * Mark blocks in a row as changed.
+     * @param start First block.
+     * @param end The block after the last one.
+     */
+    public void mark(int start, int end) {
+        update(start, end, true);
+    }
+
+    /**
+     * Forget that blocks changed. Done before they are saved, so that a
+     * change made while saving is saved again the next time.
+     * @param start First block.
+     * @param end The block after the last one.
+     */
+    public void clear(int start, int end) {
+        update(start, end, false);
+    }
+
+    private void update(int start, int end, boolean set) {
+        int b = start;
+        while (b < end) {
+            int w = b >>> 6;
+            int bits = Math.min(64 - (b & 63), end - b);
+            long mask = (bits == 64 ? -1L : (1L << bits) - 1) << (b & 63);
+            long word = words.get(w);
+            long changed = set ? word | mask : word & ~mask;
+            if (changed == word || words.compareAndSet(w, word, changed)) {
+                b += bits;
+            }
+        }
+    }
+
+    /**
+     * @param blockId Where to start looking.
+     * @return The first changed block at or after blockId, or -1.
+     */
+    public int next(int blockId) {
+        int result = -1;
+        int w = blockId >>> 6;
+        if (w < words.length()) {
+            long bits = words.get(w) & (-1L << blockId);
+            while (bits == 0 && ++w < words.length()) {
+                bits = words.get(w);
+            }
+            if (bits != 0) {
+                result = (w << 6) + Long.numberOfTrailingZeros(bits);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,185 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of folder entries used when resolving paths, so that a folder doesn't
+ * have to be loaded from its blocks every time a name in it is looked up. Maps
+ * (folder id, name) to the id and type of the file. Names that were looked up
+ * but don't exist are cached as well (negative entries). The least recently
+ * used entry is dropped when the cache is full.
+ *
+ * The file system has to keep the cache up to date whenever it changes a
+ * folder. The methods are synchronized, even lookups change the LRU order.
+ */
+public class DentryCache {
+
+    /**
+     * A cached folder entry.
+     */
+    public static class Dentry {
+        private int inodeId;
+        private byte type;
+
+        public Dentry(int inodeId, byte type) {
+            this.inodeId = inodeId;
+            this.type = type;
+        }
+
+        /**
+         * @return Id of the file, or -1 if there is no file with the name.
+         */
+        public int getInodeId() {
+            return inodeId;
+        }
+
+        /**
+         * @return Inode.TYPE_FILE or Inode.TYPE_FOLDER.
+         */
+        public byte getType() {
+            return type;
+        }
+    }
+
+    private static class Key {
+        private int folderId;
+        private String name;
+
+        public Key(int folderId, String name) {
+            this.folderId = folderId;
+            this.name = name;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            boolean result = false;
+            if (obj instanceof Key) {
+                Key other = (Key) obj;
+                result = folderId == other.folderId && name.equals(other.name);
+            }
+            return result;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * folderId + name.hashCode();
+        }
+    }
+
+    private static final Dentry NEGATIVE = new Dentry(-1, Inode.TYPE_FILE);
+
+    private final int maxEntries;
+    private final LinkedHashMap<Key, Dentry> entries;
+    private long hits;
+    private long misses;
+
+    /**
+     * @param maxEntries How many entries to keep at most.
+     */
+    public DentryCache(final int maxEntries) {
+        this.maxEntries = maxEntries;
+        // Access order makes the map iterate from least recently used
+        entries = new LinkedHashMap<Key, Dentry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Dentry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Look up a name in a folder.
+     * @param folderId Id of the folder.
+     * @param name Name of the file.
+     * @return The cached entry, with inode id -1 if the file is known not to
+     * exist, or null if the name isn't cached.
+     */
+    public synchronized Dentry lookup(int folderId, String name) {
+        Dentry dentry = entries.get(new Key(folderId, name));
+        if (dentry == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return dentry;
+    }
+
+    /**
+     * Remember a file in a folder.
+     * @param folderId Id of the folder.
+     * @param name Name of the file.
+     * @param inodeId Id of the file.
+     * @param type Inode.TYPE_FILE or Inode.TYPE_FOLDER.
+     * @return The new entry.
+     */
+    public synchronized Dentry put(int folderId, String name, int inodeId, byte type) {
+        Dentry dentry = new Dentry(inodeId, type);
+        entries.put(new Key(folderId, name), dentry);
+        return dentry;
+    }
+
+    /**
+     * Remember that there is no file with a name in a folder.
+     * @param folderId Id of the folder.
+     * @param name Name of the file.
+     * @return The new entry.
+     */
+    public synchronized Dentry putNegative(int folderId, String name) {
+        entries.put(new Key(folderId, name), NEGATIVE);
+        return NEGATIVE;
+    }
+
+    /**
+     * Forget a name in a folder.
+     * @param folderId Id of the folder.
+     * @param name Name of the file.
+     */
+    public synchronized void invalidate(int folderId, String name) {
+        entries.remove(new Key(folderId, name));
+    }
+
+    /**
+     * Forget everything cached for a folder. Has to be done when a folder is
+     * removed since its id can be reused by a new folder.
+     * @param folderId Id of the folder.
+     */
+    public synchronized void invalidateFolder(int folderId) {
+        Iterator<Key> it = entries.keySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().folderId == folderId) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Forget everything.
+     */
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Set the hit and miss counters to 0.
+     */
+    public synchronized void resetCounters() {
+        hits = 0;
+        misses = 0;
+    }
+
+    public synchronized int getSize() {
+        return entries.size();
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+}
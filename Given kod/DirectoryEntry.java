@@ -0,0 +1,31 @@
+/**
+ * A file in a listing of a folder, see FileSystem.list().
+ */
+public class DirectoryEntry {
+    private final String name;
+    private final boolean folder;
+    private final int size;
+
+    /**
+     * @param name Name of the file.
+     * @param folder true if the file is a folder.
+     * @param size Size of the file in bytes.
+     */
+    public DirectoryEntry(String name, boolean folder, int size) {
+        this.name = name;
+        this.folder = folder;
+        this.size = size;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isFolder() {
+        return folder;
+    }
+
+    public int getSize() {
+        return size;
+    }
+}
@@ -0,0 +1,74 @@
+/**
+ * Gets events from the file system, to record them for a profiler like Java
+ * Flight Recorder. An event is started with begin() when the work starts
+ * and ended with the end method for its type when it is done, from the same
+ * thread. See Events for how a sink is installed.
+ */
+public interface EventSink {
+    /** Blocks of a file read, with the number of blocks. */
+    public static final int BLOCK_READ = 0;
+    /** Blocks of a file written, with the number of blocks. */
+    public static final int BLOCK_WRITE = 1;
+    /** A free block searched for, with the number of blocks passed. */
+    public static final int ALLOCATOR_SEARCH = 2;
+    /** A folder block decoded. */
+    public static final int FOLDER_DECODE = 3;
+    /** A folder block encoded. */
+    public static final int FOLDER_ENCODE = 4;
+    /** A path looked up, with its depth. */
+    public static final int PATH_RESOLUTION = 5;
+    /** The file system saved to an image file. */
+    public static final int IMAGE_SAVE = 6;
+    /** The file system loaded from an image file. */
+    public static final int IMAGE_LOAD = 7;
+
+    /**
+     * Start an event.
+     * @param type One of the types above.
+     * @return The event, or null if events of the type aren't recorded.
+     */
+    public Object begin(int type);
+
+    /**
+     * End a BLOCK_READ or BLOCK_WRITE event.
+     * @param event What begin() returned.
+     * @param fileId The file.
+     * @param blocks Number of blocks read or written.
+     * @param bytes Number of bytes read or written.
+     */
+    public void endBlocks(Object event, int fileId, int blocks, long bytes);
+
+    /**
+     * End an ALLOCATOR_SEARCH event.
+     * @param event What begin() returned.
+     * @param blockId The block found, -1 if the disk is full.
+     * @param blocksScanned Number of blocks passed to find it.
+     * @param freeBlocks Number of free blocks left.
+     */
+    public void endAllocatorSearch(Object event, int blockId, int blocksScanned, int freeBlocks);
+
+    /**
+     * End a FOLDER_DECODE or FOLDER_ENCODE event.
+     * @param event What begin() returned.
+     * @param format "HashedFolder" or "FolderBlock".
+     * @param bytes Size of the encoded folder block.
+     * @param entries Number of entries in it.
+     */
+    public void endFolder(Object event, String format, int bytes, int entries);
+
+    /**
+     * End a PATH_RESOLUTION event.
+     * @param event What begin() returned.
+     * @param depth Number of names in the path.
+     * @param found false if the path doesn't lead to a folder.
+     */
+    public void endPathResolution(Object event, int depth, boolean found);
+
+    /**
+     * End an IMAGE_SAVE or IMAGE_LOAD event.
+     * @param event What begin() returned.
+     * @param path The image file.
+     * @param blocks Number of blocks written or read, 0 if it failed.
+     */
+    public void endImage(Object event, String path, int blocks);
+}
@@ -0,0 +1,130 @@
+import java.lang.reflect.InvocationTargetException;
+
+/**
+ * The EventSink of the file system. There is none by default, then starting
+ * an event only reads a field and nothing is allocated, so the events cost
+ * nothing until they are turned on.
+ *
+ * JfrEventSink reports the events to Java Flight Recorder. It is built by
+ * jfr/build.xml for Java 11, since the project is built for Java 1.6 where
+ * JFR doesn't exist, and is only loaded by name. Its events are disabled
+ * until a recording enables them.
+ */
+public class Events {
+    /** Class name of the sink reporting to Java Flight Recorder. */
+    public static final String JFR_SINK = "JfrEventSink";
+
+    private static volatile EventSink sink;
+
+    private Events() {
+    }
+
+    /**
+     * Install a sink, or remove it. Do this before the file system is used,
+     * events started before it was changed can get lost.
+     * @param eventSink The sink, or null to report nothing.
+     */
+    public static void setSink(EventSink eventSink) {
+        sink = eventSink;
+    }
+
+    /**
+     * @return The sink, or null if there is none.
+     */
+    public static EventSink getSink() {
+        return sink;
+    }
+
+    /**
+     * Report the events to Java Flight Recorder.
+     * @return false if JfrEventSink isn't on the class path or the JVM has no
+     * Java Flight Recorder.
+     */
+    public static boolean installJfr() {
+        boolean result = false;
+        try {
+            setSink((EventSink) Class.forName(JFR_SINK).getDeclaredConstructor().newInstance());
+            result = true;
+        } catch (ClassNotFoundException ex) {
+            // Not on the class path
+        } catch (NoSuchMethodException ex) {
+            // Not a sink with a public no-argument constructor
+        } catch (InstantiationException ex) {
+            // Same
+        } catch (IllegalAccessException ex) {
+            // Same
+        } catch (InvocationTargetException ex) {
+            // The sink failed to start, e.g. JFR is disabled in this JVM
+        } catch (LinkageError ex) {
+            // Built against jdk.jfr, which this JVM doesn't have
+        }
+        return result;
+    }
+
+    /**
+     * Start an event.
+     * @param type One of the types in EventSink.
+     * @return The event, or null if there is no sink or it doesn't record
+     * the type.
+     */
+    public static Object begin(int type) {
+        EventSink current = sink;
+        return current == null ? null : current.begin(type);
+    }
+
+    /**
+     * End a BLOCK_READ or BLOCK_WRITE event, see EventSink.
+     * @param event What begin() returned, nothing is done if null.
+     */
+    public static void endBlocks(Object event, int fileId, int blocks, long bytes) {
+        EventSink current = sink;
+        if (event != null && current != null) {
+            current.endBlocks(event, fileId, blocks, bytes);
+        }
+    }
+
+    /**
+     * End an ALLOCATOR_SEARCH event, see EventSink.
+     * @param event What begin() returned, nothing is done if null.
+     */
+    public static void endAllocatorSearch(Object event, int blockId, int blocksScanned,
+            int freeBlocks) {
+        EventSink current = sink;
+        if (event != null && current != null) {
+            current.endAllocatorSearch(event, blockId, blocksScanned, freeBlocks);
+        }
+    }
+
+    /**
+     * End a FOLDER_DECODE or FOLDER_ENCODE event, see EventSink.
+     * @param event What begin() returned, nothing is done if null.
+     */
+    public static void endFolder(Object event, String format, int bytes, int entries) {
+        EventSink current = sink;
+        if (event != null && current != null) {
+            current.endFolder(event, format, bytes, entries);
+        }
+    }
+
+    /**
+     * End a PATH_RESOLUTION event, see EventSink.
+     * @param event What begin() returned, nothing is done if null.
+     */
+    public static void endPathResolution(Object event, int depth, boolean found) {
+        EventSink current = sink;
+        if (event != null && current != null) {
+            current.endPathResolution(event, depth, found);
+        }
+    }
+
+    /**
+     * End an IMAGE_SAVE or IMAGE_LOAD event, see EventSink.
+     * @param event What begin() returned, nothing is done if null.
+     */
+    public static void endImage(Object event, String path, int blocks) {
+        EventSink current = sink;
+        if (event != null && current != null) {
+            current.endImage(event, path, blocks);
+        }
+    }
+}
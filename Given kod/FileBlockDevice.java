@@ -0,0 +1,150 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectStreamException;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Block device stored in a file on the real disk, read and written with
+ * positional file channel calls. Unlike MappedBlockDevice nothing is mapped,
+ * so the volume can be larger than the address space, but every call is a
+ * system call. Put a BufferCache in front of it.
+ *
+ * The channel methods are thread safe and positional calls don't move the
+ * file pointer, so the device needs no locking.
+ */
+public class FileBlockDevice implements BlockDevice, Serializable {
+    private static final long serialVersionUID = -4237282685827881964L;
+    private transient RandomAccessFile file;
+    private transient FileChannel channel;
+    private int numBlocks;
+    private int blockSize;
+
+    /**
+     * Opens an image file, creating it or making it larger if it is smaller
+     * than the device.
+     * @param path The image file.
+     * @param numBlocks Number of blocks.
+     * @param blockSize Size of a block in bytes.
+     * @throws IOException If the file can't be opened.
+     */
+    public FileBlockDevice(File path, int numBlocks, int blockSize) throws IOException {
+        file = new RandomAccessFile(path, "rw");
+        channel = file.getChannel();
+        resize(numBlocks, blockSize);
+    }
+
+    /**
+     * The file grows if needed, it is never made smaller.
+     */
+    public void resize(int numBlocks, int blockSize) throws IOException {
+        this.numBlocks = numBlocks;
+        this.blockSize = blockSize;
+        long size = (long) numBlocks * blockSize;
+        if (file.length() < size) {
+            file.setLength(size);
+        }
+    }
+
+    private long position(int blockId, int offset) {
+        return (long) blockId * blockSize + offset;
+    }
+
+    public int getNumBlocks() {
+        return numBlocks;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Read until the buffer is full. The file is never shorter than the
+     * device, so the end of the file isn't reached.
+     */
+    private void read(ByteBuffer dst, long position) {
+        try {
+            while (dst.hasRemaining()) {
+                int n = channel.read(dst, position);
+                if (n < 0) {
+                    throw new IOException("Image file is too short");
+                }
+                position += n;
+            }
+        } catch (IOException ex) {
+            throw new IllegalStateException("Block read failed", ex);
+        }
+    }
+
+    private void write(ByteBuffer src, long position) {
+        try {
+            while (src.hasRemaining()) {
+                position += channel.write(src, position);
+            }
+        } catch (IOException ex) {
+            throw new IllegalStateException("Block write failed", ex);
+        }
+    }
+
+    public void read(int blockId, int offset, byte[] dst, int off, int len) {
+        read(ByteBuffer.wrap(dst, off, len), position(blockId, offset));
+    }
+
+    public void readBlocks(int blockId, int count, byte[] dst, int off) {
+        read(ByteBuffer.wrap(dst, off, count * blockSize), position(blockId, 0));
+    }
+
+    /**
+     * The bytes are read into a new buffer, the file has no memory to share.
+     */
+    public ByteBuffer view(int blockId, int offset, int len) {
+        ByteBuffer buffer = ByteBuffer.allocate(len);
+        read(buffer, position(blockId, offset));
+        buffer.flip();
+        return buffer.asReadOnlyBuffer();
+    }
+
+    public void write(int blockId, int offset, byte[] src, int off, int len) {
+        write(ByteBuffer.wrap(src, off, len), position(blockId, offset));
+    }
+
+    public void writeBlocks(int blockId, int count, byte[] src, int off) {
+        write(ByteBuffer.wrap(src, off, count * blockSize), position(blockId, 0));
+    }
+
+    public void clear(int blockId, int offset, int len) {
+        write(ByteBuffer.allocate(len), position(blockId, offset));
+    }
+
+    public int getInt(int blockId, int offset) {
+        ByteBuffer buffer = ByteBuffer.allocate(4);
+        read(buffer, position(blockId, offset));
+        return buffer.getInt(0);
+    }
+
+    public void putInt(int blockId, int offset, int value) {
+        ByteBuffer buffer = ByteBuffer.allocate(4);
+        buffer.putInt(0, value);
+        write(buffer, position(blockId, offset));
+    }
+
+    public void flush() throws IOException {
+        channel.force(false);
+    }
+
+    public void close() throws IOException {
+        flush();
+        channel.close();
+        file.close();
+    }
+
+    /**
+     * The file can't be serialized. A file system saved with Java
+     * serialization gets a copy of the blocks on the heap instead.
+     */
+    private Object writeReplace() throws ObjectStreamException {
+        return HeapBlockDevice.copyOf(this);
+    }
+}
@@ -1,4 +1,5 @@
 import java.io.*;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Stack;
@@ -12,6 +13,22 @@ public class FileManager {
         fileSystem = p_BlockDevice;
         format();
         
+        // Setup stack
+        workPath = new ArrayList<String>(0);
+    }
+
+    /**
+     * @param p_BlockDevice The file system to work on.
+     * @param p_bFormat true to format the file system, false to mount what is
+     * already on its device. A device without a file system is formatted.
+     * @throws IOException If the journal can't be replayed when mounting.
+     */
+    public FileManager(FileSystem p_BlockDevice, boolean p_bFormat) throws IOException {
+        fileSystem = p_BlockDevice;
+        if (p_bFormat || !fileSystem.mount()) {
+            format();
+        }
+        
         // Setup stack
         workPath = new ArrayList(0);
         
@@ -26,62 +43,266 @@ public class FileManager {
         return new String("Diskformat successful");
     }
 
+    public String format(int p_nNumBlocks, int p_nBlockSize) {
+        String result = "Diskformat successful";
+        try {
+            if (fileSystem.format(p_nNumBlocks, p_nBlockSize)) {
+                workPath = new ArrayList<String>(0);
+            } else {
+                result = "Invalid geometry. Block size has to be a multiple of 4 and at least " 
+                        + FileSystem.MIN_BLOCK_SIZE;
+            }
+        }
+        catch(IOException ex) {
+            result = "Diskformat failed. IO error";
+        }
+        return result;
+    }
+
+    /**
+     * Gets a listing a line at a time, see ls(String[], ListPrinter).
+     */
+    public interface ListPrinter {
+        /**
+         * @param line The line of a folder.
+         */
+        void printFolder(String line);
+
+        /**
+         * @param line The line of a file that isn't a folder.
+         */
+        void printFile(String line);
+
+        /**
+         * @param line The last line, or an error.
+         */
+        void printSummary(String line);
+    }
+    
+    /** Number of files fetched from the file system at a time by ls. */
+    public static final int LIST_PAGE_SIZE = 256;
+
     public String ls(String[] p_asPath) {
-        return ls();
+        final StringBuilder result = new StringBuilder();
+        ls(p_asPath, new ListPrinter() {
+            public void printFolder(String line) {
+                result.append(line).append("\n");
+            }
+            public void printFile(String line) {
+                result.append(line).append("\n");
+            }
+            public void printSummary(String line) {
+                result.append(line);
+            }
+        });
+        return result.toString();
     }
     
     public String ls() {
-        String result = "";    
-        String[] fileNames   = fileSystem.getNonFolderNames(workPath.toArray(new String[0]));
-        String[] folderNames = fileSystem.getFolderNames(workPath.toArray(new String[0]));
-        
-        // Append all folders to String
-        result = "<" + folderNames.length + " folder(s)>";
-        for(int i=0; i<folderNames.length; i++){
-            result += folderNames[i] + "/\n";
+        return ls(new String[0]);
+    }
+    
+    /**
+     * List a folder, passing each file to the printer as soon as it is read.
+     * Only LIST_PAGE_SIZE files are in memory at a time, however large the
+     * folder is.
+     * @param p_asPath Path of the folder, relative to the working folder.
+     * @param p_Printer Gets the lines.
+     */
+    public void ls(String[] p_asPath, ListPrinter p_Printer) {
+        long start = System.nanoTime();
+        String[] path = getAddedPath(p_asPath);
+        if (fileSystem.isPathValid(path)) {
+            ArrayList<DirectoryEntry> page = new ArrayList<DirectoryEntry>(LIST_PAGE_SIZE);
+            int numFolders = 0;
+            int numFiles = 0;
+            long cursor = 0;
+            do {
+                page.clear();
+                cursor = fileSystem.list(path, cursor, LIST_PAGE_SIZE, page);
+                for (DirectoryEntry entry : page) {
+                    if (entry.isFolder()) {
+                        p_Printer.printFolder(entry.getName() + "/");
+                        numFolders++;
+                    } else {
+                        p_Printer.printFile(entry.getName() + " (" + entry.getSize() + " bytes)");
+                        numFiles++;
+                    }
+                }
+            } while (cursor != -1);
+            
+            // If no files
+            if (numFolders == 0 && numFiles == 0) {
+                p_Printer.printSummary("<empty>");
+            } else {
+                p_Printer.printSummary("<" + numFolders + " folder(s), " + numFiles + " file(s)>");
+            }
+        } else {
+            p_Printer.printSummary("No such directory");
         }
+        fileSystem.getStatistics().record(Statistics.LIST, start);
+    }
+    
+    /**
+     * Copy a file on the real disk into the working folder, under the same
+     * name. The file is copied as it is, byte by byte, and streamed so it 
+     * is never held in memory as a whole.
+     * @param fileName The real file.
+     */
+    public String loadfile(String fileName) {
+        String result = "File not found";
+        File hostFile = new File(fileName);
+        String name = hostFile.getName();
+        String[] path = workPath.toArray(new String[0]);
         
-        // Append all files to String
-        result = result + "\n<" + fileNames.length + " file(s)>";
-        for(int i=0; i<fileNames.length; i++){
-            result += fileNames[i] + "\n";
+        try {
+            FileInputStream in = new FileInputStream(hostFile);
+            fileSystem.beginTransaction();
+            boolean created = false;
+            try {
+                created = fileSystem.touchFile(name, false, path) != -1;
+                if (!created) {
+                    result = "Name already exists";
+                } else {
+                    long bytes = fileSystem.importFile(name, path, in.getChannel());
+                    if (bytes != -1) {
+                        result = "File loaded (" + bytes + " bytes)";
+                    } else {
+                        fileSystem.removeFile(name, path);
+                        result = "Loading failed, disk full";
+                    }
+                }
+            } catch (IOException ex) {
+                if (created) {
+                    fileSystem.removeFile(name, path);
+                }
+                result = "Failed to read file. IO error";
+            } finally {
+                result = commit(result);
+                in.close();
+            }
+        } catch (IOException ex) {
+            result = "File not found or other IO error";
         }
+
+        return result;
+    }
+
+    /**
+     * Copy a file to a file on the real disk. The file is streamed from the
+     * blocks of the device, it is never held in memory as a whole.
+     * @param p_asPath The file to copy.
+     * @param p_sHostPath The real file. Replaced if it exists.
+     */
+    public String exportFile(String[] p_asPath, String p_sHostPath) {
+        String result = "No such file";
+        String[] path = parsePath(workPath, p_asPath);
+        String name = path[path.length-1];
+        path = popStringArray(path);
         
-        // If no files
-        if(fileNames.length == 0 && folderNames.length == 0){
-            result = "<empty>";
+        File hostFile = new File(p_sHostPath);
+        boolean existed = hostFile.exists();
+        try {
+            // Not truncated until the file is found, so that a mistyped 
+            // name doesn't wipe the real file
+            RandomAccessFile file = new RandomAccessFile(hostFile, "rw");
+            long bytes = -1;
+            try {
+                FileChannel channel = file.getChannel();
+                bytes = fileSystem.exportFile(name, path, channel);
+                if (bytes != -1) {
+                    channel.truncate(bytes);
+                    result = "File exported (" + bytes + " bytes)";
+                }
+            } finally {
+                file.close();
+            }
+            if (bytes == -1 && !existed) {
+                hostFile.delete();
+            }
+        } catch (IOException ex) {
+            result = "Failed to export file. IO error";
         }
-        
-        // Return
         return result;
     }
-    
-    // Loads a file and makes it into a file in the filesytem
-    public String loadfile(String fileName) {
-        String result = ""; 
-        StringBuilder content = new StringBuilder();
 
+    /**
+     * Copy a real folder with everything in it into a folder, which is made
+     * if it doesn't exist. Real files are read by several threads while one
+     * thread adds them to the file system.
+     * @param p_sHostDir The real folder.
+     * @param p_asPath The folder to copy into.
+     */
+    public String importTree(String p_sHostDir, String[] p_asPath) {
+        String result;
+        TreeTransfer transfer = new TreeTransfer(fileSystem, Runtime.getRuntime().availableProcessors());
         try {
-            // Read content
-            BufferedReader in = new BufferedReader(new FileReader(fileName));
-            String line = null;
-            while ((line = in.readLine()) != null) {
-                content.append(line).append(System.getProperty("line.separator"));
+            if (transfer.importTree(new File(p_sHostDir), getAddedPath(p_asPath))) {
+                result = "Imported " + report(transfer);
+            } else {
+                result = "Real folder not found / Folder in path doesn't exist";
             }
-            in.close();
-            
-            // Write content to new file
-            String[] p_asPath = new String[1];
-            p_asPath[0] = fileName;
-            result = create(p_asPath, content.toString().getBytes());
-        } catch (Exception e) {
-            result = "File not found";
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            result = "Import interrupted";
         }
+        return result;
+    }
 
+    /**
+     * Copy a folder with everything in it to a real folder, which is made if
+     * it doesn't exist. Real files are replaced.
+     * @param p_asPath The folder to copy.
+     * @param p_sHostDir The real folder.
+     */
+    public String exportTree(String[] p_asPath, String p_sHostDir) {
+        String result;
+        TreeTransfer transfer = new TreeTransfer(fileSystem, Runtime.getRuntime().availableProcessors());
+        try {
+            if (transfer.exportTree(getAddedPath(p_asPath), new File(p_sHostDir))) {
+                result = "Exported " + report(transfer);
+            } else {
+                result = "No such directory";
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            result = "Export interrupted";
+        }
+        return result;
+    }
+
+    private static String report(TreeTransfer p_Transfer) {
+        double seconds = Math.max(1, p_Transfer.getTime()) / 1e9;
+        double megabytes = p_Transfer.getNumBytes() / (1024.0 * 1024.0);
+        String result = String.format("%d file(s) and %d folder(s), %.1f MB in %.2f s "
+                + "(%.0f files/s, %.1f MB/s)", p_Transfer.getNumFiles(), p_Transfer.getNumFolders(),
+                megabytes, seconds, p_Transfer.getNumFiles() / seconds, megabytes / seconds);
+        if (p_Transfer.getNumFailed() > 0) {
+            result += "\n" + p_Transfer.getNumFailed() + " file(s) couldn't be copied";
+        }
+        return result;
+    }
+
+    /**
+     * End the transaction of an operation. Called in a finally block, so 
+     * that the transaction ends even if the operation throws.
+     * @param p_sResult The result of the operation.
+     * @return The result, with an error added if the journal couldn't be 
+     * written.
+     */
+    private String commit(String p_sResult) {
+        String result = p_sResult;
+        try {
+            fileSystem.commitTransaction();
+        }
+        catch(IOException ex) {
+            result += "\nFailed to write journal. IO error";
+        }
         return result;
     }
 
     public String create(String[] p_asPath, byte[] data) {
+        long start = System.nanoTime();
         String result = ""; 
         String[] path = parsePath(workPath, p_asPath);
         String name = path[path.length-1];
@@ -91,30 +312,38 @@ public class FileManager {
         data[data.length-1] = '\n';
         
         // Create file
-        if (fileSystem.touchFile(name, false, path) != -1) {
-            result = "File created\n";
-
-            // Write data to file
-            if(fileSystem.writeToFile(name, data, path)){
-                result += "Write succeeded";
-            }else {
-                result += "Write failed";
+        fileSystem.beginTransaction();
+        try {
+            if (fileSystem.touchFile(name, false, path) != -1) {
+                result = "File created\n";
+
+                // Write data to file
+                if(fileSystem.writeToFile(name, data, path)){
+                    result += "Write succeeded";
+                }else {
+                    result += "Write failed";
+                }
+                
+            } else {
+                result = "Name already exists / Folder in path doesn't exist";
             }
-            
-        } else {
-            result = "Name already exists / Folder in path doesn't exist";
+        } finally {
+            result = commit(result);
         }
-        
+        fileSystem.getStatistics().record(Statistics.CREATE, start);
         return result;
     }
 
     public String cat(String[] p_asPath) {        
+        long start = System.nanoTime();
         String result = ""; 
         String[] path = parsePath(workPath, p_asPath);
         String name = path[path.length-1];
         path = popStringArray(path);
 		
-        return fileSystem.readTextFromFile(name, path);
+        result = fileSystem.readTextFromFile(name, path);
+        fileSystem.getStatistics().record(Statistics.CAT, start);
+        return result;
     }
     
     /*
@@ -125,32 +354,48 @@ public class FileManager {
      *  Mattias Liljeson
      */
     public String save(String p_sPath) {
+        return save(p_sPath, false);
+    }
+
+    /**
+     * Save the blockdevice as a raw block image.
+     * @param p_sPath The real file.
+     * @param p_bIncremental true to only write the blocks changed since the 
+     * file was last saved or read.
+     */
+    public String save(String p_sPath, boolean p_bIncremental) {
+        long start = System.nanoTime();
         String result = "Saving blockdevice to file \"" + p_sPath+"\"";
         //result = "\nWriting file failed";
         
         try{
-            FileOutputStream fs = new FileOutputStream(p_sPath);
-            ObjectOutputStream os = new ObjectOutputStream(fs);
-            os.writeObject(fileSystem);
-            os.close();
-            result += "\nFile written successfully";
+            int blocks = fileSystem.saveImage(new File(p_sPath), p_bIncremental);
+            result += "\nFile written successfully (" + blocks + " blocks)";
         }
         catch(IOException ex) {
             result += "\nFailed to save file. IO error";
         }
         
+        fileSystem.getStatistics().record(Statistics.SAVE, start);
         return result;
     }
 
     public String read(String p_sPath) {
+        long start = System.nanoTime();
         String result = "Reading file \"" + p_sPath + "\" to blockdevice";
         //result += "Loading file failed";
         
         try{
-            FileInputStream fileStream = new FileInputStream(p_sPath);
-            ObjectInputStream os = new ObjectInputStream(fileStream);
-            format();
-            fileSystem = (FileSystem)os.readObject();
+            if (fileSystem.loadImage(new File(p_sPath))) {
+                workPath = new ArrayList<String>(0);
+            } else {
+                // Saved with Java serialization by an old version
+                FileInputStream fileStream = new FileInputStream(p_sPath);
+                ObjectInputStream os = new ObjectInputStream(fileStream);
+                format();
+                fileSystem = (FileSystem)os.readObject();
+                os.close();
+            }
             result += "\nFile loaded successfully";
         }
         catch(IOException ex) {
@@ -161,30 +406,168 @@ public class FileManager {
             result += "\nWrong type of file or from other version of program";
         }
         
+        fileSystem.getStatistics().record(Statistics.READ, start);
+        return result;
+    }
+
+    /**
+     * Commit the journal and make sure the device has stored everything. 
+     * Tells how well the buffer cache works if there is one.
+     */
+    public String sync() {
+        String result = "Blockdevice synced";
+        try {
+            fileSystem.sync();
+        }
+        catch(IOException ex) {
+            result = "Failed to sync blockdevice. IO error";
+        }
+        result += getCacheStatistics();
+        return result;
+    }
+
+    /**
+     * @return A line on how well the buffer cache works, starting with a new 
+     * line, or "" if there is no cache.
+     */
+    private String getCacheStatistics() {
+        String result = "";
+        BufferCache cache = fileSystem.getCache();
+        if (cache != null) {
+            result = String.format("%nCache: %d buffers, %.1f%% hits, %d blocks written "
+                    + "in %d writes, %.3f ms per write (max %.3f ms)",
+                    cache.getSize(), cache.getHitRatio() * 100, cache.getNumWrittenBlocks(),
+                    cache.getNumRuns(), cache.getAverageWriteTime(), cache.getMaxWriteTime());
+        }
+        return result;
+    }
+
+    /**
+     * Tell how long the commands have taken, in microseconds, and how much 
+     * work the file system has done for them.
+     * @param p_bReset true to start counting from zero again instead.
+     */
+    public String stats(boolean p_bReset) {
+        StringBuilder result = new StringBuilder();
+        Statistics statistics = fileSystem.getStatistics();
+        BufferCache cache = fileSystem.getCache();
+        if (p_bReset) {
+            statistics.reset();
+            if (cache != null) {
+                cache.resetStatistics();
+            }
+            result.append("Statistics reset");
+        } else {
+            result.append(String.format("%-8s %8s %10s %10s %10s %10s", 
+                    "command", "count", "p50 us", "p99 us", "p999 us", "max us"));
+            for (int i = 0; i < Statistics.NAMES.length; i++) {
+                LatencyHistogram histogram = statistics.getHistogram(i);
+                result.append(String.format("%n%-8s %8d %10.1f %10.1f %10.1f %10.1f", 
+                        Statistics.NAMES[i], histogram.getCount(), 
+                        histogram.getValueAtPercentile(50) / 1000.0,
+                        histogram.getValueAtPercentile(99) / 1000.0,
+                        histogram.getValueAtPercentile(99.9) / 1000.0,
+                        histogram.getMax() / 1000.0));
+            }
+            result.append(String.format("%nBlocks read: %d, blocks written: %d, "
+                    + "folder decodes: %d, allocator calls: %d",
+                    statistics.getBlocksRead(), statistics.getBlocksWritten(),
+                    statistics.getFolderDecodes(), statistics.getAllocatorCalls()));
+            result.append(getCacheStatistics());
+        }
+        return result.toString();
+    }
+
+    /**
+     * Check that no block is lost or used by more than one file.
+     */
+    public String check() {
+        ArrayList<String> problems = fileSystem.check();
+        String result = "No problems found";
+        if (!problems.isEmpty()) {
+            StringBuilder sb = new StringBuilder();
+            sb.append(problems.size()).append(" problem(s) found");
+            for (String problem : problems) {
+                sb.append("\n").append(problem);
+            }
+            result = sb.toString();
+        }
+        return result;
+    }
+
+    /**
+     * Run operations from several threads at once in a new folder in the 
+     * working directory, remove it and check the disk, see StressTest.
+     * @param p_nThreads Number of threads.
+     * @param p_nOps Number of operations per thread.
+     */
+    public String stress(int p_nThreads, int p_nOps) {
+        String result;
+        if (p_nThreads < 1 || p_nOps < 0) {
+            result = "Needs at least one thread";
+        } else {
+            StressTest test = new StressTest(fileSystem, p_nThreads, p_nOps);
+            try {
+                if (test.run(workPath.toArray(new String[0]))) {
+                    result = test.getReport();
+                } else {
+                    result = "Couldn't make the folder " + StressTest.FOLDER;
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                result = "Stress test interrupted";
+            }
+        }
+        return result;
+    }
+
+    public String close() {
+        String result = "Blockdevice closed";
+        try {
+            fileSystem.close();
+        }
+        catch(IOException ex) {
+            result = "Failed to close blockdevice. IO error";
+        }
         return result;
     }
 
     public String rm(String[] p_asPath) {
+        long start = System.nanoTime();
 		String result = "File not found"; 
         String[] path = parsePath(workPath, p_asPath);
         String name = path[path.length-1];
         path = popStringArray(path);
         
-        if (fileSystem.removeFile(name, path)) {
-            result = "File removed";
+        fileSystem.beginTransaction();
+        try {
+            if (fileSystem.removeFile(name, path)) {
+                result = "File removed";
+            }
+        } finally {
+            result = commit(result);
         }
-        
+        fileSystem.getStatistics().record(Statistics.REMOVE, start);
         return result;
     }
 
     public String copy(String[] p_asSource, String[] p_asDestination) {
+        long start = System.nanoTime();
         // Get the full source path
         String[] src = parsePath(workPath, p_asSource);
         // Get the full destination path
         String[] dst = parsePath(workPath, p_asDestination);
         
         // Copy paths
-        return fileSystem.copy(src, dst);
+        String result = "";
+        fileSystem.beginTransaction();
+        try {
+            result = fileSystem.copy(src, dst);
+        } finally {
+            result = commit(result);
+        }
+        fileSystem.getStatistics().record(Statistics.COPY, start);
+        return result;
     }
 
     public String append(String[] p_asSource, String[] p_asDestination) {
@@ -194,7 +577,14 @@ public class FileManager {
         String[] dst = parsePath(workPath, p_asDestination);
 
         // Append files
-        return fileSystem.mergeFiles(src, dst);
+        String result = "";
+        fileSystem.beginTransaction();
+        try {
+            result = fileSystem.mergeFiles(src, dst);
+        } finally {
+            result = commit(result);
+        }
+        return result;
     }
 
     public String rename(String[] p_asSource, String[] p_asDestination) {	
@@ -204,10 +594,15 @@ public class FileManager {
 		String newName = p_asDestination[p_asDestination.length-1];
         path = popStringArray(path);
 		
-        if(fileSystem.rename(oldName, newName, path)){
-            result = "File renamed";
-        }else{
-            result = "Couldn't rename";
+        fileSystem.beginTransaction();
+        try {
+            if(fileSystem.rename(oldName, newName, path)){
+                result = "File renamed";
+            }else{
+                result = "Couldn't rename";
+            }
+        } finally {
+            result = commit(result);
         }
         return result;
     }
@@ -218,16 +613,22 @@ public class FileManager {
         String name = path[path.length-1];
         path = popStringArray(path);
 		
-        if(fileSystem.touchFile(name, true, path) != -1){
-            result = "Directory created";
-        }
-		else {
-            result = "Name already exists";
+        fileSystem.beginTransaction();
+        try {
+            if(fileSystem.touchFile(name, true, path) != -1){
+                result = "Directory created";
+            }
+            else {
+                result = "Name already exists";
+            }
+        } finally {
+            result = commit(result);
         }
         return result;
     }
     
     public String cd(String[] p_path) {
+        long start = System.nanoTime();
         String result = ""; 
         String[] newPath = parsePath(workPath, p_path);
 
@@ -240,6 +641,7 @@ public class FileManager {
             result = "No such directory";
         }
 
+        fileSystem.getStatistics().record(Statistics.CHANGE_DIR, start);
         // Return
         return result;
     }
@@ -262,8 +664,9 @@ public class FileManager {
     
      // Returns a stack with the combined workpath and addedPath
     private Stack<String> getAddedPathStack(String[] addedPath) {
-        // Backup old workdir
-         Stack<String> path = (Stack<String>) workPath.clone();
+        // Copy of the workdir
+         Stack<String> path = new Stack<String>();
+         path.addAll(workPath);
          
           // Manipulate workPath based on commands in path array
          for(String p : addedPath){
@@ -1,52 +1,107 @@
 
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+/**
+ * The file system. It can be used by several threads at once.
+ * 
+ * Reading and writing a file takes the read or write lock of its inode in a 
+ * LockTable. Changing a folder takes the write lock of the folder. Operations 
+ * on names take the namespace lock for reading, so folders are not removed 
+ * under them, and take at most two inode locks, in stripe order. Operations 
+ * on whole trees (copy, merge, removing a folder, format, mount and images) 
+ * take the namespace lock for writing and have the file system to 
+ * themselves. The namespace lock is always taken before inode locks. The 
+ * allocator, inode table, dentry cache and journal are synchronized and 
+ * never call back into the file system.
+ */
 class FileSystem implements Serializable {
     //
     // Static variables and methods
     //
     
-    public final static int NUM_BLOCKS = 250;
-    public final static int BLOCK_SIZE = 512;
+    // Same as before the bitmap allocator so that old images can be read
+    private static final long serialVersionUID = -20224837469489485L;
+    
+    /** Geometry used when a file system is created without one. */
+    public final static int DEFAULT_NUM_BLOCKS = 250;
+    public final static int DEFAULT_BLOCK_SIZE = 512;
+    /** Smallest block size. An indexed inode has to fit in a block. */
+    public final static int MIN_BLOCK_SIZE = 128;
+    /** Number of folder entries kept in the dentry cache. */
+    public final static int DCACHE_SIZE = 1024;
+    /** The first block holds the superblock. */
+    public final static int SUPERBLOCK_ID = 0;
+    /** Number of inode locks. */
+    public final static int LOCK_STRIPES = 64;
+    
+    /** Identifies a block image file, "OSDI". */
+    public final static int IMAGE_MAGIC = 0x4F534449;
+    public final static int IMAGE_VERSION = 1;
+    /** Bytes before the first block in an image file. */
+    public final static int IMAGE_HEADER_SIZE = 20;
+    /** Size of the buffer used when saving and loading images. */
+    public final static int IMAGE_BUFFER_SIZE = 1 << 20;
+    /** Number of blocks handed to the channel in one write when exporting. */
+    public final static int EXPORT_BATCH = 64;
+    /** Number of blocks read from the channel at a time when importing. */
+    public final static int IMPORT_BATCH = 64;
     
     /**
-     * Convert an int to a byte array.
+     * Convert an int to a byte array, big-endian. Writes straight into dst 
+     * without any temporary arrays since it is used for every block pointer.
      * @param value Which int to convert.
      * @param dst Which byte array to save to.
      * @param start Where in the dst array to save the int.
      * @return The dst byte array.
      */
     public static final byte[] intToByteArray(int value, byte[] dst, int start) {
-        byte[] tmp = intToByteArray(value); 
-        System.arraycopy(tmp, 0, dst, start, 4);
+        dst[start] = (byte)(value >>> 24);
+        dst[start+1] = (byte)(value >>> 16);
+        dst[start+2] = (byte)(value >>> 8);
+        dst[start+3] = (byte)value;
         return dst;
     }
     
-    // Not ours. Stolen from: http://snippets.dzone.com/posts/show/93
     /**
      * Convert an int to a byte array. 
      * @param value Which int to convert. 
      * @return A byte array with 4 elements.
      */
     public static final byte[] intToByteArray(int value) {
-        return new byte[] {
-            (byte)(value >>> 24),
-            (byte)(value >>> 16),
-            (byte)(value >>> 8),
-            (byte)value};
+        return intToByteArray(value, new byte[4], 0);
     }
     
     /**
-     * Convert a part of a byte array to an int.
+     * Convert a part of a byte array to an int, big-endian. Reads straight 
+     * from the array without any temporary arrays.
      * @param byteArray Which byte array to use
      * @param start Where to start in the byte array.
      * @return The resulting int.
      */
     public static final int byteArrayToInt(byte[] byteArray, int start) {
-        byte[] tmp = new byte[4];
-        System.arraycopy(byteArray, start, tmp, 0, 4);
-        return byteArrayToInt(tmp);
+        return (byteArray[start] << 24)
+            | ((byteArray[start+1] & 0xFF) << 16)
+            | ((byteArray[start+2] & 0xFF) << 8)
+            | (byteArray[start+3] & 0xFF);
     }
     
     /**
@@ -56,753 +111,3369 @@ class FileSystem implements Serializable {
      * @return 
      */
     public static final int byteArrayToInt(byte [] b) {
-        return (b[0] << 24)
-            + ((b[1] & 0xFF) << 16)
-            + ((b[2] & 0xFF) << 8)
-            + (b[3] & 0xFF);
+        return byteArrayToInt(b, 0);
     }
     
     //
     // Instance variables and methods
     //
     
-    boolean[] freeBlocks = new boolean[NUM_BLOCKS];
-    byte[][] blockArray = new byte[NUM_BLOCKS][BLOCK_SIZE];
+    BlockAllocator allocator;
+    BlockDevice device;
+    // The journal if the device has one, otherwise the device itself. All
+    // blocks of files go through this.
+    private transient BlockDevice blocks;
+    private transient Journal journal;
+    // Id of the root folder's inode. Images saved before the superblock
+    // existed have the root in block 0.
+    private int rootId;
+    // The geometry comes from the device
+    private transient int numBlocks;
+    private transient int blockSize;
+    /** Number of block ids that fit in an indirect block. */
+    private transient int ptrsPerBlock;
+    /** Largest number of data blocks an indexed file can have. */
+    private transient int maxIndexedBlocks;
+    // Open files and caches are not saved with the file system
+    private transient ArrayList<OpenFile> openFiles;
+    private transient DentryCache dcache = new DentryCache(DCACHE_SIZE);
+    private transient InodeTable inodes;
+    // Data blocks shared by copies of a file
+    private transient RefCountTable refs;
+    // The map region holds the used blocks and the reference counts, so 
+    // that mounting doesn't have to walk all files. Only devices with a 
+    // journal have one, which keeps it in step with the files after a crash.
+    private transient int mapStart;
+    private transient int mapBlocks;
+    // Write the whole map at the next flush, not only what changed
+    private transient boolean rewriteMap;
+    private transient Object mapLock = new Object();
+    private transient LockTable locks = new LockTable(LOCK_STRIPES);
+    private transient ReentrantReadWriteLock namespaceLock = new ReentrantReadWriteLock();
+    // One bit per block changed since the image file was saved or loaded
+    private transient AtomicLongArray dirtyBlocks;
+    private transient File imageFile;
+    // Reads ahead into the buffer cache, started when first needed
+    private transient ThreadPoolExecutor readaheadThread;
+    private transient Statistics statistics = new Statistics();
     //int folderId;
     
 
+    /**
+     * Creates a file system with its blocks in memory. It has to be formatted
+     * before use.
+     */
     public FileSystem() { 
+        this(new HeapBlockDevice(DEFAULT_NUM_BLOCKS, DEFAULT_BLOCK_SIZE));
     }
     
     /**
-     * Sets workDir and folderId. Returns false if path doesn't exist.
-     * @param Path Path to look up.
-     * @return The id of the last folder if the path exists and -1 if it doesn't.
+     * Creates a file system on a block device. It has to be formatted or 
+     * mounted before use.
+     * @param device Where the blocks are stored.
      */
-//    public boolean setWorkDir(String[] path){
-//        boolean result = false;
-//        int id = getFolderId(path);
-//        if(id != -1){
-//            folderId = id;
-//            result = true;  
-//        }
-//        return result;
-//    }
+    public FileSystem(BlockDevice device) {
+        this.device = device;
+        blocks = device;
+        setGeometry();
+        allocator = new BitmapAllocator(numBlocks);
+        inodes = new InodeTable(numBlocks, blockSize);
+        refs = new RefCountTable(numBlocks);
+    }
+    
+    public int getNumBlocks() {
+        return numBlocks;
+    }
+    
+    public int getBlockSize() {
+        return blockSize;
+    }
+    
+    public int getRootId() {
+        return rootId;
+    }
     
     /**
-     * Formats the file system. This erases all data and sets up a clean root 
-     * folder.
+     * @return The buffer cache if the device is one, otherwise null.
      */
-    public void format(){
-        // clean the block array
-        blockArray = new byte[NUM_BLOCKS][BLOCK_SIZE];
-        freeBlocks = new boolean[NUM_BLOCKS];
-        for(int i=0; i<NUM_BLOCKS; i++){
-            freeBlocks[i] = true;
-            releaseBlock(i);
-        }
-        
-        // Set up the root folder and its inode
-        Inode inode = new Inode(true);
-        writeInode(0, inode);
-        FolderBlock folderBlock = new FolderBlock();
-        writeFile(0,FolderBlock.save(folderBlock));
-        
-        // Reset workDir to root bock;
-        //workDirId = 0;
+    public BufferCache getCache() {
+        return device instanceof BufferCache ? (BufferCache) device : null;
     }
     
     /**
-     * Get an unused block for example when allocating array. This block will not
-     * be reserved. If you use this method two times in a row without writing to
-     * the first block this method will return the same block. The reservation 
-     * is done by writeFile(). This is done so that empty blocks aren't being 
-     * reserved and therefore never written to.
-     * @return The ID of an empty block.
+     * @return What the file system has been doing since it was created or
+     * the statistics were reset.
      */
-    private int getFreeBlock() {
-        int i=0;
-        int freeBlock = 0;
-        while(i<NUM_BLOCKS && freeBlock == 0){
-            if(freeBlocks[i] == true)
-                freeBlock = i;
-            i++;
-        }
-        
-        // Return as -1 if no block is available
-        if(freeBlock == 0)
-            freeBlock = -1;
-        return freeBlock;
-        // Setting the block as used is done by writeBlock()
+    public Statistics getStatistics() {
+        return statistics;
     }
     
     /**
-     * Returns dataId of last the last folder in path.
-     * @param Path to look up.
-     * @return The id of the last folder if the path exists and -1 if it doesn't.
+     * Update the geometry fields from the device.
      */
-    public int getFolderId(String[] path){
-         
-        // Init
-        boolean validPath = true;
-        int i = 0;
-        int folderId = 0; // Root folder
-        
-        // For each "path", or until "invalid path" is detected
-        while(i<path.length && validPath == true){
-            // Fetch correct folder
-            FolderBlock folder = FolderBlock.load(readFile(folderId));
-            
-            // Check if path corresponds with one of the filenames in the folder
-            if(folder.isFileInFolder(path[i]))
-            {
-                // Check if file is a folder
-                folderId = folder.getFileId(path[i]);
-                if(isFolder(folderId)){
-                    // Splendid! We found a folder. Now we just have to make
-                    // sure all of the remaining "path" is folders aswell
-                }else {
-                    validPath = false;
-                }
-            }else {
-                validPath = false;
-            }
-            i++;
-        }
-
-        // If invalid path, return -1
-        if(validPath == false)
-        {
-            folderId = -1;
-        }
-        return folderId;
+    private void setGeometry() {
+        numBlocks = device.getNumBlocks();
+        blockSize = device.getBlockSize();
+        ptrsPerBlock = blockSize / 4;
+        maxIndexedBlocks = (int) Math.min(Integer.MAX_VALUE / blockSize, 
+                Inode.NUM_DIRECT + ptrsPerBlock + (long) ptrsPerBlock * ptrsPerBlock);
+        dirtyBlocks = new AtomicLongArray((numBlocks + 63) / 64);
+        imageFile = null;
     }
     
-    public FolderBlock getFolder(String[] path) {
-        FolderBlock folder = null;
-        int id = getFolderId(path);
-        if(id != -1){
-            folder = FolderBlock.load(readFile(id));
-        }
-        return folder;
+    /**
+     * Copy bytes into a block and remember that the block has changed.
+     */
+    private void blockWrite(int blockId, int offset, byte[] src, int off, int len) {
+        blocks.write(blockId, offset, src, off, len);
+        markDirty(blockId);
+        statistics.addBlocksWritten(1);
     }
     
-    public boolean appendToFile(String name, String[] path, byte[] newData) {
-        boolean result = false;
-        int workDirId = getFolderId(path);
-        FolderBlock workDir = FolderBlock.load(readFile(workDirId));
-        int id = workDir.getFileId(name);
-        
-        // If file exist and is not a folder
-        if(id != -1 && isFolder(id) == false){
-            
-            // Merge data with old data
-            byte[] oldData = readFile(id);
-            byte[] mergedData = new byte[oldData.length + newData.length];
-            System.arraycopy(oldData, 0, mergedData, 0, oldData.length);
-            System.arraycopy(newData, 0, mergedData, oldData.length, newData.length);
-            
-            // Write merged data
-            result = writeFile(id, mergedData);
-        }
-        return result;
+    /**
+     * Write an int to a block and remember that the block has changed.
+     */
+    private void blockPutInt(int blockId, int offset, int value) {
+        blocks.putInt(blockId, offset, value);
+        markDirty(blockId);
+        statistics.addBlocksWritten(1);
     }
     
-    public String mergeFiles(String[] srcPath, String[] dstPath) {
-        String result = "";
-        
-        // Lookup source
-        FolderBlock srcFolder = getFolder(getFolderPath(srcPath));
-        if (srcFolder == null) {
-            result = "Source folder invalid";
-        } else {
-            if (srcPath.length < 1) {
-                // This option should be prevented by "Shell.java" 
-                result = "Corrupt source path";
-            } else {
-                String srcName = srcPath[srcPath.length - 1];
-                int scrId = srcFolder.getFileId(srcName);
-                if (scrId == -1) {
-                    result = "No source file found";
-                } else {
-                    if (isFolder(scrId)) {
-                        result = "No source file found";
-                    } else {
-
-                        // Lookup destination
-                        int dstFolderId = getFolderId(getFolderPath(dstPath));
-                        if (dstFolderId == -1) {
-                            result = "Destination folder invalid";
-                        } else {
-                            if (dstPath.length < 1) {
-                                result = "Corrupt destination path"; // Relativly impossible to happen
-                            } else {
-                                String dstName = dstPath[dstPath.length - 1];
-                                FolderBlock dstFolder = FolderBlock.load(readFile(dstFolderId));
-                                if (dstFolder.isFileInFolder(dstName) == false) {
-                                    result = "No destination file found";
-                                } else {
-                                    int dstId = dstFolder.getFileId(dstName);
-                                    if (isFolder(dstId) == false) {
-                                        result = "Destination has to be a file";
-                                    } else {
-                                    }
-
-                                    // Load source data
-                                    byte[] srcData = readFile(scrId);
-
-                                    // Add source data to destination data
-                                    byte[] dstData = readFile(dstId);
-                                    byte[] mergedData = new byte[dstData.length + srcData.length];
-                                    System.arraycopy(dstData, 0, mergedData, 0, dstData.length);
-                                    System.arraycopy(srcData, 0, mergedData, dstData.length, srcData.length);
-
-                                    // Write merged data
-                                    if (writeFile(dstId, mergedData)) {
-                                        result = "File " + srcName + " appended to file " + dstName;
-                                    }
-
-                                    // Remove source, as it is now appended to destination
-                                    int srcFolderId = getFolderId(getFolderPath(dstPath));
-                                    removeFile(srcName, srcFolderId);
-                                }
-                            }
-                        }
-                    }
-                }
-            }
+    /**
+     * Zero a part of a block and remember that the block has changed.
+     */
+    private void blockClear(int blockId, int offset, int len) {
+        blocks.clear(blockId, offset, len);
+        markDirty(blockId);
+        statistics.addBlocksWritten(1);
+    }
+    
+    /**
+     * Copy bytes out of a block, counting the read.
+     */
+    private void blockRead(int blockId, int offset, byte[] dst, int off, int len) {
+        blocks.read(blockId, offset, dst, off, len);
+        statistics.addBlocksRead(1);
+    }
+    
+    /**
+     * Read an int from a block, counting the read.
+     */
+    private int blockGetInt(int blockId, int offset) {
+        statistics.addBlocksRead(1);
+        return blocks.getInt(blockId, offset);
+    }
+    
+    /**
+     * Get a part of a block to write to a channel, counting the read.
+     */
+    private ByteBuffer blockView(int blockId, int offset, int len) {
+        statistics.addBlocksRead(1);
+        return blocks.view(blockId, offset, len);
+    }
+    
+    /**
+     * Set the changed bit of a block. Threads writing other blocks in the 
+     * same word may set their bits at the same time.
+     */
+    private void markDirty(int blockId) {
+        int word = blockId >>> 6;
+        long bit = 1L << blockId;
+        long old = dirtyBlocks.get(word);
+        while ((old & bit) == 0 && !dirtyBlocks.compareAndSet(word, old, old | bit)) {
+            old = dirtyBlocks.get(word);
         }
-        
-        // Did we succeed or not?
-        return result;
     }
     
-    public String mergeFiles(int scrId, int dstId) {
-        
-        return "";
+    /**
+     * @return Number of blocks changed since the image file was saved or 
+     * loaded.
+     */
+    public int getNumDirtyBlocks() {
+        int count = 0;
+        for (int i = 0; i < dirtyBlocks.length(); i++) {
+            count += Long.bitCount(dirtyBlocks.get(i));
+        }
+        return count;
     }
     
-    public String copy(String[] srcPath, String[] dstPath) {
-        String result = "";
-        
-        /* NOTE TO SELF : Prolonged exposure to large "if else" statments could 
-         * result in, lack of sleep, hair loss, swearing, insanity and/or eye cancer.
-         */
+    /**
+     * Save all blocks to an image file: a header with the geometry followed by
+     * the blocks in order. The blocks are written in large chunks through a
+     * file channel.
+     * 
+     * In incremental mode only the blocks changed since the last save or load
+     * are written, in place. That only works if the file is the image that was
+     * last saved or loaded, otherwise the whole image is written anyway.
+     * @param path The image file.
+     * @param incremental true to only write changed blocks when possible.
+     * @return Number of blocks written.
+     * @throws IOException If the file can't be written.
+     */
+    public int saveImage(File path, boolean incremental) throws IOException {
+        Object event = Events.begin(EventSink.IMAGE_SAVE);
+        int written = 0;
+        namespaceLock.writeLock().lock();
+        try {
+            flushInodes();
+            flushMap();
+            if (journal != null) {
+                // The journal writes its region directly, so it is always saved
+                journal.flush();
+                for (int i = 0; i < journal.getLength(); i++) {
+                    markDirty(journal.getStart() + i);
+                }
+            }
+            File canonical = path.getCanonicalFile();
+            boolean full = !incremental || !canonical.equals(imageFile) 
+                    || path.length() != IMAGE_HEADER_SIZE + (long) numBlocks * blockSize;
         
-        // Lookup source
-        FolderBlock srcFolder = getFolder(getFolderPath(srcPath));
-        if (srcFolder == null) {
-            result = "Source folder invalid";
-        } else {
-            if (srcPath.length < 1) {
-                // This option should be prevented by "Shell.java" 
-                result = "Corrupt source path";
-            } else {
-                String srcName = srcPath[srcPath.length - 1];
-                int scrId = srcFolder.getFileId(srcName);
-                if (scrId == -1) {
-                    result = "No source file found";
+            RandomAccessFile file = new RandomAccessFile(path, "rw");
+            try {
+                FileChannel channel = file.getChannel();
+                ByteBuffer buffer = ByteBuffer.allocate(
+                        Math.max(1, IMAGE_BUFFER_SIZE / blockSize) * blockSize);
+                if (full) {
+                    ByteBuffer header = ByteBuffer.allocate(IMAGE_HEADER_SIZE);
+                    header.putInt(IMAGE_MAGIC).putInt(IMAGE_VERSION);
+                    header.putInt(numBlocks).putInt(blockSize).putInt(rootId);
+                    header.flip();
+                    writeFully(channel, header, 0);
+                    file.setLength(IMAGE_HEADER_SIZE + (long) numBlocks * blockSize);
+                    written = writeImageRun(channel, buffer, 0, numBlocks);
                 } else {
-                    
-                    // Lookup destination folder
-                    int dstFolderId = getFolderId(getFolderPath(dstPath));
-                    if (dstFolderId == -1) {
-                        result = "Destination folder invalid";
-                    } else {
-                        if (dstPath.length < 1) {
-                            result = "Corrupt destination path"; // Relativly impossible to happen
-                        } else {
-                            String dstName = dstPath[dstPath.length - 1];
-               
-                            // Lookup destination file name
-                            FolderBlock dstFolder = FolderBlock.load(readFile(dstFolderId));
-                            if (dstFolder.isFileInFolder(dstName)) {
-                                result = "Destination name already exist";
-                            } else {
-
-                                // Perform copy
-                                if (copyFile(srcName, dstName, scrId, dstFolderId)) {
-                                    result = "File copied";
-                                } else {
-                                    result = "Copying failed";
-                                } 
-                            }
+                    // Adjacent changed blocks are written together
+                    int blockId = nextDirtyBlock(0);
+                    while (blockId != -1) {
+                        int end = blockId + 1;
+                        while (end < numBlocks && isDirtyBlock(end)) {
+                            end++;
                         }
+                        written += writeImageRun(channel, buffer, blockId, end - blockId);
+                        blockId = nextDirtyBlock(end);
                     }
                 }
+                channel.force(true);
+            } finally {
+                file.close();
             }
-        }
         
-        // Did we succeed or not?
-        return result;
-    }
-    
-    public boolean copyFile(String scrName, int scrId, int dstFolderId) {
-        return copyFile(scrName, scrName, scrId, dstFolderId);
+            clearDirty();
+            imageFile = canonical;
+            return written;
+        } finally {
+            namespaceLock.writeLock().unlock();
+            Events.endImage(event, path.getPath(), written);
+        }
     }
     
-    public boolean copyFile(String scrName, String dstName, int scrId, int dstFolderId) {
+    /**
+     * Replace the file system with one from an image file saved by 
+     * saveImage(). The device is resized if the image has another geometry.
+     * @param path The image file.
+     * @return false if the file isn't an image or doesn't hold a file system.
+     * @throws IOException If the file can't be read or the device can't be 
+     * resized.
+     */
+    public boolean loadImage(File path) throws IOException {
+        Object event = Events.begin(EventSink.IMAGE_LOAD);
         boolean result = false;
-
-        // If source file is a folder
-        if (isFolder(scrId)) {
-            
-            // Create new folder in destination folder
-            int newFolderId = touchFile(dstName, true, dstFolderId);
-            if (newFolderId != -1) {
-                result = true;
-
-                // Fetch fileNames in source
-                FolderBlock srcFolder = FolderBlock.load(readFile(scrId));
-                String[] files = srcFolder.getFileNames();
-
-                // For every file
-                for (String f : files) {
-                    // Fetch new destination folder and continue deep copying
-                    int fileId = srcFolder.getFileId(f);
-                    result = copyFile(f, fileId, newFolderId);
+        namespaceLock.writeLock().lock();
+        try {
+            RandomAccessFile file = new RandomAccessFile(path, "r");
+            try {
+                FileChannel channel = file.getChannel();
+                ByteBuffer header = ByteBuffer.allocate(IMAGE_HEADER_SIZE);
+                readFully(channel, header, 0);
+                header.flip();
+                if (header.remaining() == IMAGE_HEADER_SIZE 
+                        && header.getInt() == IMAGE_MAGIC 
+                        && header.getInt() == IMAGE_VERSION) {
+                    int imageNumBlocks = header.getInt();
+                    int imageBlockSize = header.getInt();
+                    int imageRootId = header.getInt();
+                    if (imageNumBlocks >= 2 && imageBlockSize >= MIN_BLOCK_SIZE 
+                            && imageRootId >= 0 && imageRootId < imageNumBlocks
+                            && file.length() >= IMAGE_HEADER_SIZE + (long) imageNumBlocks * imageBlockSize) {
+                        // The image replaces everything the journal holds
+                        dropJournal();
+                        if (imageNumBlocks != numBlocks || imageBlockSize != blockSize) {
+                            device.resize(imageNumBlocks, imageBlockSize);
+                            setGeometry();
+                        }
+                        readImage(channel);
+                        // A file system loaded from an old serialized image has no
+                        // superblock, the root id is in the header as well
+                        Superblock superblock = readSuperblock();
+                        if (superblock == null) {
+                            superblock = new Superblock(numBlocks, blockSize, imageRootId, 
+                                    0, 0, 0, 0);
+                        }
+                        mount(superblock);
+                        result = true;
+                    }
                 }
+            } finally {
+                file.close();
             }
-        } else {
-            
-            // Create new file in destination folder
-            int dstId = touchFile(dstName, false, dstFolderId);
-            if (dstId != -1) {
-                result = true;
-
-                // Copy source file and write content to new file
-                byte[] file = readFile(scrId);
-                writeFile(dstId, file);
+        
+            if (result) {
+                clearDirty();
+                imageFile = path.getCanonicalFile();
             }
+            return result;
+        } finally {
+            namespaceLock.writeLock().unlock();
+            Events.endImage(event, path.getPath(), result ? numBlocks : 0);
         }
-        return result;
-    }
-    
-    public boolean rename(String oldName, String newName, String[] path) {
-        int workDirId = getFolderId(path);
-        FolderBlock workDir = FolderBlock.load(readFile(workDirId));
-        boolean result = workDir.rename(oldName, newName);
-        writeFile(workDirId, FolderBlock.save(workDir));
-        return result;
     }
     
-    /** Get just the folder path of a full path. 
-     * @param path The String array
-     * @return A String array containing all elements but the last one.
+    /**
+     * Write blocks to their place in an image file.
+     * @return Number of blocks written.
      */
-    public String[] getFolderPath(String[] path) {
-        String[] folderPath = new String[0];
-        if (path.length > 0) {
-            folderPath = new String[path.length - 1];
-            System.arraycopy(path, 0, folderPath, 0, path.length - 1);
-        } 
-        return folderPath;
+    private int writeImageRun(FileChannel channel, ByteBuffer buffer, int first, int count) 
+            throws IOException {
+        int blocksPerBuffer = buffer.capacity() / blockSize;
+        for (int start = first; start < first + count; start += blocksPerBuffer) {
+            int n = Math.min(blocksPerBuffer, first + count - start);
+            buffer.clear();
+            for (int i = 0; i < n; i++) {
+                device.read(start + i, 0, buffer.array(), i * blockSize, blockSize);
+            }
+            buffer.limit(n * blockSize);
+            writeFully(channel, buffer, IMAGE_HEADER_SIZE + (long) start * blockSize);
+        }
+        return count;
     }
     
-    public String[] getFileNames(String[] path) {
-        int workDirId = getFolderId(path);
-        FolderBlock workDir = FolderBlock.load(readFile(workDirId));
-        return workDir.getFileNames();
+    /**
+     * Read all blocks of an image file onto the device.
+     */
+    private void readImage(FileChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(
+                Math.max(1, IMAGE_BUFFER_SIZE / blockSize) * blockSize);
+        int blocksPerBuffer = buffer.capacity() / blockSize;
+        for (int start = 0; start < numBlocks; start += blocksPerBuffer) {
+            int n = Math.min(blocksPerBuffer, numBlocks - start);
+            buffer.clear();
+            buffer.limit(n * blockSize);
+            readFully(channel, buffer, IMAGE_HEADER_SIZE + (long) start * blockSize);
+            for (int i = 0; i < n; i++) {
+                device.write(start + i, 0, buffer.array(), i * blockSize, blockSize);
+            }
+        }
     }
     
-    public int getNextBlockId(int blockId) {
-        int id = byteArrayToInt(blockArray[blockId], BLOCK_SIZE-4);
-        return id;
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) 
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
     }
     
-    public String[] getFolderNames(String[] path) {
-        String[] files = getFileNames(path);
-        int folderId = getFolderId(path);
-        ArrayList<String> folders = new ArrayList<String>(); 
-        for (String file : files) {
-            if(isFolder(file, folderId) == true)
-                folders.add(file);
-        } 
-        return folders.toArray(new String[folders.size()]);
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) 
+            throws IOException {
+        int read = 0;
+        while (buffer.hasRemaining() && read != -1) {
+            read = channel.read(buffer, position);
+            position += read;
+        }
     }
     
-    public void setNextBlockId(int blockId, int nextBlockId) {
-        intToByteArray(nextBlockId, blockArray[blockId], BLOCK_SIZE-4);
+    private boolean isDirtyBlock(int blockId) {
+        return (dirtyBlocks.get(blockId >>> 6) & (1L << blockId)) != 0;
     }
     
-    public String[] getNonFolderNames(String[] path) {    
-        String[] files = getFileNames(path);
-        int folderId = getFolderId(path);
-        ArrayList<String> folders = new ArrayList<String>(); 
-        for (String file : files) {
-            if(isFolder(file, folderId) == false)
-                folders.add(file);
-        } 
-        return folders.toArray(new String[folders.size()]);
+    private void clearDirty() {
+        for (int i = 0; i < dirtyBlocks.length(); i++) {
+            dirtyBlocks.set(i, 0);
+        }
     }
     
     /**
-     * See if a file is a folder
-     * @param fileId Id of the file.
-     * @return true if the file is a folder, otherwise false.
+     * @return The first changed block at or after blockId, or -1.
      */
-    public boolean isFolder(int fileId) {
-        boolean result = false;
-
-        // If withing block range
-        if(isIdValid(fileId)) {
-
-            // Check if Inode is a folder
-            Inode inode = new Inode(blockArray[fileId]);
-            if (inode.getType() == 1) {
-                result = true;
+    private int nextDirtyBlock(int blockId) {
+        int result = -1;
+        int word = blockId >>> 6;
+        if (word < dirtyBlocks.length()) {
+            long bits = dirtyBlocks.get(word) & (-1L << blockId);
+            while (bits == 0 && ++word < dirtyBlocks.length()) {
+                bits = dirtyBlocks.get(word);
+            }
+            if (bits != 0) {
+                result = word * 64 + Long.numberOfTrailingZeros(bits);
             }
         }
-
-        //Return
         return result;
     }
     
     /**
-     * Checks whether the supplied file is a folder.
-     * @param fileName the file to look up
-     * @return true if a the supplied filename is a folder.
+     * Reads a saved file system. Images saved before the bitmap allocator 
+     * have a boolean array of free blocks instead, which is converted.
      */
-    public boolean isFolder(String fileName, int folderId) {
-        boolean result = false;
-        FolderBlock workDir = FolderBlock.load(readFile(folderId));
-        int id = workDir.getFileId(fileName);
-        if(id != -1)
-            result = isFolder(id);
-        return result;
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        statistics = new Statistics();
+        dcache = new DentryCache(DCACHE_SIZE);
+        locks = new LockTable(LOCK_STRIPES);
+        namespaceLock = new ReentrantReadWriteLock();
+        mapLock = new Object();
+        ObjectInputStream.GetField fields = in.readFields();
+        device = (BlockDevice) fields.get("device", null);
+        if (device == null) {
+            // Saved before block devices existed
+            device = new HeapBlockDevice((byte[][]) fields.get("blockArray", null));
+        }
+        rootId = fields.get("rootId", 0);
+        setGeometry();
+        inodes = new InodeTable(numBlocks, blockSize);
+        // The journal was flushed when the file system was saved
+        blocks = device;
+        Superblock superblock = readSuperblock();
+        if (superblock != null && superblock.getRootId() == rootId 
+                && superblock.getJournalBlocks() > 0) {
+            journal = new Journal(device, superblock.getJournalStart(), 
+                    superblock.getJournalBlocks());
+            blocks = journal;
+            mapStart = superblock.getMapStart();
+            mapBlocks = superblock.getMapBlocks();
+        }
+        allocator = (BlockAllocator) fields.get("allocator", null);
+        if (allocator == null) {
+            boolean[] freeBlocks = (boolean[]) fields.get("freeBlocks", null);
+            allocator = new BitmapAllocator(numBlocks);
+            for (int i = 0; i < numBlocks; i++) {
+                if (freeBlocks[i] == false) {
+                    allocator.markUsed(i);
+                }
+            }
+            // Old versions could mark the root as free when removing files
+            allocator.markUsed(rootId);
+        }
+        // The reference counts aren't saved with the object. They are in the
+        // map region, or have to be counted again.
+        refs = new RefCountTable(numBlocks);
+        if (mapBlocks == 0 || Journal.isSplit(device, superblock.getJournalStart()) 
+                || !loadMap(superblock)) {
+            walkTree(rootId, new BitSet(numBlocks), new BitSet(numBlocks), refs, null);
+        }
     }
     
     /**
-     * Checks whether the block id is in range.
-     * @param blockId Which id to look up.
-     * @return true if in range.
+     * Saves the file system. Changed inodes are written to their blocks 
+     * first.
      */
-    public boolean isIdValid(int blockId) {
-        boolean result = false;
-        if((blockId < NUM_BLOCKS) && (blockId >= 0))
-            result = true;
-        return result;
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        flushInodes();
+        flushMap();
+        if (journal != null) {
+            journal.flush();
+        }
+        out.defaultWriteObject();
     }
     
     /**
-     * Checks if a path is valid.
-     * @param path Path of folders.
-     * @return true if the path is valid;
+     * Sets workDir and folderId. Returns false if path doesn't exist.
+     * @param Path Path to look up.
+     * @return The id of the last folder if the path exists and -1 if it doesn't.
      */
-    public boolean isPathValid(String path[]) {
-        boolean failed = false;
-        int folderId = 0; //root folder
-        int i = 0;
-        
-        while(failed == false && i < path.length) {
-            FolderBlock folder = FolderBlock.load(readFile(folderId));
-            
-            failed = true;
-            if(folder.isFileInFolder(path[i])) {
-                folderId = folder.getFileId(path[i]);
-                if(isFolder(folderId)) {
-                    folder = FolderBlock.load(readFile(folderId));
-                    failed = false;
-                }
-            }
-            i++;
-        }
-        return !failed;
-    }
-    /**
-     * Read a file from the file system.
-     * @param fileId The ID of the file (the file inodes id).
+//    public boolean setWorkDir(String[] path){
+//        boolean result = false;
+//        int id = getFolderId(path);
+//        if(id != -1){
+//            folderId = id;
+//            result = true;  
+//        }
+//        return result;
+//    }
+    
+    /**
+     * Formats the file system. This erases all data and sets up a clean root 
+     * folder. The geometry of the device is kept.
+     */
+    public void format(){
+        namespaceLock.writeLock().lock();
+        try {
+            // Formatting writes straight to the device, the old journal is 
+            // thrown away
+            dropJournal();
+            closeAll();
+        
+            // Mark every block as free. The old content is left, only the next 
+            // block ids are reset.
+            allocator = new BitmapAllocator(numBlocks);
+            inodes = new InodeTable(numBlocks, blockSize);
+            refs = new RefCountTable(numBlocks);
+            dcache.clear();
+            for(int i=0; i<numBlocks; i++){
+                setNextBlockId(i, -1);
+            }
+        
+            // The superblock comes first, then the journal, the map and the 
+            // root folder
+            int journalStart = SUPERBLOCK_ID + 1;
+            int journalBlocks = getDefaultJournalBlocks(numBlocks);
+            mapStart = journalStart + journalBlocks;
+            mapBlocks = journalBlocks > 0 ? getMapBlocks(numBlocks, blockSize) : 0;
+            allocator.markUsed(SUPERBLOCK_ID);
+            for (int i = journalStart; i < mapStart + mapBlocks; i++) {
+                allocator.markUsed(i);
+            }
+            rootId = mapStart + mapBlocks;
+            blockClear(SUPERBLOCK_ID, 0, blockSize);
+            blockWrite(SUPERBLOCK_ID, 0, new Superblock(numBlocks, blockSize, rootId, 
+                    journalStart, journalBlocks, mapStart, mapBlocks).save(), 0, Superblock.SIZE);
+            if (journalBlocks > 0) {
+                Journal.format(device, journalStart);
+            }
+        
+            // Set up the root folder and its inode
+            Inode inode = new Inode(blockSize, true, Inode.LAYOUT_EXTENTS);
+            writeInode(rootId, inode);
+            writeFile(rootId, HashedFolder.empty(blockSize));
+            flushInodes();
+            rewriteMap = true;
+            flushMap();
+        
+            if (journalBlocks > 0) {
+                journal = new Journal(device, journalStart, journalBlocks);
+                blocks = journal;
+            }
+        
+            // Reset workDir to root bock;
+            //workDirId = 0;
+        } finally {
+            namespaceLock.writeLock().unlock();
+        }
+    }
+    
+    /**
+     * Formats the file system with a new geometry. The device is resized to
+     * it.
+     * @param numBlocks Number of blocks, at least 2.
+     * @param blockSize Size of a block in bytes. At least MIN_BLOCK_SIZE and
+     * a multiple of 4.
+     * @return false if the geometry isn't valid.
+     * @throws IOException If the device can't be resized.
+     */
+    public boolean format(int numBlocks, int blockSize) throws IOException {
+        namespaceLock.writeLock().lock();
+        try {
+            boolean result = false;
+            if (numBlocks >= 2 && blockSize >= MIN_BLOCK_SIZE && blockSize % 4 == 0) {
+                if (numBlocks != this.numBlocks || blockSize != this.blockSize) {
+                    device.resize(numBlocks, blockSize);
+                    setGeometry();
+                }
+                format();
+                result = true;
+            }
+            return result;
+        } finally {
+            namespaceLock.writeLock().unlock();
+        }
+    }
+    
+    /**
+     * Starts using a device that already holds a formatted file system, for 
+     * example an image file. The used blocks and the reference counts are 
+     * read from the map region. Devices without one are walked from the root
+     * folder instead.
+     * @return false if the device doesn't start with a superblock matching 
+     * its geometry.
+     */
+    public boolean mount() throws IOException {
+        namespaceLock.writeLock().lock();
+        try {
+            boolean result = false;
+            Superblock superblock = readSuperblock();
+            if (superblock != null) {
+                mount(superblock);
+                result = true;
+            }
+            return result;
+        } finally {
+            namespaceLock.writeLock().unlock();
+        }
+    }
+    
+    /**
+     * @return The superblock of the device, or null if there is none or it 
+     * doesn't match the geometry of the device.
+     */
+    private Superblock readSuperblock() {
+        Superblock result = null;
+        byte[] block = new byte[Superblock.SIZE];
+        device.read(SUPERBLOCK_ID, 0, block, 0, Superblock.SIZE);
+        Superblock superblock = new Superblock();
+        if (superblock.load(block) 
+                && superblock.getNumBlocks() == numBlocks 
+                && superblock.getBlockSize() == blockSize
+                && isIdValid(superblock.getRootId())
+                && superblock.getJournalBlocks() >= 0
+                && superblock.getJournalStart() + superblock.getJournalBlocks() <= numBlocks
+                && (superblock.getMapBlocks() == 0 
+                    || superblock.getMapBlocks() == getMapBlocks(numBlocks, blockSize))
+                && superblock.getMapStart() >= 0
+                && superblock.getMapStart() + superblock.getMapBlocks() <= numBlocks) {
+            result = superblock;
+        }
+        return result;
+    }
+    
+    /**
+     * Replay the journal and read the map of used blocks, or find the used
+     * blocks by walking from the root folder if there is no map.
+     * @param superblock Where the root folder, the journal and the map are.
+     * @throws IOException If the device fails during replay.
+     */
+    private void mount(Superblock superblock) throws IOException {
+        dropJournal();
+        closeAll();
+        int journalStart = superblock.getJournalStart();
+        int journalBlocks = superblock.getJournalBlocks();
+        boolean split = false;
+        if (journalBlocks > 0) {
+            // The map is replayed together with the files it describes, 
+            // unless the last group ended in the middle of a transaction
+            split = Journal.isSplit(device, journalStart);
+            Journal.replay(device, journalStart, journalBlocks);
+            journal = new Journal(device, journalStart, journalBlocks);
+            blocks = journal;
+        }
+        
+        rootId = superblock.getRootId();
+        mapStart = superblock.getMapStart();
+        mapBlocks = journalBlocks > 0 ? superblock.getMapBlocks() : 0;
+        inodes = new InodeTable(numBlocks, blockSize);
+        dcache.clear();
+        if (mapBlocks == 0 || split || !loadMap(superblock)) {
+            // Saved by an older version, stopped in the middle of a 
+            // transaction, or the map is damaged
+            allocator = new BitmapAllocator(numBlocks);
+            refs = new RefCountTable(numBlocks);
+            if (rootId != SUPERBLOCK_ID) {
+                allocator.markUsed(SUPERBLOCK_ID);
+            }
+            for (int i = journalStart; i < journalStart + journalBlocks; i++) {
+                allocator.markUsed(i);
+            }
+            for (int i = mapStart; i < mapStart + mapBlocks; i++) {
+                allocator.markUsed(i);
+            }
+            BitSet used = new BitSet(numBlocks);
+            walkTree(rootId, used, new BitSet(numBlocks), refs, null);
+            for (int i = used.nextSetBit(0); i >= 0; i = used.nextSetBit(i + 1)) {
+                allocator.markUsed(i);
+            }
+            rewriteMap = true;
+        }
+    }
+    
+    /**
+     * @return Number of blocks of the free bitmap, the first part of the map
+     * region. A set bit means that the block is used.
+     */
+    private static int getBitmapBlocks(int numBlocks, int blockSize) {
+        int perBlock = blockSize * 8;
+        return (numBlocks + perBlock - 1) / perBlock;
+    }
+    
+    /**
+     * @return Number of blocks of the map region: the free bitmap followed
+     * by the reference counts, an int per block.
+     */
+    private static int getMapBlocks(int numBlocks, int blockSize) {
+        int perBlock = blockSize / 4;
+        return getBitmapBlocks(numBlocks, blockSize) + (numBlocks + perBlock - 1) / perBlock;
+    }
+    
+    /**
+     * Read the used blocks and the reference counts from the map region.
+     * @param superblock Where the root folder, the journal and the map are.
+     * @return false if the map is damaged: a count is out of range or a 
+     * block the superblock points to is marked as free. The allocator and 
+     * the counts are left as they were then.
+     */
+    private boolean loadMap(Superblock superblock) {
+        boolean result = true;
+        BlockAllocator loaded = new BitmapAllocator(numBlocks);
+        RefCountTable counts = new RefCountTable(numBlocks);
+        byte[] block = new byte[blockSize];
+        int perBlock = blockSize * 8;
+        for (int start = 0; start < numBlocks; start += perBlock) {
+            blockRead(mapStart + start / perBlock, 0, block, 0, blockSize);
+            int end = Math.min(numBlocks, start + perBlock);
+            for (int i = start; i < end; i++) {
+                if ((block[(i - start) >>> 3] & (1 << (i & 7))) != 0) {
+                    loaded.markUsed(i);
+                }
+            }
+        }
+        
+        int countStart = mapStart + getBitmapBlocks(numBlocks, blockSize);
+        for (int start = 0; start < numBlocks && result; start += ptrsPerBlock) {
+            blockRead(countStart + start / ptrsPerBlock, 0, block, 0, blockSize);
+            int end = Math.min(numBlocks, start + ptrsPerBlock);
+            for (int i = start; i < end && result; i++) {
+                int extra = byteArrayToInt(block, (i - start) * 4);
+                result = extra >= 0 && extra < numBlocks;
+                counts.setCount(i, extra + 1);
+            }
+        }
+        
+        int journalEnd = superblock.getJournalStart() + superblock.getJournalBlocks();
+        for (int i = superblock.getJournalStart(); i < journalEnd && result; i++) {
+            result = !loaded.isFree(i);
+        }
+        for (int i = mapStart; i < mapStart + mapBlocks && result; i++) {
+            result = !loaded.isFree(i);
+        }
+        if (result && !loaded.isFree(SUPERBLOCK_ID) && !loaded.isFree(rootId)) {
+            loaded.clearChanged(0, numBlocks);
+            allocator = loaded;
+            refs = counts;
+        } else {
+            result = false;
+        }
+        return result;
+    }
+    
+    /**
+     * Write the parts of the map region that changed since the last flush.
+     * They go through the journal, so they are stored in the same group as
+     * the files that changed them.
+     */
+    private void flushMap() {
+        // Parts are cleared before they are written, two threads flushing 
+        // at once could write an old copy over a newer one
+        synchronized (mapLock) {
+            if (mapBlocks > 0) {
+                flushBitmap();
+                flushCounts();
+                rewriteMap = false;
+            }
+        }
+    }
+    
+    private void flushBitmap() {
+        byte[] block = new byte[blockSize];
+        int perBlock = blockSize * 8;
+        int blockId = rewriteMap ? 0 : allocator.nextChanged(0);
+        while (blockId != -1 && blockId < numBlocks) {
+            int start = blockId - blockId % perBlock;
+            int end = Math.min(numBlocks, start + perBlock);
+            allocator.clearChanged(start, end);
+            Arrays.fill(block, (byte) 0);
+            allocator.getUsed(start, end, block);
+            blockWrite(mapStart + start / perBlock, 0, block, 0, blockSize);
+            blockId = rewriteMap ? end : allocator.nextChanged(end);
+        }
+    }
+    
+    private void flushCounts() {
+        byte[] block = new byte[blockSize];
+        int countStart = mapStart + getBitmapBlocks(numBlocks, blockSize);
+        int blockId = rewriteMap ? 0 : refs.nextChanged(0);
+        while (blockId != -1 && blockId < numBlocks) {
+            int start = blockId - blockId % ptrsPerBlock;
+            int end = Math.min(numBlocks, start + ptrsPerBlock);
+            refs.clearChanged(start, end);
+            Arrays.fill(block, (byte) 0);
+            for (int i = start; i < end; i++) {
+                intToByteArray(refs.getCount(i) - 1, block, (i - start) * 4);
+            }
+            blockWrite(countStart + start / ptrsPerBlock, 0, block, 0, blockSize);
+            blockId = rewriteMap ? end : refs.nextChanged(end);
+        }
+    }
+    
+    /**
+     * Stop using the journal and write straight to the device. What the 
+     * journal hasn't committed yet is thrown away, this is done before the
+     * content of the device is replaced.
+     */
+    private void dropJournal() {
+        if (journal != null) {
+            journal.discard();
+        }
+        journal = null;
+        blocks = device;
+    }
+    
+    /**
+     * @param numBlocks Number of blocks on the device.
+     * @return Size of the journal made by format(), 0 for devices too small 
+     * to have one.
+     */
+    private static int getDefaultJournalBlocks(int numBlocks) {
+        int result = Math.min(numBlocks / 16, 1024);
+        if (result < 2) {
+            result = 0;
+        }
+        return result;
+    }
+    
+    /**
+     * Start a transaction. The blocks changed until commitTransaction() are
+     * written to the journal together, so after a crash the file system 
+     * either has all of the changes or none of them. Transactions can be 
+     * nested.
+     */
+    public void beginTransaction() {
+        if (journal != null) {
+            journal.begin();
+        }
+    }
+    
+    /**
+     * End a transaction. Changed inodes are written to their blocks first.
+     * The transaction is only stored when its group is committed, see 
+     * Journal. Callers should call it in a finally block, a transaction that
+     * is never ended keeps the journal from committing on its own.
+     * @throws IOException If the device fails.
+     */
+    public void commitTransaction() throws IOException {
+        try {
+            flushInodes();
+            flushMap();
+        } finally {
+            if (journal != null) {
+                journal.commit();
+            }
+        }
+    }
+    
+    /**
+     * @return The journal, or null if the device has none.
+     */
+    public Journal getJournal() {
+        return journal;
+    }
+    
+    /**
+     * Find the blocks used by a file and, for folders, everything in it.
+     * @param inodeId Id of the file.
+     * @param used The blocks found are set. Blocks already set count as used
+     * twice.
+     * @param data The data blocks of extent and indexed files found are set.
+     * They may be shared by several files.
+     * @param counts Gets a reference for each data block found more than 
+     * once.
+     * @param problems Where to describe blocks that are used twice or out of
+     * range, or null.
+     */
+    private void walkTree(int inodeId, BitSet used, BitSet data, RefCountTable counts, 
+            ArrayList<String> problems) {
+        // A folder found twice is not walked again, the tree may have a loop
+        if (useBlock(inodeId, inodeId, used, problems)) {
+            Inode inode = readInode(inodeId);
+            if (inode.getLayout() == Inode.LAYOUT_EXTENTS) {
+                for (int e = 0; e < inode.getNumExtents(); e++) {
+                    int start = inode.getExtentStart(e);
+                    for (int i = start; i < start + inode.getExtentLength(e); i++) {
+                        useDataBlock(inodeId, i, used, data, counts, problems);
+                    }
+                }
+            } else if (inode.getLayout() == Inode.LAYOUT_INDEXED) {
+                int numBlocks = getIndexedBlockCount(inode);
+                for (int i = 0; i < numBlocks; i++) {
+                    useDataBlock(inodeId, getIndexedBlock(inode, i), used, data, counts, problems);
+                }
+                int single = inode.getBlockPtr(Inode.SINGLE_INDIRECT);
+                if (single != -1) {
+                    useBlock(inodeId, single, used, problems);
+                }
+                int dbl = inode.getBlockPtr(Inode.DOUBLE_INDIRECT);
+                if (dbl != -1 && useBlock(inodeId, dbl, used, problems)) {
+                    for (int j = 0; j < ptrsPerBlock; j++) {
+                        single = blockGetInt(dbl, j * 4);
+                        if (single != -1) {
+                            useBlock(inodeId, single, used, problems);
+                        }
+                    }
+                }
+            } else {
+                int blockId = inode.getDataPtr();
+                while (blockId != -1 && useBlock(inodeId, blockId, used, problems)) {
+                    blockId = getNextBlockId(blockId);
+                }
+            }
+
+            if (inode.getType() == Inode.TYPE_FOLDER) {
+                HashedFolder folder = new HashedFolder(this, inodeId);
+                for (HashedFolder.Entry entry : folder.getEntries()) {
+                    walkTree(entry.getInodeId(), used, data, counts, problems);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Set the bit of a block found by walkTree().
+     * @return false if the block was already found or is out of range.
+     */
+    private boolean useBlock(int inodeId, int blockId, BitSet used, ArrayList<String> problems) {
+        boolean result = false;
+        if (!isIdValid(blockId)) {
+            if (problems != null) {
+                problems.add("File " + inodeId + " points to block " + blockId 
+                        + ", which is out of range");
+            }
+        } else if (used.get(blockId)) {
+            if (problems != null) {
+                problems.add("Block " + blockId + " of file " + inodeId 
+                        + " is used more than once");
+            }
+        } else {
+            used.set(blockId);
+            result = true;
+        }
+        return result;
+    }
+    
+    /**
+     * Set the bit of a data block found by walkTree(). A data block found 
+     * again as a data block is shared and gets a reference.
+     */
+    private void useDataBlock(int inodeId, int blockId, BitSet used, BitSet data, 
+            RefCountTable counts, ArrayList<String> problems) {
+        if (isIdValid(blockId) && data.get(blockId)) {
+            counts.share(blockId);
+        } else if (useBlock(inodeId, blockId, used, problems)) {
+            data.set(blockId);
+        }
+    }
+    
+    /**
+     * Check that the file system is consistent: no block is used twice, 
+     * except data blocks shared by copies of a file as many times as their 
+     * reference count says, and the blocks marked as used are exactly the 
+     * ones reachable from the root folder, the superblock, the journal and 
+     * the map. Takes the namespace lock, so no names change while checking,
+     * but files being written by other threads can show up as problems.
+     * @return A description of each problem found, empty if there are none.
+     */
+    public ArrayList<String> check() {
+        ArrayList<String> problems = new ArrayList<String>();
+        namespaceLock.writeLock().lock();
+        try {
+            BitSet used = new BitSet(numBlocks);
+            if (rootId != SUPERBLOCK_ID) {
+                used.set(SUPERBLOCK_ID);
+            }
+            if (journal != null) {
+                used.set(journal.getStart(), journal.getStart() + journal.getLength());
+            }
+            used.set(mapStart, mapStart + mapBlocks);
+            RefCountTable counts = new RefCountTable(numBlocks);
+            walkTree(rootId, used, new BitSet(numBlocks), counts, problems);
+            for (int i = 0; i < numBlocks; i++) {
+                if (counts.getCount(i) != refs.getCount(i)) {
+                    problems.add("Block " + i + " is used by " + counts.getCount(i) 
+                            + " file(s) but has the reference count " + refs.getCount(i));
+                }
+                if (used.get(i) && allocator.isFree(i)) {
+                    problems.add("Block " + i + " is used but marked as free");
+                } else if (!used.get(i) && !allocator.isFree(i)) {
+                    problems.add("Block " + i + " is marked as used but not used by any file");
+                }
+            }
+        } finally {
+            namespaceLock.writeLock().unlock();
+        }
+        return problems;
+    }
+    
+    /**
+     * Write all changes to the device and make sure the device stores them.
+     * @throws IOException If the device fails.
+     */
+    public void sync() throws IOException {
+        flushInodes();
+        flushMap();
+        blocks.flush();
+    }
+    
+    /**
+     * Write all changes and release the device.
+     * @throws IOException If the device fails.
+     */
+    public void close() throws IOException {
+        ThreadPoolExecutor readahead;
+        synchronized (this) {
+            readahead = readaheadThread;
+        }
+        if (readahead != null) {
+            // Blocks not read ahead yet are skipped, a block being read ahead
+            // has to be read before the device closes. The thread isn't
+            // interrupted, that would close the channel of a FileBlockDevice.
+            readahead.getQueue().clear();
+            readahead.shutdown();
+            try {
+                readahead.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        flushInodes();
+        flushMap();
+        blocks.close();
+    }
+    
+    /**
+     * Take an unused block. The block is marked as used right away so that 
+     * two threads never get the same block, the caller has to release it if
+     * it ends up not being used.
+     * @return The ID of an empty block, or -1 if the disk is full.
+     */
+    private int getFreeBlock() {
+        statistics.addAllocatorCall();
+        Object event = Events.begin(EventSink.ALLOCATOR_SEARCH);
+        int from = event == null ? 0 : allocator.getCursor();
+        int result = allocator.allocate();
+        if (event != null) {
+            // Other threads may have moved the cursor meanwhile, then this is
+            // only roughly the number of blocks searched
+            int scanned = result == -1 ? numBlocks : (result - from + numBlocks) % numBlocks + 1;
+            Events.endAllocatorSearch(event, result, scanned, allocator.getFreeCount());
+        }
+        return result;
+    }
+    
+    /**
+     * Returns dataId of last the last folder in path.
+     * @param Path to look up.
+     * @return The id of the last folder if the path exists and -1 if it doesn't.
+     */
+    public int getFolderId(String[] path){
+        Object event = Events.begin(EventSink.PATH_RESOLUTION);
+        namespaceLock.readLock().lock();
+        try {
+         
+            // Init
+            boolean validPath = true;
+            int i = 0;
+            int folderId = rootId;
+        
+            // For each "path", or until "invalid path" is detected
+            while(i<path.length && validPath == true){
+                // Look up the name in the current folder
+                DentryCache.Dentry dentry = lookup(folderId, path[i]);
+            
+                // Check if path corresponds with one of the filenames in the folder
+                if(dentry.getInodeId() != -1)
+                {
+                    // Check if file is a folder
+                    folderId = dentry.getInodeId();
+                    if(dentry.getType() == Inode.TYPE_FOLDER){
+                        // Splendid! We found a folder. Now we just have to make
+                        // sure all of the remaining "path" is folders aswell
+                    }else {
+                        validPath = false;
+                    }
+                }else {
+                    validPath = false;
+                }
+                i++;
+            }
+
+            // If invalid path, return -1
+            if(validPath == false)
+            {
+                folderId = -1;
+            }
+            Events.endPathResolution(event, path.length, folderId != -1);
+            return folderId;
+        } finally {
+            namespaceLock.readLock().unlock();
+        }
+    }
+    
+    public HashedFolder getFolder(String[] path) {
+        HashedFolder folder = null;
+        int id = getFolderId(path);
+        if(id != -1){
+            folder = new HashedFolder(this, id);
+        }
+        return folder;
+    }
+    
+    public boolean appendToFile(String name, String[] path, byte[] newData) {
+        boolean result = false;
+        namespaceLock.readLock().lock();
+        try {
+            int workDirId = getFolderId(path);
+            int id = lockEntry(workDirId, name, true);
+            if (id != -1) {
+                try {
+                    // If file is not a folder, write new data after the old 
+                    // data. The lock keeps the size from changing meanwhile.
+                    if(isFolder(id) == false){
+                        Inode inode = readInode(id);
+                        result = writeFile(id, inode.getSize(), newData, 0, newData.length) != -1;
+                    }
+                } finally {
+                    locks.unlockEntry(workDirId, id, true);
+                }
+            }
+        } finally {
+            namespaceLock.readLock().unlock();
+        }
+        return result;
+    }
+    
+    /**
+     * Look up a file in a folder and lock it together with the read lock of
+     * the folder, so that the file isn't removed or renamed until the locks
+     * are released with locks.unlockEntry(). The caller has to hold the 
+     * namespace lock.
+     * @param folderId Id of the folder.
+     * @param fileName Name of the file.
+     * @param write true to take the write lock of the file.
+     * @return The id of the file, or -1 if there is no such file. Nothing is
+     * locked then.
+     */
+    private int lockEntry(int folderId, String fileName, boolean write) {
+        int id = -1;
+        boolean done = !isFolder(folderId);
+        while (!done) {
+            id = lookup(folderId, fileName).getInodeId();
+            if (id == -1) {
+                done = true;
+            } else {
+                // The name may have been removed before the locks were taken
+                locks.lockEntry(folderId, id, write);
+                done = lookup(folderId, fileName).getInodeId() == id;
+                if (!done) {
+                    locks.unlockEntry(folderId, id, write);
+                }
+            }
+        }
+        return id;
+    }
+    
+    public String mergeFiles(String[] srcPath, String[] dstPath) {
+        namespaceLock.writeLock().lock();
+        try {
+            String result = "";
+        
+            // Lookup source
+            HashedFolder srcFolder = getFolder(getFolderPath(srcPath));
+            if (srcFolder == null) {
+                result = "Source folder invalid";
+            } else {
+                if (srcPath.length < 1) {
+                    // This option should be prevented by "Shell.java" 
+                    result = "Corrupt source path";
+                } else {
+                    String srcName = srcPath[srcPath.length - 1];
+                    int scrId = srcFolder.getFileId(srcName);
+                    if (scrId == -1) {
+                        result = "No source file found";
+                    } else {
+                        if (isFolder(scrId)) {
+                            result = "No source file found";
+                        } else {
+
+                            // Lookup destination
+                            int dstFolderId = getFolderId(getFolderPath(dstPath));
+                            if (dstFolderId == -1) {
+                                result = "Destination folder invalid";
+                            } else {
+                                if (dstPath.length < 1) {
+                                    result = "Corrupt destination path"; // Relativly impossible to happen
+                                } else {
+                                    String dstName = dstPath[dstPath.length - 1];
+                                    HashedFolder dstFolder = new HashedFolder(this, dstFolderId);
+                                    if (dstFolder.isFileInFolder(dstName) == false) {
+                                        result = "No destination file found";
+                                    } else {
+                                        int dstId = dstFolder.getFileId(dstName);
+                                        if (isFolder(dstId)) {
+                                            result = "Destination has to be a file";
+                                        } else if (appendFile(scrId, dstId)) {
+                                            result = "File " + srcName + " appended to file " + dstName;
+
+                                            // Remove source, as it is now appended to destination
+                                            int srcFolderId = getFolderId(getFolderPath(srcPath));
+                                            removeFile(srcName, srcFolderId);
+                                        } else {
+                                            result = "Appending failed, disk full";
+                                        }
+                                    }
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        
+            // Did we succeed or not?
+            return result;
+        } finally {
+            namespaceLock.writeLock().unlock();
+        }
+    }
+    
+    public String mergeFiles(int scrId, int dstId) {
+        
+        return "";
+    }
+    
+    /**
+     * Add the content of one file to the end of another. Only the source and
+     * the end of the destination are touched, a block at a time.
+     * @param srcId Id of the file to read.
+     * @param dstId Id of the file to append to.
+     * @return false if the disk got full. The data that fit is kept.
+     */
+    private boolean appendFile(int srcId, int dstId) {
+        boolean result = true;
+        byte[] buffer = new byte[blockSize];
+        int srcSize = readInode(srcId).getSize();
+        long dstSize = readInode(dstId).getSize();
+        long offset = 0;
+        while (offset < srcSize && result) {
+            int n = readFile(srcId, offset, buffer, 0, buffer.length);
+            result = writeFile(dstId, dstSize + offset, buffer, 0, n) != -1;
+            offset += n;
+        }
+        return result;
+    }
+    
+    public String copy(String[] srcPath, String[] dstPath) {
+        namespaceLock.writeLock().lock();
+        try {
+            String result = "";
+        
+            /* NOTE TO SELF : Prolonged exposure to large "if else" statments could 
+             * result in, lack of sleep, hair loss, swearing, insanity and/or eye cancer.
+             */
+        
+            // Lookup source
+            HashedFolder srcFolder = getFolder(getFolderPath(srcPath));
+            if (srcFolder == null) {
+                result = "Source folder invalid";
+            } else {
+                if (srcPath.length < 1) {
+                    // This option should be prevented by "Shell.java" 
+                    result = "Corrupt source path";
+                } else {
+                    String srcName = srcPath[srcPath.length - 1];
+                    int scrId = srcFolder.getFileId(srcName);
+                    if (scrId == -1) {
+                        result = "No source file found";
+                    } else {
+                    
+                        // Lookup destination folder
+                        int dstFolderId = getFolderId(getFolderPath(dstPath));
+                        if (dstFolderId == -1) {
+                            result = "Destination folder invalid";
+                        } else {
+                            if (dstPath.length < 1) {
+                                result = "Corrupt destination path"; // Relativly impossible to happen
+                            } else {
+                                String dstName = dstPath[dstPath.length - 1];
+               
+                                // Lookup destination file name
+                                HashedFolder dstFolder = new HashedFolder(this, dstFolderId);
+                                if (dstFolder.isFileInFolder(dstName)) {
+                                    result = "Destination name already exist";
+                                } else {
+
+                                    // Perform copy
+                                    if (copyFile(srcName, dstName, scrId, dstFolderId)) {
+                                        result = "File copied";
+                                    } else {
+                                        result = "Copying failed";
+                                    } 
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        
+            // Did we succeed or not?
+            return result;
+        } finally {
+            namespaceLock.writeLock().unlock();
+        }
+    }
+    
+    public boolean copyFile(String scrName, int scrId, int dstFolderId) {
+        return copyFile(scrName, scrName, scrId, dstFolderId);
+    }
+    
+    public boolean copyFile(String scrName, String dstName, int scrId, int dstFolderId) {
+        boolean result = false;
+
+        // If source file is a folder
+        if (isFolder(scrId)) {
+            
+            // Create new folder in destination folder
+            int newFolderId = touchFile(dstName, true, dstFolderId);
+            if (newFolderId != -1) {
+                result = true;
+
+                // Fetch files in source
+                HashedFolder srcFolder = new HashedFolder(this, scrId);
+
+                // For every file, continue deep copying
+                for (HashedFolder.Entry entry : srcFolder.getEntries()) {
+                    result = copyFile(entry.getName(), entry.getInodeId(), newFolderId);
+                }
+            }
+        } else {
+            
+            // Create new file in destination folder
+            int dstId = touchFile(dstName, false, dstFolderId);
+            if (dstId != -1) {
+                // The new file shares the blocks of the source, which are 
+                // copied when one of them is written
+                Lock lock = locks.get(scrId).readLock();
+                lock.lock();
+                try {
+                    result = shareData(scrId, dstId);
+                } finally {
+                    lock.unlock();
+                }
+                if (!result) {
+                    removeFile(dstName, dstFolderId);
+                }
+            }
+        }
+        return result;
+    }
+    
+    public boolean rename(String oldName, String newName, String[] path) {
+        boolean result = false;
+        namespaceLock.readLock().lock();
+        try {
+            int workDirId = getFolderId(path);
+            if (workDirId != -1) {
+                Lock folderLock = locks.get(workDirId).writeLock();
+                folderLock.lock();
+                try {
+                    HashedFolder workDir = new HashedFolder(this, workDirId);
+                    result = workDir.rename(oldName, newName);
+                    dcache.invalidate(workDirId, oldName);
+                    dcache.invalidate(workDirId, newName);
+                } finally {
+                    folderLock.unlock();
+                }
+            }
+        } finally {
+            namespaceLock.readLock().unlock();
+        }
+        return result;
+    }
+    
+    /** Get just the folder path of a full path. 
+     * @param path The String array
+     * @return A String array containing all elements but the last one.
+     */
+    public String[] getFolderPath(String[] path) {
+        String[] folderPath = new String[0];
+        if (path.length > 0) {
+            folderPath = new String[path.length - 1];
+            System.arraycopy(path, 0, folderPath, 0, path.length - 1);
+        } 
+        return folderPath;
+    }
+    
+    public String[] getFileNames(String[] path) {
+        ArrayList<HashedFolder.Entry> entries = getEntries(path);
+        String[] names = new String[entries.size()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = entries.get(i).getName();
+        }
+        return names;
+    }
+    
+    /**
+     * Get the files in a folder. The folder is read under its lock since 
+     * it may be more than one block.
+     * @param path Path of the folder.
+     * @return The files, empty if the path doesn't exist.
+     */
+    private ArrayList<HashedFolder.Entry> getEntries(String[] path) {
+        ArrayList<HashedFolder.Entry> entries = new ArrayList<HashedFolder.Entry>();
+        namespaceLock.readLock().lock();
+        try {
+            int workDirId = getFolderId(path);
+            if (workDirId != -1) {
+                Lock lock = locks.get(workDirId).readLock();
+                lock.lock();
+                try {
+                    entries = new HashedFolder(this, workDirId).getEntries();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        } finally {
+            namespaceLock.readLock().unlock();
+        }
+        return entries;
+    }
+    
+    /**
+     * List a part of a folder. Call again with the returned cursor to get 
+     * the next part, so that a large folder can be listed without holding 
+     * all of it in memory. Files added or removed between the calls may or 
+     * may not be listed.
+     * @param path Path of the folder.
+     * @param cursor 0 to start from the beginning, else a cursor returned by
+     * the last call.
+     * @param limit Maximum number of files to add.
+     * @param entries Gets the files, in no special order.
+     * @return The cursor to continue from, or -1 if all files are listed or
+     * the path doesn't exist.
+     */
+    public long list(String[] path, long cursor, int limit, ArrayList<DirectoryEntry> entries) {
+        long result = -1;
+        ArrayList<HashedFolder.Entry> page = new ArrayList<HashedFolder.Entry>(limit);
+        namespaceLock.readLock().lock();
+        try {
+            int workDirId = getFolderId(path);
+            if (workDirId != -1) {
+                Lock lock = locks.get(workDirId).readLock();
+                lock.lock();
+                try {
+                    result = new HashedFolder(this, workDirId).list(cursor, limit, page);
+                    for (HashedFolder.Entry entry : page) {
+                        int size = readInode(entry.getInodeId()).getSize();
+                        entries.add(new DirectoryEntry(entry.getName(), isFolderEntry(entry), size));
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+        } finally {
+            namespaceLock.readLock().unlock();
+        }
+        return result;
+    }
+    
+    public int getNextBlockId(int blockId) {
+        int id = blockGetInt(blockId, blockSize-4);
+        return id;
+    }
+    
+    public String[] getFolderNames(String[] path) {
+        ArrayList<String> folders = new ArrayList<String>(); 
+        for (HashedFolder.Entry entry : getEntries(path)) {
+            if(isFolderEntry(entry) == true)
+                folders.add(entry.getName());
+        } 
+        return folders.toArray(new String[folders.size()]);
+    }
+    
+    public void setNextBlockId(int blockId, int nextBlockId) {
+        blockPutInt(blockId, blockSize-4, nextBlockId);
+    }
+    
+    public String[] getNonFolderNames(String[] path) {    
+        ArrayList<String> folders = new ArrayList<String>(); 
+        for (HashedFolder.Entry entry : getEntries(path)) {
+            if(isFolderEntry(entry) == false)
+                folders.add(entry.getName());
+        } 
+        return folders.toArray(new String[folders.size()]);
+    }
+    
+    /**
+     * See if a file is a folder
+     * @param fileId Id of the file.
+     * @return true if the file is a folder, otherwise false.
+     */
+    public boolean isFolder(int fileId) {
+        boolean result = false;
+
+        // If withing block range
+        if(isIdValid(fileId)) {
+
+            // Check if Inode is a folder
+            if (getInodeType(fileId) == Inode.TYPE_FOLDER) {
+                result = true;
+            }
+        }
+
+        //Return
+        return result;
+    }
+    
+    /**
+     * Checks whether the supplied file is a folder.
+     * @param fileName the file to look up
+     * @return true if a the supplied filename is a folder.
+     */
+    public boolean isFolder(String fileName, int folderId) {
+        DentryCache.Dentry dentry = lookup(folderId, fileName);
+        return dentry.getInodeId() != -1 && dentry.getType() == Inode.TYPE_FOLDER;
+    }
+    
+    /**
+     * Look up a name in a folder. The folder is only loaded if the name isn't
+     * in the dentry cache.
+     * @param folderId Id of the folder.
+     * @param fileName Name of the file.
+     * @return The entry of the file. Its inode id is -1 if there is no such 
+     * file.
+     */
+    private DentryCache.Dentry lookup(int folderId, String fileName) {
+        DentryCache.Dentry dentry = dcache.lookup(folderId, fileName);
+        if (dentry == null) {
+            // Held until the entry is cached, so that a change made to the 
+            // folder meanwhile isn't overwritten by the old entry
+            Lock lock = locks.get(folderId).readLock();
+            lock.lock();
+            try {
+                HashedFolder.Entry entry = new HashedFolder(this, folderId).lookup(fileName);
+                if (entry != null) {
+                    byte type = isFolderEntry(entry) ? Inode.TYPE_FOLDER : Inode.TYPE_FILE;
+                    dentry = dcache.put(folderId, fileName, entry.getInodeId(), type);
+                } else {
+                    dentry = dcache.putNegative(folderId, fileName);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        return dentry;
+    }
+    
+    /**
+     * @return The cache used when looking up names in folders, for its 
+     * counters.
+     */
+    public DentryCache getDentryCache() {
+        return dcache;
+    }
+    
+    /**
+     * Checks whether a file in a folder is a folder. Uses the type saved in 
+     * the folder and only reads the inode for folders saved by old versions.
+     * @param entry The folder entry of the file.
+     * @return true if the file is a folder.
+     */
+    private boolean isFolderEntry(HashedFolder.Entry entry) {
+        byte type = entry.getType();
+        boolean result;
+        if (type == FolderBlock.TYPE_UNKNOWN) {
+            result = isFolder(entry.getInodeId());
+        } else {
+            result = type == Inode.TYPE_FOLDER;
+        }
+        return result;
+    }
+    
+    /**
+     * Checks whether the block id is in range.
+     * @param blockId Which id to look up.
+     * @return true if in range.
+     */
+    public boolean isIdValid(int blockId) {
+        boolean result = false;
+        if((blockId < numBlocks) && (blockId >= 0))
+            result = true;
+        return result;
+    }
+    
+    /**
+     * Checks if a path is valid.
+     * @param path Path of folders.
+     * @return true if the path is valid;
+     */
+    public boolean isPathValid(String path[]) {
+        return getFolderId(path) != -1;
+    }
+    /**
+     * Read a file from the file system.
+     * @param fileId The ID of the file (the file inodes id).
      * @return A byte array of the data contained in the file. This is the 
      * actual data in array and not limited by block size
      */
-    public byte[] readFile(int fileId) {
-        byte[] data = null;
-        if (isIdValid(fileId)) {
-            int readBytes = 0;
-
-            Inode inode = new Inode(blockArray[fileId]);           
-            int blockId = inode.getDataPtr();
-            data = new byte[inode.getSize()];
-
-            boolean done = false;
-            while(!done){
-                int numOfBytesToRead = BLOCK_SIZE-4;
-                if(numOfBytesToRead >= data.length-readBytes)
-                    numOfBytesToRead = data.length-readBytes;
-                System.arraycopy(blockArray[blockId], 0, data, readBytes, numOfBytesToRead);
-                readBytes += numOfBytesToRead;
-
-                // Continue reading next block if data remains
-                if(readBytes < data.length){
-                    blockId = getNextBlockId(blockId);
+    public byte[] readFile(int fileId) {
+        locks.get(fileId).readLock().lock();
+        try {
+            byte[] data = null;
+            if (isIdValid(fileId)) {
+                Inode inode = readInode(fileId);           
+                data = new byte[inode.getSize()];
+                if (inode.getLayout() == Inode.LAYOUT_INDEXED) {
+                    // Reported as a read of a part of the file
+                    readFile(fileId, 0, data, 0, data.length);
+                } else {
+                    Object event = Events.begin(EventSink.BLOCK_READ);
+                    if (inode.getLayout() == Inode.LAYOUT_EXTENTS) {
+                        readExtents(inode, data);
+                    } else {
+                        readChain(inode, data);
+                    }
+                    Events.endBlocks(event, fileId, getBlockSpan(inode, 0, data.length), 
+                            data.length);
+                }
+            }
+            return data;
+        } finally {
+            locks.get(fileId).readLock().unlock();
+        }
+    }
+    
+    /**
+     * Read a part of a file. The block holding the offset is looked up 
+     * directly for indexed files, so reading from the middle of a file does 
+     * not have to go through the blocks before it.
+     * @param fileId The ID of the file (the file inodes id).
+     * @param offset Where in the file to start reading.
+     * @param dst Where to put the data.
+     * @param off Where in dst to put the data.
+     * @param len Max number of bytes to read.
+     * @return The number of bytes read, 0 if offset is at or past the end of
+     * the file and -1 if the file id or offset is invalid.
+     */
+    public int readFile(int fileId, long offset, byte[] dst, int off, int len) {
+        return readFile(fileId, offset, dst, off, len, null);
+    }
+    
+    /**
+     * Read a part of a file and tell a reader's readahead about it.
+     * @param readahead The reader's readahead, or null to not read ahead.
+     */
+    private int readFile(int fileId, long offset, byte[] dst, int off, int len, 
+            Readahead readahead) {
+        Object event = Events.begin(EventSink.BLOCK_READ);
+        locks.get(fileId).readLock().lock();
+        try {
+            int result = -1;
+            if (isIdValid(fileId) && offset >= 0) {
+                Inode inode = readInode(fileId);
+                int payload = getBlockPayload(inode);
+                int toRead = (int) Math.max(0, Math.min(len, inode.getSize() - offset));
+                int index = (int) (offset / payload);
+                int inBlock = (int) (offset % payload);
+            
+                int readBytes = 0;
+                int blockId = toRead > 0 ? getDataBlock(inode, index) : -1;
+                int first = index;
+                BufferCache cache = getCache();
+                boolean hit = cache == null || blockId == -1 || cache.isCached(blockId);
+                while (readBytes < toRead) {
+                    int numOfBytesToRead = Math.min(payload - inBlock, toRead - readBytes);
+                    blockRead(blockId, inBlock, dst, off + readBytes, numOfBytesToRead);
+                    readBytes += numOfBytesToRead;
+                    inBlock = 0;
+                    index++;
+                    if (readBytes < toRead) {
+                        blockId = getNextDataBlock(inode, index, blockId);
+                    }
+                }
+                if (readahead != null && readBytes > 0) {
+                    readAhead(fileId, readahead, first, index, hit, blockId);
+                }
+                result = readBytes;
+                Events.endBlocks(event, fileId, index - first, readBytes);
+            }
+            return result;
+        } finally {
+            locks.get(fileId).readLock().unlock();
+        }
+    }
+    
+    /**
+     * Tell a reader's readahead which blocks were read, and read ahead in the
+     * background if it says so. Only done if the device is a buffer cache, 
+     * there is nowhere to read ahead to otherwise.
+     * @param fileId The file.
+     * @param readahead The reader's readahead.
+     * @param first First block read, counted from the start of the file.
+     * @param last The block after the last block read.
+     * @param hit true if the first block was cached.
+     * @param lastBlockId Id of the last block read. A chain is followed from
+     * there.
+     */
+    private void readAhead(final int fileId, Readahead readahead, int first, final int last, 
+            boolean hit, final int lastBlockId) {
+        final BufferCache cache = getCache();
+        if (cache != null) {
+            int count = readahead.onRead(first, last, hit);
+            if (count > 0) {
+                final int end = readahead.getStart() + count;
+                getReadaheadThread().execute(new Runnable() {
+                    public void run() {
+                        prefetch(cache, fileId, last, lastBlockId, end);
+                    }
+                });
+            }
+        }
+    }
+    
+    private synchronized ThreadPoolExecutor getReadaheadThread() {
+        if (readaheadThread == null) {
+            readaheadThread = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, 
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "Readahead");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return readaheadThread;
+    }
+    
+    /**
+     * Read blocks of a file into the cache, on the readahead thread. Blocks
+     * next to each other on the device are read together. The file may have
+     * changed since the reader asked for it, so nothing is done if a writer 
+     * has the file's lock or the file is gone. Blocks that are cached already
+     * are skipped.
+     * @param cache The cache to read into.
+     * @param fileId The file.
+     * @param index Index of the block after the last one read.
+     * @param blockId Id of the last block read.
+     * @param end Index of the block after the last one to read.
+     */
+    private void prefetch(BufferCache cache, int fileId, int index, int blockId, int end) {
+        Lock lock = locks.get(fileId).readLock();
+        if (lock.tryLock()) {
+            try {
+                // Reading a removed inode would put the block in the table
+                if (inodes.isLoaded(fileId)) {
+                    Inode inode = inodes.get(fileId);
+                    int payload = getBlockPayload(inode);
+                    int numBlocks = (inode.getSize() + payload - 1) / payload;
+                    int runStart = -1;
+                    int runLength = 0;
+                    int i = index;
+                    while (i < Math.min(end, numBlocks) && isIdValid(blockId)) {
+                        blockId = getNextDataBlock(inode, i, blockId);
+                        if (runLength > 0 && blockId == runStart + runLength) {
+                            runLength++;
+                        } else {
+                            if (runLength > 0) {
+                                cache.prefetch(runStart, runLength);
+                            }
+                            runStart = blockId;
+                            runLength = isIdValid(blockId) ? 1 : 0;
+                        }
+                        i++;
+                    }
+                    if (runLength > 0) {
+                        cache.prefetch(runStart, runLength);
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+    
+    /**
+     * @param inode Inode of a file.
+     * @return How many bytes of file data each block of the file holds.
+     */
+    private int getBlockPayload(Inode inode) {
+        int payload = blockSize;
+        if (inode.getLayout() == Inode.LAYOUT_CHAIN) {
+            payload = blockSize - 4;
+        }
+        return payload;
+    }
+    
+    /**
+     * @return Number of data blocks holding a part of a file.
+     */
+    private int getBlockSpan(Inode inode, long offset, long len) {
+        int payload = getBlockPayload(inode);
+        return len <= 0 ? 0 : (int) ((offset + len - 1) / payload - offset / payload + 1);
+    }
+    
+    /**
+     * Find the block holding a part of a file.
+     * @param inode Inode of the file.
+     * @param index Which block of the file, counted from 0.
+     * @return The block id or -1 if the file has no such block.
+     */
+    private int getDataBlock(Inode inode, int index) {
+        int blockId = -1;
+        if (inode.getLayout() == Inode.LAYOUT_INDEXED) {
+            blockId = getIndexedBlock(inode, index);
+        } else if (inode.getLayout() == Inode.LAYOUT_EXTENTS) {
+            int e = 0;
+            while (e < inode.getNumExtents() && index >= inode.getExtentLength(e)) {
+                index -= inode.getExtentLength(e);
+                e++;
+            }
+            if (e < inode.getNumExtents()) {
+                blockId = inode.getExtentStart(e) + index;
+            }
+        } else {
+            blockId = inode.getDataPtr();
+            while (index > 0 && blockId != -1) {
+                blockId = getNextBlockId(blockId);
+                index--;
+            }
+        }
+        return blockId;
+    }
+    
+    /**
+     * Find the block following another block of a file. Cheaper than 
+     * getDataBlock() for chains since it doesn't start over from the 
+     * beginning.
+     * @param inode Inode of the file.
+     * @param index Which block of the file, counted from 0.
+     * @param prevBlockId The block id of block index-1.
+     * @return The block id or -1 if the file has no such block.
+     */
+    private int getNextDataBlock(Inode inode, int index, int prevBlockId) {
+        int blockId;
+        if (inode.getLayout() == Inode.LAYOUT_CHAIN) {
+            blockId = getNextBlockId(prevBlockId);
+        } else {
+            blockId = getDataBlock(inode, index);
+        }
+        return blockId;
+    }
+    
+    /**
+     * Read the data of a file stored as a linked list of blocks.
+     * @param inode Inode of the file.
+     * @param data Where to put the data. Has the size of the file.
+     */
+    private void readChain(Inode inode, byte[] data) {
+        int readBytes = 0;
+        int blockId = inode.getDataPtr();
+
+        boolean done = data.length == 0;
+        while(!done){
+            int numOfBytesToRead = blockSize-4;
+            if(numOfBytesToRead >= data.length-readBytes)
+                numOfBytesToRead = data.length-readBytes;
+            blockRead(blockId, 0, data, readBytes, numOfBytesToRead);
+            readBytes += numOfBytesToRead;
+
+            // Continue reading next block if data remains
+            if(readBytes < data.length){
+                blockId = getNextBlockId(blockId);
+            }
+               
+            else
+                done = true;          
+        }
+    }
+    
+    /**
+     * Read the data of a file stored in extents. Every block holds 
+     * blockSize bytes of data.
+     * @param inode Inode of the file.
+     * @param data Where to put the data. Has the size of the file.
+     */
+    private void readExtents(Inode inode, byte[] data) {
+        int readBytes = 0;
+        for (int e = 0; e < inode.getNumExtents() && readBytes < data.length; e++) {
+            int blockId = inode.getExtentStart(e);
+            int end = blockId + inode.getExtentLength(e);
+            while (blockId < end && readBytes < data.length) {
+                int numOfBytesToRead = Math.min(blockSize, data.length - readBytes);
+                blockRead(blockId, 0, data, readBytes, numOfBytesToRead);
+                readBytes += numOfBytesToRead;
+                blockId++;
+            }
+        }
+    }
+    
+    public String readTextFromFile(String fileName, String[] path) {
+        String text = "";
+        namespaceLock.readLock().lock();
+        try {
+            int workDirId = getFolderId(path);
+            int id = lockEntry(workDirId, fileName, false);
+            if (id == -1) {
+                text = "No such file";
+            }
+            else {
+                try {
+                    if(isFolder(id)) {
+                        text = "Can't read folder as text";
+                    } 
+                    else {
+                        byte[] data = readFile(id);
+                        text = "Content of file (size " + data.length + " bytes):\n"; 
+
+                        if(data.length>0)
+                            text = text + new String(data);
+                        else
+                            text = text + "<empty>";
+                    }
+                } finally {
+                    locks.unlockEntry(workDirId, id, false);
+                }
+            }
+        } finally {
+            namespaceLock.readLock().unlock();
+        }
+        return text;
+    }
+    
+    /**
+     * Write a file to a channel, for example a file on the real disk. The 
+     * blocks are handed to the channel straight from the device, 
+     * EXPORT_BATCH at a time with gathering writes, so the file is never 
+     * copied into memory.
+     * @param fileName Name of the file.
+     * @param path Path to the folder holding the file.
+     * @param channel Where to write the file, from its current position.
+     * @return Number of bytes written, or -1 if there is no such file or it
+     * is a folder.
+     * @throws IOException If writing to the channel fails.
+     */
+    public long exportFile(String fileName, String[] path, GatheringByteChannel channel) 
+            throws IOException {
+        long result = -1;
+        namespaceLock.readLock().lock();
+        try {
+            int workDirId = getFolderId(path);
+            int id = lockEntry(workDirId, fileName, false);
+            if (id != -1) {
+                try {
+                    if (isFolder(id) == false) {
+                        result = exportFile(id, channel);
+                    }
+                } finally {
+                    locks.unlockEntry(workDirId, id, false);
+                }
+            }
+        } finally {
+            namespaceLock.readLock().unlock();
+        }
+        return result;
+    }
+    
+    /**
+     * Write a file to a channel. The caller holds the lock of the file, so 
+     * the views of its blocks stay valid until they are written.
+     */
+    private long exportFile(int fileId, GatheringByteChannel channel) throws IOException {
+        Inode inode = readInode(fileId);
+        int payload = getBlockPayload(inode);
+        long size = inode.getSize();
+        ByteBuffer[] batch = new ByteBuffer[EXPORT_BATCH];
+        long queued = 0;
+        int index = 0;
+        int blockId = size > 0 ? getDataBlock(inode, 0) : -1;
+        int lastBlockId = blockId;
+        Readahead readahead = new Readahead();
+        BufferCache cache = getCache();
+        while (queued < size) {
+            int first = index;
+            boolean hit = cache == null || cache.isCached(blockId);
+            int n = 0;
+            while (n < batch.length && queued < size) {
+                int len = (int) Math.min(payload, size - queued);
+                batch[n] = blockView(blockId, 0, len);
+                lastBlockId = blockId;
+                n++;
+                queued += len;
+                index++;
+                if (queued < size) {
+                    blockId = getNextDataBlock(inode, index, blockId);
+                }
+            }
+            // The next batch is read while this one is written
+            readAhead(fileId, readahead, first, index, hit, lastBlockId);
+            // A channel may write less than it is given
+            while (batch[n - 1].hasRemaining()) {
+                channel.write(batch, 0, n);
+            }
+        }
+        return queued;
+    }
+    
+    /**
+     * Replace the content of a file with what can be read from a channel, 
+     * for example a file on the real disk. The channel is read IMPORT_BATCH
+     * blocks at a time and the file grows a batch at a time, so that is all
+     * that is held in memory. The file is locked until it is filled.
+     * @param fileName Name of the file.
+     * @param path Path to the folder holding the file.
+     * @param channel Where to read the content, until its end.
+     * @return Number of bytes read into the file, or -1 if there is no such
+     * file, it is a folder or the disk got full. The data that fit is kept.
+     * @throws IOException If reading from the channel fails.
+     */
+    public long importFile(String fileName, String[] path, ReadableByteChannel channel) 
+            throws IOException {
+        long result = -1;
+        namespaceLock.readLock().lock();
+        try {
+            int workDirId = getFolderId(path);
+            int id = lockEntry(workDirId, fileName, true);
+            if (id != -1) {
+                try {
+                    if (isFolder(id) == false && truncateFile(id, 0)) {
+                        result = importFile(id, channel);
+                    }
+                } finally {
+                    locks.unlockEntry(workDirId, id, true);
+                }
+            }
+        } finally {
+            namespaceLock.readLock().unlock();
+        }
+        return result;
+    }
+    
+    private long importFile(int fileId, ReadableByteChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(IMPORT_BATCH * blockSize);
+        long offset = 0;
+        boolean done = false;
+        while (!done) {
+            // Fill the buffer, a channel may return less than asked
+            buffer.clear();
+            int read = 0;
+            while (buffer.hasRemaining() && read != -1) {
+                read = channel.read(buffer);
+            }
+            if (buffer.position() > 0) {
+                done = writeFile(fileId, offset, buffer.array(), 0, buffer.position()) == -1;
+                offset += buffer.position();
+            }
+            if (done) {
+                offset = -1;
+            } else {
+                done = read == -1;
+            }
+        }
+        return offset;
+    }
+    
+    public boolean removeFile(String fileName, String[] path) {
+        int folderId = getFolderId(path);
+        boolean result = removeFile(fileName, folderId);
+        return result;
+    }
+
+    public boolean removeFile(String fileName, int folderId /*String[] path*/) {
+        boolean succees = false;
+        boolean tree = false;
+        boolean done = false;
+        while (!done) {
+            // Removing a folder removes a whole tree, which is done holding the
+            // namespace lock for writing. If the name turns out to be a folder
+            // when the locks are taken, start over with that lock.
+            Lock namespace = tree ? namespaceLock.writeLock() : namespaceLock.readLock();
+            namespace.lock();
+            try {
+                int id = -1;
+                boolean validFolder = isFolder(folderId);
+                if (validFolder) {
+                    id = lookup(folderId, fileName).getInodeId();
+                }
+                locks.lockWrite(folderId, id);
+                try {
+                    HashedFolder folder = new HashedFolder(this, folderId);
+                    HashedFolder.Entry entry = null;
+                    if (validFolder) {
+                        entry = folder.lookup(fileName);
+                    }
+                    if (!validFolder) {
+                        done = true;
+                    } else if ((entry == null ? -1 : entry.getInodeId()) != id) {
+                        // Changed before the locks were taken, try again
+                        dcache.invalidate(folderId, fileName);
+                    } else if (id != -1 && !tree && isFolderEntry(entry)) {
+                        tree = true;
+                    } else {
+                        done = true;
+                        
+                        // If file exist in parent folder
+                        if(id != -1){
+
+                            // If file is a folder
+                            if(isFolderEntry(entry)){
+                                // Empty folder 
+                                emptyFolder(id);
+                            }
+
+                            // Delete file and its inode from memory
+                            Inode inode = readInode(id);
+                            releaseData(inode);
+                            releaseSingleBlock(id);
+
+                            // Delete file from parent folder, only its leaf
+                            // is written
+                            succees = folder.removeFile(fileName);
+                            dcache.putNegative(folderId, fileName);
+                        }
+                    }
+                } finally {
+                    locks.unlockWrite(folderId, id);
+                }
+            } finally {
+                namespace.unlock();
+            }
+        }
+        return succees;
+    }
+    
+    /**
+     * Remove a folder contents, recursively
+     * @param folderId Id of the folder
+     * @return True if the folder contains subfolders.
+     */
+    public boolean emptyFolder(int folderId) {
+        namespaceLock.writeLock().lock();
+        try {
+            boolean result = false;
+        
+            HashedFolder folder = new HashedFolder(this, folderId);
+        
+            // For every file in folder
+            for (HashedFolder.Entry entry : folder.getEntries()) {
+                int id = entry.getInodeId();
+            
+                // If file is a folder
+                if(isFolderEntry(entry)){
+                
+                    // Empty sub-folder, recursively
+                    emptyFolder(id);
+                    result = true;
+                }
+            
+                // Delete file and its inode. Someone may still be writing to
+                // it through an open file.
+                Lock fileLock = locks.get(id).writeLock();
+                fileLock.lock();
+                try {
+                    Inode inode = readInode(id);
+                    releaseData(inode);
+                    releaseSingleBlock(id);
+                } finally {
+                    fileLock.unlock();
+                }
+            }
+        
+            // Remove all files from the folder at once
+            folder.clear();
+        
+            // The names are gone, and the ids of removed folders can be reused
+            dcache.invalidateFolder(folderId);
+        
+            return result;
+        } finally {
+            namespaceLock.writeLock().unlock();
+        }
+    }
+    
+    
+    /**
+     * Sets the block, and all of the blocks it points to via its nextBlock, 
+     * nextBlock to -1. This is done to prepare the block for new data.
+     * @param dataId 
+     */
+    public void releaseBlock(int blockId){
+        boolean freeNextBlock = false;
+        int nextBlockId = getNextBlockId(blockId);
+        if(nextBlockId != -1)
+            freeNextBlock = true;
+        
+        // Set next block id to -1
+        setNextBlockId(blockId, -1);
+        allocator.markFree(blockId);
+        inodes.remove(blockId);
+        
+        //Release next block if any
+        if(freeNextBlock)
+            releaseBlock(nextBlockId);
+    }
+    
+    /**
+     * Releases the data blocks of a file, but not its inode block.
+     * @param inode Inode of the file.
+     */
+    private void releaseData(Inode inode) {
+        if (inode.getLayout() == Inode.LAYOUT_EXTENTS) {
+            truncateExtents(inode, 0);
+        } else if (inode.getLayout() == Inode.LAYOUT_INDEXED) {
+            truncateIndexed(inode, 0, getIndexedBlockCount(inode));
+        } else if (inode.getDataPtr() != -1) {
+            releaseBlock(inode.getDataPtr());
+        }
+    }
+    
+    /**
+     * 'Touches' a file. Creates a inode in the given folder and gives it the
+     * supplied file name. If the file doesn't already exist.
+     * @param fileName Name of the file.
+     * @param asFolder If the file is going to be a folder.
+     * @param path Path to the folder where you want to create the file.
+     * @return -1 if the path is invalid or if the file already exists. 
+     * Otherwise its fileId (the inode id). 
+     */
+    public int touchFile(String fileName, boolean asFolder, String[] path) {
+        namespaceLock.readLock().lock();
+        try {
+            int result = -1;
+            int workDirId = getFolderId(path);
+            if(workDirId != -1) {
+                result = touchFile(fileName, asFolder, workDirId);
+            }
+            return result;
+        } finally {
+            namespaceLock.readLock().unlock();
+        }
+    }
+    
+    public int touchFile(String fileName, boolean asFolder, int folderId) {
+        int result = -1;
+        namespaceLock.readLock().lock();
+        Lock folderLock = locks.get(folderId).writeLock();
+        folderLock.lock();
+        try {
+            HashedFolder folder = new HashedFolder(this, folderId);
+            int inodeBlock = -1;
+            if (isFolder(folderId) && folder.isNameValid(fileName) 
+                    && folder.lookup(fileName) == null) {
+                inodeBlock = getFreeBlock();
+            }
+            if (inodeBlock != -1) {
+                // Folders are read a block at a time from the middle
+                Inode inode = new Inode(blockSize, asFolder, Inode.LAYOUT_EXTENTS);
+                inode.setSize(0);
+
+                // Save inode so writeFile() can find it. Nobody else can see
+                // the file yet, so it needs no lock.
+                writeInode(inodeBlock, inode);
+
+                // If folder, create and save an empty folder. Without it 
+                // the folder couldn't be read, so it must fit too.
+                boolean written = !asFolder 
+                        || writeData(inodeBlock, HashedFolder.empty(blockSize));
+
+                // Add the new file to the folder, only the leaf it goes to 
+                // is written
+                byte type = asFolder ? Inode.TYPE_FOLDER : Inode.TYPE_FILE;
+                if (written && folder.addFile(inodeBlock, fileName, type)) {
+                    dcache.put(folderId, fileName, inodeBlock, type);
+
+                    // Return the access ID to the new file  
+                    result = inodeBlock;
+                } else {
+                    // The disk is full
+                    releaseData(readInode(inodeBlock));
+                    releaseSingleBlock(inodeBlock);
+                }
+            }
+        } finally {
+            folderLock.unlock();
+            namespaceLock.readLock().unlock();
+        }
+        return result;
+    }
+    
+    /**
+     * Change an inode. It is kept in the inode table and written to its block
+     * by flushInodes().
+     * @param blockId The inode id.
+     * @param inode The new inode.
+     */
+    public void writeInode(int blockId, Inode inode) {
+        if(isIdValid(blockId)){
+            inodes.put(blockId, inode);
+            allocator.markUsed(blockId);
+        }     
+    }
+    
+    /**
+     * Get an inode. It is decoded from its block the first time, after that
+     * it comes from the inode table.
+     * @param blockId The inode id.
+     * @return A copy of the inode, changes have to be saved with writeInode().
+     */
+    public Inode readInode(int blockId) {
+        loadInode(blockId);
+        return inodes.get(blockId);
+    }
+    
+    private void loadInode(int blockId) {
+        if (!inodes.isLoaded(blockId)) {
+            byte[] block = new byte[blockSize];
+            blockRead(blockId, 0, block, 0, blockSize);
+            inodes.load(blockId, block);
+        }
+    }
+    
+    /**
+     * @param blockId The inode id.
+     * @return Inode.TYPE_FILE or Inode.TYPE_FOLDER.
+     */
+    private byte getInodeType(int blockId) {
+        loadInode(blockId);
+        return inodes.getType(blockId);
+    }
+    
+    /**
+     * Write all changed inodes to their blocks.
+     */
+    public void flushInodes() {
+        // Holding the table keeps other threads from changing an inode 
+        // between writing it and clearing its dirty bit
+        synchronized (inodes) {
+            for (int id = inodes.nextDirty(0); id >= 0; id = inodes.nextDirty(id + 1)) {
+                blockWrite(id, 0, inodes.get(id).save(), 0, blockSize);
+                // An inode block is not part of a chain. Without this the next
+                // block id would read as 0 and releaseBlock() would free 
+                // block 0.
+                setNextBlockId(id, -1);
+                inodes.clearDirty(id);
+            }
+        }
+    }
+    
+    /**
+     * Write a byte array to disk. Not affected by block size. This allocates, 
+     * deallocates blocks as needed by itself
+     * @param inodeId The id of the the file which is going to be written (its 
+     * inode id)
+     * @param data A byte array of data. The size of the array doesn't have to 
+     * be the same as the block size 
+     * @return True if successful.
+     */
+    public boolean writeFile(int inodeId, byte[] data) {
+        boolean result;
+        Object event = Events.begin(EventSink.BLOCK_WRITE);
+        Lock lock = locks.get(inodeId).writeLock();
+        lock.lock();
+        try {
+            result = writeData(inodeId, data);
+            if (event != null && result) {
+                Events.endBlocks(event, inodeId, 
+                        getBlockSpan(readInode(inodeId), 0, data.length), data.length);
+            }
+        } finally {
+            lock.unlock();
+        }
+        return result;
+    }
+    
+    /**
+     * writeFile() for callers that already have the file to themselves.
+     */
+    private boolean writeData(int inodeId, byte[] data) {
+        boolean result = false;
+        if (isIdValid(inodeId)) {
+            Inode inode = readInode(inodeId);
+            int oldSize = inode.getSize();
+            if (!unshare(inode, 0, data.length)) {
+                result = false;
+            } else if (inode.getLayout() == Inode.LAYOUT_EXTENTS) {
+                result = writeExtents(inodeId, inode, data);
+                
+                // The file is too fragmented for the extent table. Switch to
+                // an index if there seems to be room for the data and 
+                // indirect blocks, other threads may still take them first.
+                int numBlocks = (data.length + blockSize - 1) / blockSize;
+                int missing = numBlocks - getExtentBlockCount(inode);
+                if (!result && numBlocks <= maxIndexedBlocks && 
+                        allocator.getFreeCount() >= missing + getIndirectBlockCount(numBlocks)
+                        && convertToIndexed(inode)) {
+                    result = writeIndexed(inodeId, inode, data);
+                }
+            } else if (inode.getLayout() == Inode.LAYOUT_INDEXED) {
+                result = writeIndexed(inodeId, inode, data);
+            } else {
+                result = writeChain(inodeId, inode, data);
+            }
+            if (!result) {
+                keepBlocks(inodeId, inode, oldSize);
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Save a file after a write that ran out of space. The blocks unshare() 
+     * copied and the indirect blocks of a switch to an index already belong
+     * to the inode, they are lost if it isn't saved.
+     * @param inodeId The id of the file.
+     * @param inode Inode of the file.
+     * @param oldSize The size before the write, the content is unchanged.
+     */
+    private void keepBlocks(int inodeId, Inode inode, int oldSize) {
+        inode.setSize(oldSize);
+        writeInode(inodeId, inode);
+    }
+    
+    /**
+     * Write a part of a file. Only the blocks covering the written range are
+     * touched, the file grows if needed. If offset is past the end of the 
+     * file the gap is filled with zeros.
+     * @param inodeId The id of the file (its inode id).
+     * @param offset Where in the file to start writing.
+     * @param src The data to write.
+     * @param off Where in src the data starts.
+     * @param len Number of bytes to write.
+     * @return The number of bytes written or -1 if the file id is invalid or
+     * the disk is full.
+     */
+    public int writeFile(int inodeId, long offset, byte[] src, int off, int len) {
+        Object event = Events.begin(EventSink.BLOCK_WRITE);
+        locks.get(inodeId).writeLock().lock();
+        try {
+            int result = -1;
+            if (isIdValid(inodeId) && offset >= 0 && offset + len <= Integer.MAX_VALUE) {
+                Inode inode = readInode(inodeId);
+                int oldSize = inode.getSize();
+                int newSize = (int) Math.max(oldSize, offset + len);
+                // Zeros are written from the old end if offset is past it
+                if (unshare(inode, Math.min(offset, oldSize), offset + len)
+                        && resizeFile(inode, newSize)) {
+                    if (offset > oldSize) {
+                        writeRange(inode, oldSize, null, 0, (int) (offset - oldSize));
+                    }
+                    writeRange(inode, offset, src, off, len);
+                    inode.setSize(newSize);
+                    writeInode(inodeId, inode);
+                    result = len;
+                    Events.endBlocks(event, inodeId, getBlockSpan(inode, offset, len), len);
+                } else {
+                    keepBlocks(inodeId, inode, oldSize);
+                }
+            }
+            return result;
+        } finally {
+            locks.get(inodeId).writeLock().unlock();
+        }
+    }
+    
+    /**
+     * Change the size of a file. Blocks past the new end are released. When 
+     * growing, the new part of the file reads as zeros.
+     * @param inodeId The id of the file (its inode id).
+     * @param size The new size.
+     * @return false if the file id is invalid or the disk is full.
+     */
+    public boolean truncateFile(int inodeId, long size) {
+        locks.get(inodeId).writeLock().lock();
+        try {
+            boolean result = false;
+            if (isIdValid(inodeId) && size >= 0 && size <= Integer.MAX_VALUE) {
+                Inode inode = readInode(inodeId);
+                int oldSize = inode.getSize();
+                if (unshare(inode, oldSize, size) && resizeFile(inode, (int) size)) {
+                    if (size > oldSize) {
+                        writeRange(inode, oldSize, null, 0, (int) (size - oldSize));
+                    }
+                    inode.setSize((int) size);
+                    writeInode(inodeId, inode);
+                    result = true;
+                } else {
+                    keepBlocks(inodeId, inode, oldSize);
+                }
+            }
+            return result;
+        } finally {
+            locks.get(inodeId).writeLock().unlock();
+        }
+    }
+    
+    /**
+     * Copy data into the blocks of a file. The blocks must already exist.
+     * @param inode Inode of the file.
+     * @param offset Where in the file to start writing.
+     * @param src The data to write, or null to write zeros.
+     * @param off Where in src the data starts.
+     * @param len Number of bytes to write.
+     */
+    private void writeRange(Inode inode, long offset, byte[] src, int off, int len) {
+        int payload = getBlockPayload(inode);
+        int index = (int) (offset / payload);
+        int inBlock = (int) (offset % payload);
+        
+        int writtenBytes = 0;
+        int blockId = len > 0 ? getDataBlock(inode, index) : -1;
+        while (writtenBytes < len) {
+            int numOfBytesToWrite = Math.min(payload - inBlock, len - writtenBytes);
+            if (src == null) {
+                blockClear(blockId, inBlock, numOfBytesToWrite);
+            } else {
+                blockWrite(blockId, inBlock, src, off + writtenBytes, numOfBytesToWrite);
+            }
+            writtenBytes += numOfBytesToWrite;
+            inBlock = 0;
+            index++;
+            if (writtenBytes < len) {
+                blockId = getNextDataBlock(inode, index, blockId);
+            }
+        }
+    }
+    
+    /**
+     * Give a file its own copy of the data blocks in a range that it shares
+     * with other files, so that the range can be written. Extents can't 
+     * replace a single block in the middle of a run, so a file stored in 
+     * extents is turned into an indexed file when it has a shared block. 
+     * Does not save the inode.
+     * @param inode Inode of the file.
+     * @param start Where in the file the range starts.
+     * @param end Where the range ends. Blocks past the end of the file are 
+     * ignored.
+     * @return false if the disk is full. The blocks copied so far are kept.
+     */
+    private boolean unshare(Inode inode, long start, long end) {
+        boolean result = true;
+        if (inode.getLayout() != Inode.LAYOUT_CHAIN && start < end) {
+            int numBlocks = (inode.getSize() + blockSize - 1) / blockSize;
+            int last = (int) Math.min(numBlocks - 1, (end - 1) / blockSize);
+            byte[] buffer = null;
+            for (int i = (int) (start / blockSize); i <= last && result; i++) {
+                int blockId = getDataBlock(inode, i);
+                if (refs.isShared(blockId)) {
+                    if (inode.getLayout() == Inode.LAYOUT_EXTENTS) {
+                        result = numBlocks <= maxIndexedBlocks && 
+                                allocator.getFreeCount() > getIndirectBlockCount(numBlocks);
+                        if (result) {
+                            int size = inode.getSize();
+                            result = convertToIndexed(inode);
+                            inode.setSize(size);
+                        }
+                    }
+                    int copy = result ? getFreeBlock() : -1;
+                    if (copy == -1) {
+                        result = false;
+                    } else {
+                        if (buffer == null) {
+                            buffer = new byte[blockSize];
+                        }
+                        blockRead(blockId, 0, buffer, 0, blockSize);
+                        blockWrite(copy, 0, buffer, 0, blockSize);
+                        setIndexedBlock(inode, i, copy);
+                        releaseSingleBlock(blockId);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Make a file use the same data blocks as another file, which then are 
+     * shared until one of the files writes to them. Files stored as chains 
+     * are copied instead. The caller holds the lock of the source.
+     * @param srcId Id of the file to copy.
+     * @param dstId Id of an empty file, nobody else may know of it yet.
+     * @return false if the disk is full.
+     */
+    private boolean shareData(int srcId, int dstId) {
+        boolean result = true;
+        Inode src = readInode(srcId);
+        Inode dst = readInode(dstId);
+        if (src.getLayout() == Inode.LAYOUT_CHAIN) {
+            result = writeData(dstId, readFile(srcId));
+        } else if (src.getLayout() == Inode.LAYOUT_EXTENTS) {
+            // Same extent table, the new file has as many slots
+            dst.setLayout(Inode.LAYOUT_EXTENTS);
+            for (int e = 0; e < src.getNumExtents(); e++) {
+                int start = src.getExtentStart(e);
+                int length = src.getExtentLength(e);
+                dst.addExtent(start, length);
+                for (int i = start; i < start + length; i++) {
+                    refs.share(i);
+                }
+            }
+        } else {
+            // The indirect blocks are the file's own, only the data is shared
+            dst.setNumExtents(0);
+            dst.setLayout(Inode.LAYOUT_INDEXED);
+            int numBlocks = getIndexedBlockCount(src);
+            int i = 0;
+            while (i < numBlocks && result) {
+                int blockId = getIndexedBlock(src, i);
+                result = setIndexedBlock(dst, i, blockId);
+                if (result) {
+                    refs.share(blockId);
+                    i++;
+                }
+            }
+            if (!result) {
+                truncateIndexed(dst, 0, i);
+            }
+        }
+        if (result && src.getLayout() != Inode.LAYOUT_CHAIN) {
+            dst.setSize(src.getSize());
+            writeInode(dstId, dst);
+        }
+        return result;
+    }
+    
+    /**
+     * Give a file exactly the blocks it needs to hold a number of bytes, in 
+     * any layout. Does not touch the data or the size and does not save the 
+     * inode.
+     * @param inode Inode of the file.
+     * @param size Size of the file in bytes.
+     * @return false if the disk is full. The file keeps its old blocks then.
+     */
+    private boolean resizeFile(Inode inode, int size) {
+        boolean result;
+        int payload = getBlockPayload(inode);
+        int numBlocks = (size + payload - 1) / payload;
+        if (inode.getLayout() == Inode.LAYOUT_EXTENTS) {
+            result = resizeExtents(inode, numBlocks);
+            
+            // Same as writeFile(), switch to an index when out of extents
+            int missing = numBlocks - getExtentBlockCount(inode);
+            if (!result && numBlocks <= maxIndexedBlocks && 
+                    allocator.getFreeCount() >= missing + getIndirectBlockCount(numBlocks)
+                    && convertToIndexed(inode)) {
+                result = resizeIndexed(inode, numBlocks);
+            }
+        } else if (inode.getLayout() == Inode.LAYOUT_INDEXED) {
+            result = resizeIndexed(inode, numBlocks);
+        } else {
+            result = resizeChain(inode, numBlocks);
+        }
+        return result;
+    }
+    
+    /**
+     * Grow or shrink the linked list of blocks of a file. Does not save the
+     * inode.
+     * @param inode Inode of the file.
+     * @param numBlocks Number of blocks the file should have.
+     * @return false if the disk is full. The file keeps its old blocks then.
+     */
+    private boolean resizeChain(Inode inode, int numBlocks) {
+        boolean result = true;
+        if (numBlocks == 0) {
+            if (inode.getDataPtr() != -1) {
+                releaseBlock(inode.getDataPtr());
+                inode.setDataPtr(-1);
+            }
+        } else {
+            int oldDataPtr = inode.getDataPtr();
+            int blockId = oldDataPtr;
+            if (blockId == -1) {
+                blockId = getFreeBlock();
+                if (blockId != -1) {
+                    inode.setDataPtr(blockId);
+                }
+            }
+            
+            // Walk to the new last block, adding blocks to the end if needed
+            int lastOldBlock = -1;
+            int count = 1;
+            while (count < numBlocks && blockId != -1) {
+                int nextBlockId = getNextBlockId(blockId);
+                if (nextBlockId == -1) {
+                    if (lastOldBlock == -1) {
+                        lastOldBlock = blockId;
+                    }
+                    nextBlockId = getFreeBlock();
+                    if (nextBlockId != -1) {
+                        setNextBlockId(blockId, nextBlockId);
+                    }
+                }
+                blockId = nextBlockId;
+                count++;
+            }
+            
+            if (blockId == -1) {
+                // Out of space. Release what was added.
+                result = false;
+                if (oldDataPtr == -1) {
+                    if (inode.getDataPtr() != -1) {
+                        releaseBlock(inode.getDataPtr());
+                    }
+                    inode.setDataPtr(-1);
+                } else if (lastOldBlock != -1 && getNextBlockId(lastOldBlock) != -1) {
+                    releaseBlock(getNextBlockId(lastOldBlock));
+                    setNextBlockId(lastOldBlock, -1);
+                }
+            } else if (getNextBlockId(blockId) != -1) {
+                // Release the blocks after the new end
+                releaseBlock(getNextBlockId(blockId));
+                setNextBlockId(blockId, -1);
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Write the data of a file stored as a linked list of blocks. The chain
+     * is resized first, so if the disk is full nothing is written.
+     * @param inodeId The id of the file.
+     * @param inode Inode of the file.
+     * @param data The new content of the file.
+     * @return True if successful, false if the disk is full. The file keeps 
+     * its old blocks then.
+     */
+    private boolean writeChain(int inodeId, Inode inode, byte[] data) {
+        // Even an empty file has a block
+        int payload = getBlockPayload(inode);
+        int numBlocks = Math.max(1, (data.length + payload - 1) / payload);
+        boolean result = resizeChain(inode, numBlocks);
+        if (result) {
+            inode.setSize(data.length);
+            writeRange(inode, 0, data, 0, data.length);
+            writeInode(inodeId, inode);
+        }
+        return result;
+    }
+    
+    /**
+     * Write the data of a file stored in extents. The extents are grown or 
+     * shrunk to fit the data and then filled a block at a time.
+     * @param inodeId The id of the file.
+     * @param inode Inode of the file.
+     * @param data The new content of the file.
+     * @return True if successful, false if the disk is full or the file is 
+     * too fragmented to fit in the extent table. The file is unchanged then.
+     */
+    private boolean writeExtents(int inodeId, Inode inode, byte[] data) {
+        boolean result = false;
+        int numBlocks = (data.length + blockSize - 1) / blockSize;
+        if (resizeExtents(inode, numBlocks)) {
+            int writtenBytes = 0;
+            for (int e = 0; e < inode.getNumExtents() && writtenBytes < data.length; e++) {
+                int blockId = inode.getExtentStart(e);
+                int end = blockId + inode.getExtentLength(e);
+                while (blockId < end && writtenBytes < data.length) {
+                    int numOfBytesToWrite = Math.min(blockSize, data.length - writtenBytes);
+                    blockWrite(blockId, 0, data, writtenBytes, numOfBytesToWrite);
+                    writtenBytes += numOfBytesToWrite;
+                    blockId++;
+                }
+            }
+            inode.setSize(data.length);
+            writeInode(inodeId, inode);
+            result = true;
+        }
+        return result;
+    }
+    
+    /**
+     * Count the blocks in the extents of a file.
+     * @param inode Inode of the file.
+     * @return Number of data blocks.
+     */
+    private int getExtentBlockCount(Inode inode) {
+        int count = 0;
+        for (int e = 0; e < inode.getNumExtents(); e++) {
+            count += inode.getExtentLength(e);
+        }
+        return count;
+    }
+    
+    /**
+     * Grow or shrink the extents of a file to a number of blocks. When 
+     * growing, the last extent is extended in place if the blocks after it are
+     * free, otherwise new runs are taken from the allocator. Does not save the
+     * inode.
+     * @param inode Inode of the file.
+     * @param numBlocks Number of data blocks the file should have.
+     * @return false if there were not enough blocks or extent slots. The 
+     * extents are left as they were then.
+     */
+    private boolean resizeExtents(Inode inode, int numBlocks) {
+        boolean result = true;
+        int oldNumBlocks = getExtentBlockCount(inode);
+        if (numBlocks < oldNumBlocks) {
+            truncateExtents(inode, numBlocks);
+        } else {
+            int missing = numBlocks - oldNumBlocks;
+            while (missing > 0 && result) {
+                // The blocks are taken from the allocator before they are 
+                // added to the inode, so other threads can't get them too
+                int last = inode.getNumExtents() - 1;
+                int length = 0;
+                if (last >= 0) {
+                    int end = inode.getExtentStart(last) + inode.getExtentLength(last);
+                    if (isIdValid(end)) {
+                        statistics.addAllocatorCall();
+                        length = allocator.allocateRun(end, missing);
+                    }
+                }
+                if (length > 0) {
+                    inode.setExtentLength(last, inode.getExtentLength(last) + length);
+                    missing -= length;
+                } else {
+                    statistics.addAllocatorCall();
+                    BlockRun run = allocator.allocate(missing);
+                    if (run == null) {
+                        result = false;
+                    } else {
+                        result = inode.addExtent(run.getStart(), run.getLength());
+                        if (result) {
+                            missing -= run.getLength();
+                        } else {
+                            allocator.free(run);
+                        }
+                    }
                 }
-                   
-                else
-                    done = true;          
+            }
+            
+            // Give back what was taken if we ran out of space
+            if (!result) {
+                truncateExtents(inode, oldNumBlocks);
             }
         }
-        return data;
+        return result;
     }
     
-    public String readTextFromFile(String fileName, String[] path) {
-        String text = "";
-        int workDirId = getFolderId(path);
-        FolderBlock workDir = FolderBlock.load(readFile(workDirId));
-        int id = workDir.getFileId(fileName);
-        if (id == -1) {
-            text = "No such file";
-        }
-		else if(isFolder(id)) {
-			text = "Can't read folder as text";
-		} 
-		else {
-            byte[] data = readFile(id);
-            text = "Content of file (size " + data.length + " bytes):\n"; 
-            
-            if(data.length>0)
-                text = text + new String(data);
-            else
-                text = text + "<empty>";
+    /**
+     * Free the blocks at the end of a file stored in extents. Does not save 
+     * the inode.
+     * @param inode Inode of the file.
+     * @param numBlocks Number of data blocks to keep.
+     */
+    private void truncateExtents(Inode inode, int numBlocks) {
+        int kept = 0;
+        int numExtents = 0;
+        for (int e = 0; e < inode.getNumExtents(); e++) {
+            int start = inode.getExtentStart(e);
+            int length = inode.getExtentLength(e);
+            int keep = Math.min(length, numBlocks - kept);
+            for (int i = start + keep; i < start + length; i++) {
+                releaseSingleBlock(i);
+            }
+            if (keep > 0) {
+                inode.setExtentLength(e, keep);
+                numExtents++;
+            }
+            kept += keep;
         }
-        return text;
+        inode.setNumExtents(numExtents);
     }
     
-    public boolean removeFile(String fileName, String[] path) {
-        int folderId = getFolderId(path);
-        boolean result = removeFile(fileName, folderId);
+    /**
+     * Free a single block that isn't part of a chain. A data block shared 
+     * with other files only loses a reference.
+     * @param blockId Which block.
+     */
+    private void releaseSingleBlock(int blockId) {
+        if (refs.release(blockId)) {
+            // The chain format expects free blocks to have no next block
+            setNextBlockId(blockId, -1);
+            allocator.markFree(blockId);
+            // If it held an inode, it must not be written back later
+            inodes.remove(blockId);
+        }
+    }
+    
+    /**
+     * Write the data of a file stored with an index. 
+     * @param inodeId The id of the file.
+     * @param inode Inode of the file.
+     * @param data The new content of the file.
+     * @return True if successful, false if the disk is full or the file is 
+     * too big. The file is unchanged then.
+     */
+    private boolean writeIndexed(int inodeId, Inode inode, byte[] data) {
+        boolean result = false;
+        int numBlocks = (data.length + blockSize - 1) / blockSize;
+        if (resizeIndexed(inode, numBlocks)) {
+            int writtenBytes = 0;
+            for (int i = 0; i < numBlocks; i++) {
+                int numOfBytesToWrite = Math.min(blockSize, data.length - writtenBytes);
+                blockWrite(getIndexedBlock(inode, i), 0, data, writtenBytes, numOfBytesToWrite);
+                writtenBytes += numOfBytesToWrite;
+            }
+            inode.setSize(data.length);
+            writeInode(inodeId, inode);
+            result = true;
+        }
         return result;
     }
-
-    public boolean removeFile(String fileName, int folderId /*String[] path*/) {
-        boolean succees = false;
-        FolderBlock folder = FolderBlock.load(readFile(folderId));
-        int id = folder.getFileId(fileName);
-        
-        // If file exist in parent folder
-        if(id != -1){
-            
-            // If file is a folder
-            if(isFolder(id)){
-                // Empty folder 
-                FolderBlock subFolder = FolderBlock.load(readFile(id));
-                emptyFolder(id);
+    
+    /**
+     * @param inode Inode of an indexed file.
+     * @return Number of data blocks the file has.
+     */
+    private int getIndexedBlockCount(Inode inode) {
+        return (inode.getSize() + blockSize - 1) / blockSize;
+    }
+    
+    /**
+     * @param numBlocks Number of data blocks in a file.
+     * @return How many indirect blocks an indexed file of that size needs.
+     */
+    private int getIndirectBlockCount(int numBlocks) {
+        int count = 0;
+        int rest = numBlocks - Inode.NUM_DIRECT;
+        if (rest > 0) {
+            count = 1;
+            rest -= ptrsPerBlock;
+        }
+        if (rest > 0) {
+            count += 1 + (rest + ptrsPerBlock - 1) / ptrsPerBlock;
+        }
+        return count;
+    }
+    
+    /**
+     * Find the block holding a part of an indexed file.
+     * @param inode Inode of the file.
+     * @param index Which block of the file, counted from 0.
+     * @return The block id or -1 if the file has no such block.
+     */
+    private int getIndexedBlock(Inode inode, int index) {
+        int blockId = -1;
+        if (index < Inode.NUM_DIRECT) {
+            blockId = inode.getBlockPtr(index);
+        } else {
+            index -= Inode.NUM_DIRECT;
+            if (index < ptrsPerBlock) {
+                int single = inode.getBlockPtr(Inode.SINGLE_INDIRECT);
+                if (single != -1) {
+                    blockId = blockGetInt(single, index * 4);
+                }
+            } else {
+                index -= ptrsPerBlock;
+                int dbl = inode.getBlockPtr(Inode.DOUBLE_INDIRECT);
+                if (dbl != -1 && index / ptrsPerBlock < ptrsPerBlock) {
+                    int single = blockGetInt(dbl, (index / ptrsPerBlock) * 4);
+                    if (single != -1) {
+                        blockId = blockGetInt(single, (index % ptrsPerBlock) * 4);
+                    }
+                }
+            }
+        }
+        return blockId;
+    }
+    
+    /**
+     * Take a free block and fill it with empty block pointers.
+     * @return The block id or -1 if the disk is full.
+     */
+    private int allocateIndirectBlock() {
+        int blockId = getFreeBlock();
+        if (blockId != -1) {
+            for (int i = 0; i < ptrsPerBlock; i++) {
+                blockPutInt(blockId, i * 4, -1);
+            }
+        }
+        return blockId;
+    }
+    
+    /**
+     * Point a part of an indexed file to a block. Indirect blocks are 
+     * allocated when needed. Does not save the inode.
+     * @param inode Inode of the file.
+     * @param index Which block of the file, counted from 0.
+     * @param blockId The data block.
+     * @return false if there was no room for an indirect block.
+     */
+    private boolean setIndexedBlock(Inode inode, int index, int blockId) {
+        boolean result = true;
+        if (index < Inode.NUM_DIRECT) {
+            inode.setBlockPtr(index, blockId);
+        } else {
+            index -= Inode.NUM_DIRECT;
+            int single;
+            if (index < ptrsPerBlock) {
+                single = inode.getBlockPtr(Inode.SINGLE_INDIRECT);
+                if (single == -1) {
+                    single = allocateIndirectBlock();
+                    inode.setBlockPtr(Inode.SINGLE_INDIRECT, single);
+                }
+            } else {
+                index -= ptrsPerBlock;
+                int dbl = inode.getBlockPtr(Inode.DOUBLE_INDIRECT);
+                if (dbl == -1) {
+                    dbl = allocateIndirectBlock();
+                    inode.setBlockPtr(Inode.DOUBLE_INDIRECT, dbl);
+                }
+                single = -1;
+                if (dbl != -1) {
+                    single = blockGetInt(dbl, (index / ptrsPerBlock) * 4);
+                    if (single == -1) {
+                        single = allocateIndirectBlock();
+                        blockPutInt(dbl, (index / ptrsPerBlock) * 4, single);
+                    }
+                }
+                index %= ptrsPerBlock;
             }
             
-            // Delete file and its inode from memory
-            Inode inode = new Inode(blockArray[id]);
-            int blockId = inode.getDataPtr();
-            releaseBlock(blockId);
-            releaseBlock(id);
-            
-            // Delete file from parent folder
-            succees = folder.removeFile(fileName);
+            if (single == -1) {
+                result = false;
+            } else {
+                blockPutInt(single, index * 4, blockId);
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Grow or shrink an indexed file to a number of blocks. Does not save the
+     * inode.
+     * @param inode Inode of the file.
+     * @param numBlocks Number of data blocks the file should have.
+     * @return false if there were not enough blocks. The file keeps its old 
+     * blocks then.
+     */
+    private boolean resizeIndexed(Inode inode, int numBlocks) {
+        boolean result = numBlocks <= maxIndexedBlocks;
+        int oldNumBlocks = getIndexedBlockCount(inode);
+        if (numBlocks < oldNumBlocks) {
+            truncateIndexed(inode, numBlocks, oldNumBlocks);
+        } else {
+            // The data blocks are taken a run at a time
+            int i = oldNumBlocks;
+            while (i < numBlocks && result) {
+                statistics.addAllocatorCall();
+                BlockRun run = allocator.allocate(numBlocks - i);
+                if (run == null) {
+                    result = false;
+                } else {
+                    int blockId = run.getStart();
+                    while (blockId < run.getEnd() && result) {
+                        result = setIndexedBlock(inode, i, blockId);
+                        if (result) {
+                            i++;
+                            blockId++;
+                        }
+                    }
+                    if (blockId < run.getEnd()) {
+                        allocator.free(new BlockRun(blockId, run.getEnd() - blockId));
+                    }
+                }
+            }
             
-            //Save changes done to parent folder
-            writeFile(folderId, FolderBlock.save(folder));
+            // Give back what was taken if we ran out of space
+            if (!result) {
+                truncateIndexed(inode, oldNumBlocks, i);
+            }
         }
-        return succees;
+        return result;
     }
     
     /**
-     * Remove a folder contents, recursively
-     * @param folderId Id of the folder
-     * @return True if the folder contains subfolders.
+     * Free the blocks at the end of an indexed file, and the indirect blocks
+     * that are no longer needed. Does not save the inode.
+     * @param inode Inode of the file.
+     * @param numBlocks Number of data blocks to keep.
+     * @param oldNumBlocks Number of data blocks the file has now.
      */
-    public boolean emptyFolder(int folderId) {
-        boolean result = false;
-        
-        FolderBlock folder = FolderBlock.load(readFile(folderId));
-        String[] fileNames = folder.getFileNames();
+    private void truncateIndexed(Inode inode, int numBlocks, int oldNumBlocks) {
+        for (int i = numBlocks; i < oldNumBlocks; i++) {
+            int blockId = getIndexedBlock(inode, i);
+            if (blockId != -1) {
+                releaseSingleBlock(blockId);
+                if (i < Inode.NUM_DIRECT) {
+                    inode.setBlockPtr(i, -1);
+                }
+            }
+        }
         
-        // For every file in folder
-        for (String fileName : fileNames) {
-            
-            // If file is a folder
-            if(isFolder(fileName, folder.getFileId(fileName))){
-                
-                // Empty sub-folder, recursively
-                int subFolderId = folder.getFileId(fileName);
-                emptyFolder(subFolderId);
-                
-                // Delete file and its inode
-//                Inode inode = new Inode(blockArray[subFolderId]);           
-//                int blockId = inode.getDataPtr();
-//                releaseBlock(blockId);
-                releaseBlock(subFolderId);
-                
-                // Remove file from folder
-                result = folder.removeFile(fileName);
-                
-            }else{
-                //Delete file from folder
-                removeFile(fileName, folderId);
-            } 
+        // Release indirect blocks that point past the new end of the file.
+        // The pointers in the ones that are kept are cleared.
+        int firstSingle = Inode.NUM_DIRECT;
+        int single = inode.getBlockPtr(Inode.SINGLE_INDIRECT);
+        if (single != -1) {
+            if (numBlocks <= firstSingle) {
+                releaseSingleBlock(single);
+                inode.setBlockPtr(Inode.SINGLE_INDIRECT, -1);
+            } else {
+                for (int i = numBlocks - firstSingle; i < ptrsPerBlock; i++) {
+                    blockPutInt(single, i * 4, -1);
+                }
+            }
         }
         
-        //Save changes done to parent folder
-        writeFile(folderId, FolderBlock.save(folder));
+        int firstDouble = firstSingle + ptrsPerBlock;
+        int dbl = inode.getBlockPtr(Inode.DOUBLE_INDIRECT);
+        if (dbl != -1) {
+            for (int j = 0; j < ptrsPerBlock; j++) {
+                int start = firstDouble + j * ptrsPerBlock;
+                single = blockGetInt(dbl, j * 4);
+                if (single != -1) {
+                    if (numBlocks <= start) {
+                        releaseSingleBlock(single);
+                        blockPutInt(dbl, j * 4, -1);
+                    } else {
+                        for (int i = Math.max(0, numBlocks - start); i < ptrsPerBlock; i++) {
+                            blockPutInt(single, i * 4, -1);
+                        }
+                    }
+                }
+            }
+            if (numBlocks <= firstDouble) {
+                releaseSingleBlock(dbl);
+                inode.setBlockPtr(Inode.DOUBLE_INDIRECT, -1);
+            }
+        }
+    }
+    
+    /**
+     * Turn a file stored in extents into an indexed file pointing to the same
+     * blocks. The index is built on the side, so if there is no room for the
+     * indirect blocks the file keeps its extents. Does not save the inode.
+     * @param inode Inode of the file.
+     * @return false if the disk is full.
+     */
+    private boolean convertToIndexed(Inode inode) {
+        boolean result = true;
+        int numBlocks = getExtentBlockCount(inode);
+        Inode indexed = new Inode(blockSize, false, Inode.LAYOUT_INDEXED);
+        for (int i = 0; i < numBlocks && result; i++) {
+            result = setIndexedBlock(indexed, i, getDataBlock(inode, i));
+        }
         
+        if (result) {
+            inode.setNumExtents(0);
+            inode.setLayout(Inode.LAYOUT_INDEXED);
+            for (int i = 0; i <= Inode.DOUBLE_INDIRECT; i++) {
+                inode.setBlockPtr(i, indexed.getBlockPtr(i));
+            }
+            // Round the size up so that the block count matches what is mapped
+            inode.setSize(numBlocks * blockSize);
+        } else {
+            // Only gives back the indirect blocks, the data isn't counted
+            truncateIndexed(indexed, 0, 0);
+        }
         return result;
     }
     
-    
     /**
-     * Sets the block, and all of the blocks it points to via its nextBlock, 
-     * nextBlock to -1. This is done to prepare the block for new data.
-     * @param dataId 
+     * Write a file to the "disk" using it's filename.
+     * @param name Filename of the file.
+     * @param data byte array of data. 
+     * @return 
      */
-    public void releaseBlock(int blockId){
-        boolean freeNextBlock = false;
-        int nextBlockId = getNextBlockId(blockId);
-        if(nextBlockId != -1)
-            freeNextBlock = true;
-        
-        // Set next block id to -1
-        setNextBlockId(blockId, -1);
-        freeBlocks[blockId] = true;
-        
-        //Release next block if any
-        if(freeNextBlock)
-            releaseBlock(nextBlockId);
+    public boolean writeToFile(String name, byte[] data, String[] path) {
+        boolean result = false;
+        namespaceLock.readLock().lock();
+        try {
+            int workDirId = getFolderId(path);
+            int id = lockEntry(workDirId, name, true);
+            if (id != -1) {
+                try {
+                    // If file is not a folder, write data
+                    if(isFolder(id) == false){
+                        result = writeFile(id, data);
+                    }
+                } finally {
+                    locks.unlockEntry(workDirId, id, true);
+                }
+            }
+        } finally {
+            namespaceLock.readLock().unlock();
+        }
+        return result;
     }
     
     /**
-     * 'Touches' a file. Creates a inode in the given folder and gives it the
-     * supplied file name. If the file doesn't already exist.
-     * @param fileName Name of the file.
-     * @param asFolder If the file is going to be a folder.
-     * @param path Path to the folder where you want to create the file.
-     * @return -1 if the path is invalid or if the file already exists. 
-     * Otherwise its fileId (the inode id). 
+     * Open a file for reading and writing parts of it.
+     * @param name Filename of the file.
+     * @param path Path to the folder holding the file.
+     * @return A file descriptor, or -1 if there is no such file or it is a 
+     * folder.
      */
-    public int touchFile(String fileName, boolean asFolder, String[] path) {
+    public int open(String name, String[] path) {
         int result = -1;
-        int workDirId = getFolderId(path);
-        if(workDirId != -1) {
-            result = touchFile(fileName, asFolder, workDirId);
+        namespaceLock.readLock().lock();
+        try {
+            int workDirId = getFolderId(path);
+            int id = lockEntry(workDirId, name, false);
+            if (id != -1) {
+                try {
+                    result = open(id);
+                } finally {
+                    locks.unlockEntry(workDirId, id, false);
+                }
+            }
+        } finally {
+            namespaceLock.readLock().unlock();
         }
         return result;
     }
     
-    public int touchFile(String fileName, boolean asFolder, int folderId) {
-
-        FolderBlock folder = FolderBlock.load(readFile(folderId));
-        
+    /**
+     * Open a file for reading and writing parts of it.
+     * @param fileId The id of the file (its inode id).
+     * @return A file descriptor, or -1 if the id is invalid or a folder.
+     */
+    public int open(int fileId) {
         int result = -1;
-        if (folder.isFileInFolder(fileName) == false) {
-            int inodeBlock = getFreeBlock();
-            Inode inode = new Inode(asFolder);
-            inode.setSize(0);
-
-            // Save inode so writeFile() can find it
-            writeInode(inodeBlock, inode);
-
-            // If folder, create and save new folderBlock
-            if (asFolder) {
-                FolderBlock folderBlock = new FolderBlock();
-                writeFile(inodeBlock, FolderBlock.save(folderBlock));
+        if (isIdValid(fileId)) {
+            // The generation has to be the one of the file that was checked
+            Lock lock = locks.get(fileId).readLock();
+            lock.lock();
+            try {
+                if (isFolder(fileId) == false) {
+                    result = addOpenFile(new OpenFile(fileId, inodes.getGeneration(fileId)));
+                }
+            } finally {
+                lock.unlock();
             }
-
-            // Update Folder with the new file and save to disk.
-            folder.addFile(inodeBlock, fileName);
-            writeFile(folderId, FolderBlock.save(folder));
-            folder = FolderBlock.load(readFile(folderId));
-
-            // Return the access ID to the new file  
-            result = inodeBlock;
         }
         return result;
     }
     
-    public void writeInode(int blockId, Inode inode) {
-        if(isIdValid(blockId)){
-            blockArray[blockId] = inode.save();
-            freeBlocks[blockId] = false;
-        }     
+    private synchronized int addOpenFile(OpenFile file) {
+        if (openFiles == null) {
+            openFiles = new ArrayList<OpenFile>();
+        }
+        
+        // Reuse the lowest free descriptor, like Unix does
+        int fd = openFiles.indexOf(null);
+        if (fd == -1) {
+            fd = openFiles.size();
+            openFiles.add(null);
+        }
+        openFiles.set(fd, file);
+        return fd;
     }
     
     /**
-     * Write a byte array to disk. Not affected by block size. This allocates, 
-     * deallocates blocks as needed by itself
-     * @param inodeId The id of the the file which is going to be written (its 
-     * inode id)
-     * @param data A byte array of data. The size of the array doesn't have to 
-     * be the same as the block size 
-     * @return True if successful.
+     * Close a file descriptor. The descriptor does not keep the file alive.
+     * Once the file is removed, reading and writing through the descriptor 
+     * fails even if the id is used by another file, but it still has to be 
+     * closed.
+     * @param fd The file descriptor.
+     * @return false if fd isn't open.
      */
-    public boolean writeFile(int inodeId, byte[] data) {
+    public synchronized boolean close(int fd) {
         boolean result = false;
-        if (isIdValid(inodeId)) {
-            
-            int writtenBytes = 0;
-            int writtenBlocks = 0;
-
-            Inode inode = new Inode(blockArray[inodeId]);           
-            inode.setSize(data.length);
-
-            int dataId = inode.getDataPtr();
-            if(dataId == -1){
-                dataId = getFreeBlock();
-                inode.setDataPtr(dataId);
-            }
-            writeInode(inodeId, inode);    
-            
-            boolean done = false;
-            while(!done){
-                int i = 0;
-                while(i < BLOCK_SIZE-4 && writtenBytes < data.length ) {
-                    try{
-                    blockArray[dataId][i] = data[writtenBytes];
-                    }catch(Exception ex){
-                        ex.printStackTrace();
-                         i = 0;
-                    }
-                    writtenBytes++;
-                    i++;
+        if (getOpenFile(fd) != null) {
+            openFiles.set(fd, null);
+            result = true;
+        }
+        return result;
+    }
+    
+    /**
+     * Close all file descriptors, when the file system is replaced.
+     */
+    private synchronized void closeAll() {
+        openFiles = null;
+    }
+    
+    /**
+     * @return false if the file of a descriptor has been removed since it 
+     * was opened. The caller has to hold the lock of the file.
+     */
+    private boolean isFileOpen(OpenFile file) {
+        return inodes.getGeneration(file.getInodeId()) == file.getGeneration();
+    }
+    
+    /**
+     * Read from an open file without reading the rest of it.
+     * @param fd The file descriptor.
+     * @param offset Where in the file to start reading.
+     * @param dst Where to put the data.
+     * @param off Where in dst to put the data.
+     * @param len Max number of bytes to read.
+     * @return The number of bytes read, 0 at the end of the file and -1 if fd
+     * isn't open or its file has been removed.
+     */
+    public int pread(int fd, long offset, byte[] dst, int off, int len) {
+        int result = -1;
+        OpenFile file = getOpenFile(fd);
+        if (file != null) {
+            Lock lock = locks.get(file.getInodeId()).readLock();
+            lock.lock();
+            try {
+                if (isFileOpen(file)) {
+                    result = readFile(file.getInodeId(), offset, dst, off, len, 
+                            file.getReadahead());
                 }
-                writtenBlocks++;
-                freeBlocks[dataId] = false;
-                
-                
-                int nextBlockId = getNextBlockId(dataId);
-                if(writtenBytes < data.length){
-                    if(nextBlockId == -1){
-                        nextBlockId = getFreeBlock();
-                        setNextBlockId(dataId, nextBlockId);
-                    }
-                    dataId = nextBlockId;
-                }
-                else {
-                    done = true;
-                    if(nextBlockId != -1)
-                        releaseBlock(nextBlockId);
-                    
+            } finally {
+                lock.unlock();
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Write to an open file without rewriting the rest of it.
+     * @param fd The file descriptor.
+     * @param offset Where in the file to start writing.
+     * @param src The data to write.
+     * @param off Where in src the data starts.
+     * @param len Number of bytes to write.
+     * @return The number of bytes written, or -1 if fd isn't open, its file 
+     * has been removed or the disk is full.
+     */
+    public int pwrite(int fd, long offset, byte[] src, int off, int len) {
+        int result = -1;
+        OpenFile file = getOpenFile(fd);
+        if (file != null) {
+            Lock lock = locks.get(file.getInodeId()).writeLock();
+            lock.lock();
+            try {
+                if (isFileOpen(file)) {
+                    result = writeFile(file.getInodeId(), offset, src, off, len);
                 }
+            } finally {
+                lock.unlock();
             }
-            result = true;
         }
         return result;
     }
     
     /**
-     * Write a file to the "disk" using it's filename.
-     * @param name Filename of the file.
-     * @param data byte array of data. 
-     * @return 
+     * Change the size of an open file.
+     * @param fd The file descriptor.
+     * @param size The new size.
+     * @return false if fd isn't open, its file has been removed or the disk 
+     * is full.
      */
-    public boolean writeToFile(String name, byte[] data, String[] path) {
+    public boolean truncate(int fd, long size) {
         boolean result = false;
-        int workDirId = getFolderId(path);
-        FolderBlock workDir = FolderBlock.load(readFile(workDirId));
-        int id = workDir.getFileId(name);
-        
-        // If file exist and is not a folder
-        if(id != -1 && isFolder(id) == false){
-            // Write data
-            result = writeFile(id, data);
+        OpenFile file = getOpenFile(fd);
+        if (file != null) {
+            Lock lock = locks.get(file.getInodeId()).writeLock();
+            lock.lock();
+            try {
+                if (isFileOpen(file)) {
+                    result = truncateFile(file.getInodeId(), size);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Get the size of an open file.
+     * @param fd The file descriptor.
+     * @return The size in bytes, or -1 if fd isn't open or its file has been
+     * removed.
+     */
+    public long size(int fd) {
+        long result = -1;
+        OpenFile file = getOpenFile(fd);
+        if (file != null) {
+            int id = file.getInodeId();
+            Lock lock = locks.get(id).readLock();
+            lock.lock();
+            try {
+                if (isFileOpen(file)) {
+                    loadInode(id);
+                    result = inodes.getSize(id);
+                }
+            } finally {
+                lock.unlock();
+            }
         }
         return result;
     }
+    
+    private synchronized OpenFile getOpenFile(int fd) {
+        OpenFile file = null;
+        if (openFiles != null && fd >= 0 && fd < openFiles.size()) {
+            file = openFiles.get(fd);
+        }
+        return file;
+    }
 }
 
 
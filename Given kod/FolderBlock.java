@@ -1,5 +1,6 @@
 
 import java.io.*;
+import java.nio.charset.Charset;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
@@ -9,9 +10,14 @@ import java.util.Set;
  */
 
 /**
- * Class used for working with block containing folders. Max number of files are 
- * 255. If more files are to be able to be added more blocks than one 
- * block (FolderBlock block) needs to be allocated.
+ * Class used for working with block containing folders. The folder is stored 
+ * in a compact binary format: the number of entries followed by, for each 
+ * entry, the length of the name, the name in UTF-8, the inode id and the type
+ * of the file. Folders saved with Java serialization by older versions can 
+ * still be loaded and are converted the next time they are saved.
+ * 
+ * Folders are now stored as a HashedFolder, this format is only read to 
+ * convert folders saved by older versions.
  * @author Mattias Liljeson <mattiasliljeson.gmail.com>
  */
 public class FolderBlock implements Serializable{
@@ -19,9 +25,49 @@ public class FolderBlock implements Serializable{
     // Static variables and methods
     //
     
+    // Same as before the binary format so that old folders can be read
+    private static final long serialVersionUID = 6956326198692607202L;
+    
+    /** Type of an entry loaded from an old folder, where types weren't saved. */
+    public static final byte TYPE_UNKNOWN = -1;
+    
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    
+    public static FolderBlock load(byte[] data){
+        Object event = Events.begin(EventSink.FOLDER_DECODE);
+        FolderBlock folderBlockInstance;
+        // Java serialization streams start with 0xACED. The binary format 
+        // starts with the entry count, which is never that large.
+        if(data.length >= 2 && data[0] == (byte)0xAC && data[1] == (byte)0xED)
+            folderBlockInstance = loadSerialized(data);
+        else
+            folderBlockInstance = loadBinary(data);
+        Events.endFolder(event, "FolderBlock", data.length, 
+                folderBlockInstance == null ? 0 : folderBlockInstance.folderContentsMap.size());
+        return folderBlockInstance;
+    }
+    
+    private static FolderBlock loadBinary(byte[] data){
+        FolderBlock folderBlockInstance = new FolderBlock();
+        int count = FileSystem.byteArrayToInt(data, 0);
+        int pos = 4;
+        for(int i=0; i<count; i++){
+            int nameLength = ((data[pos] & 0xFF) << 8) | (data[pos+1] & 0xFF);
+            pos += 2;
+            String name = new String(data, pos, nameLength, UTF8);
+            pos += nameLength;
+            int id = FileSystem.byteArrayToInt(data, pos);
+            pos += 4;
+            byte type = data[pos];
+            pos++;
+            folderBlockInstance.addFile(id, name, type);
+        }
+        return folderBlockInstance;
+    }
+    
     // Not ours. stolen from: 
     // http://stackoverflow.com/questions/2836646/java-serializable-object-to-byte-array
-    public static FolderBlock load(byte[] data){
+    private static FolderBlock loadSerialized(byte[] data){
         ByteArrayInputStream bis = new ByteArrayInputStream(data);
         FolderBlock folderBlockInstance = null;
         Object tmpObj = null;
@@ -39,24 +85,43 @@ public class FolderBlock implements Serializable{
             ex.printStackTrace();
         }
         
-        if(tmpObj instanceof FolderBlock)
-                folderBlockInstance = (FolderBlock)tmpObj;
+        if(tmpObj instanceof FolderBlock) {
+            folderBlockInstance = (FolderBlock)tmpObj;
+            // Types weren't saved, the file system has to look at the inodes
+            folderBlockInstance.fileTypesMap = new HashMap<String, Byte>();
+        }
         return folderBlockInstance;
     }
     
     public static byte[] save(FolderBlock folderBlockInstance){
-        byte[] data = null;
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        ObjectOutput out = null;
-        try{
-            out = new ObjectOutputStream(bos);
-            out.writeObject(folderBlockInstance);
-            data = bos.toByteArray(); 
-            out.close();
-            bos.close(); //not needed, added for concistency
+        Object event = Events.begin(EventSink.FOLDER_ENCODE);
+        Map<String,Integer> map = folderBlockInstance.folderContentsMap;
+        String[] names = new String[map.size()];
+        byte[][] encodedNames = new byte[map.size()][];
+        int size = 4;
+        int i = 0;
+        for(String name : map.keySet()){
+            names[i] = name;
+            encodedNames[i] = name.getBytes(UTF8);
+            size += 2 + encodedNames[i].length + 4 + 1;
+            i++;
         }
-        catch(IOException ignore){}
         
+        byte[] data = new byte[size];
+        FileSystem.intToByteArray(names.length, data, 0);
+        int pos = 4;
+        for(i=0; i<names.length; i++){
+            data[pos] = (byte)(encodedNames[i].length >>> 8);
+            data[pos+1] = (byte)encodedNames[i].length;
+            pos += 2;
+            System.arraycopy(encodedNames[i], 0, data, pos, encodedNames[i].length);
+            pos += encodedNames[i].length;
+            FileSystem.intToByteArray(map.get(names[i]), data, pos);
+            pos += 4;
+            data[pos] = folderBlockInstance.getFileType(names[i]);
+            pos++;
+        }
+        Events.endFolder(event, "FolderBlock", data.length, names.length);
         return data;
     }
     
@@ -65,16 +130,30 @@ public class FolderBlock implements Serializable{
     //
     
     private Map<String,Integer> folderContentsMap;
+    private transient Map<String,Byte> fileTypesMap;
     
     public FolderBlock(){
         folderContentsMap = new HashMap<String, Integer>();
+        fileTypesMap = new HashMap<String, Byte>();
     }
    
     public boolean addFile(int inodePtr, String name){
+        return addFile(inodePtr, name, TYPE_UNKNOWN);
+    }
+    
+    /**
+     * Add a file to the folder.
+     * @param inodePtr The id of the file.
+     * @param name The name of the file.
+     * @param type Inode.TYPE_FILE or Inode.TYPE_FOLDER.
+     * @return false if the name is taken.
+     */
+    public boolean addFile(int inodePtr, String name, byte type){
         boolean success = false;
         
         if(isFileInFolder(name) == false){
             folderContentsMap.put(name, inodePtr);
+            fileTypesMap.put(name, type);
             success = true;
         }
         return success;
@@ -84,6 +163,7 @@ public class FolderBlock implements Serializable{
         boolean success = false;
         if(folderContentsMap.remove(name) != null)
             success = true;
+        fileTypesMap.remove(name);
         return success;
     }
     
@@ -91,13 +171,27 @@ public class FolderBlock implements Serializable{
         boolean success = false;
         if(isFileInFolder(oldName)){
             int id = getFileId(oldName);
-            if(addFile(id, newName)){
+            if(addFile(id, newName, getFileType(oldName))){
                 success = removeFile(oldName);
             }
         }
         return success;
     }
     
+    /**
+     * Returns the type of a file as saved in the folder.
+     * @param name The name of the file.
+     * @return Inode.TYPE_FILE, Inode.TYPE_FOLDER or TYPE_UNKNOWN if the file
+     * isn't in the folder or the type wasn't saved.
+     */
+    public byte getFileType(String name){
+        byte result = TYPE_UNKNOWN;
+        Byte type = fileTypesMap.get(name);
+        if(type != null)
+            result = type;
+        return result;
+    }
+    
     /**
      * Returns the ID of a file if it can be found in folder.
      * @param The name of the file.
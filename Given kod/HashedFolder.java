@@ -0,0 +1,947 @@
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A folder stored as a tree of blocks indexed by the hash of the names, like
+ * the htree of ext3. The tree lives in the data of the folder's file, one
+ * node per block, with the root in the first block:
+ *
+ * Leaves hold entries (hash, inode id, type, name) sorted by hash. Index
+ * blocks hold (hash, block) pairs, where the block holds the names hashing
+ * to at least that hash and less than the hash of the next pair. A lookup
+ * reads one block per level. A full leaf is split in two at a hash, and a
+ * full index block the same way, so adding or removing a name only writes
+ * the blocks on the way to the leaf. A small folder is a single leaf.
+ *
+ * Names with the same hash are never split apart. If the halves of a leaf
+ * don't fit in a block each because of that, the entries that don't fit go
+ * to overflow leaves chained from them, which lookups in that leaf then read
+ * as well. A full leaf is split again together with its overflow leaves, so
+ * only names that all have the same hash end up in a long chain. Blocks are
+ * only given back when a split fails, removing names only makes room in the
+ * leaves.
+ *
+ * Folders saved by older versions are one FolderBlock in the file. They are
+ * read as they are and converted the first time they are changed. The new
+ * tree is built in memory and written before the old blocks are given back,
+ * so a folder that can't be converted stays as it was. The caller has to 
+ * hold the lock of the folder, for writing when changing it.
+ */
+public class HashedFolder {
+    /** "HDIR", at the start of every block. */
+    public static final int MAGIC = 0x48444952;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // Block header: magic, level (0 for leaves), number of entries, bytes
+    // used including the header and the first overflow leaf or -1
+    private static final int LEVEL = 4;
+    private static final int COUNT = 8;
+    private static final int USED = 12;
+    private static final int OVERFLOW = 16;
+    private static final int HEADER_SIZE = 20;
+    // Index entry: hash, block
+    private static final int INDEX_ENTRY_SIZE = 8;
+    // Leaf entry: hash, inode id, type, name length, then the name
+    private static final int LEAF_ENTRY_SIZE = 11;
+    // Orders encoded leaf entries by hash
+    private static final Comparator<byte[]> BY_HASH = new Comparator<byte[]>() {
+        public int compare(byte[] a, byte[] b) {
+            int hashA = getInt(a, 0);
+            int hashB = getInt(b, 0);
+            return hashA < hashB ? -1 : (hashA == hashB ? 0 : 1);
+        }
+    };
+
+    /**
+     * A file in a folder.
+     */
+    public static class Entry {
+        private final String name;
+        private final int inodeId;
+        private final byte type;
+
+        public Entry(String name, int inodeId, byte type) {
+            this.name = name;
+            this.inodeId = inodeId;
+            this.type = type;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getInodeId() {
+            return inodeId;
+        }
+
+        /**
+         * @return Inode.TYPE_FILE, Inode.TYPE_FOLDER or
+         * FolderBlock.TYPE_UNKNOWN for files in folders saved by old versions.
+         */
+        public byte getType() {
+            return type;
+        }
+    }
+
+    private final FileSystem fileSystem;
+    private final int folderId;
+    private final int blockSize;
+    // While an old folder is converted the new tree is built here, not in
+    // the folder's file
+    private ArrayList<byte[]> building;
+
+    /**
+     * @param fileSystem The file system holding the folder.
+     * @param folderId Id of the folder's inode.
+     */
+    public HashedFolder(FileSystem fileSystem, int folderId) {
+        this.fileSystem = fileSystem;
+        this.folderId = folderId;
+        this.blockSize = fileSystem.getBlockSize();
+    }
+
+    /**
+     * @param blockSize Size of a block in bytes.
+     * @return The data of an empty folder.
+     */
+    public static byte[] empty(int blockSize) {
+        byte[] block = new byte[blockSize];
+        initBlock(block, 0);
+        return block;
+    }
+
+    /**
+     * Hash of a name, FNV-1a of its UTF-8 bytes. Never negative, so hashes
+     * can be compared as ints.
+     */
+    private static int hash(byte[] name) {
+        int h = 0x811C9DC5;
+        for (byte b : name) {
+            h = (h ^ (b & 0xFF)) * 0x01000193;
+        }
+        return h & 0x7FFFFFFF;
+    }
+
+    /**
+     * Checks whether a name can be stored. An entry may use at most half a
+     * leaf, so that a full leaf can always be split in two.
+     * @param name The file name.
+     * @return false if the name is too long.
+     */
+    public boolean isNameValid(String name) {
+        int length = name.getBytes(UTF8).length;
+        return length > 0 && length <= 0xFFFF
+                && LEAF_ENTRY_SIZE + length <= (blockSize - HEADER_SIZE) / 2;
+    }
+
+    /**
+     * Look up a name.
+     * @param name The file name.
+     * @return The entry, or null if there is no such file.
+     */
+    public Entry lookup(String name) {
+        Entry result = null;
+        byte[] block = new byte[blockSize];
+        if (readBlock(0, block)) {
+            byte[] encoded = name.getBytes(UTF8);
+            int hash = hash(encoded);
+            findLeaf(block, hash, null);
+            boolean done = false;
+            while (!done) {
+                int pos = findInLeaf(block, hash, encoded);
+                if (pos != -1) {
+                    result = new Entry(name, getInt(block, pos + 4), block[pos + 8]);
+                    done = true;
+                } else if (getInt(block, OVERFLOW) != -1) {
+                    readBlock(getInt(block, OVERFLOW), block);
+                } else {
+                    done = true;
+                }
+            }
+        } else {
+            FolderBlock folder = loadOld();
+            if (folder != null && folder.isFileInFolder(name)) {
+                result = new Entry(name, folder.getFileId(name), folder.getFileType(name));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the ID of a file if it can be found in folder.
+     * @param name The name of the file.
+     * @return The ID of the file, or -1 if file couldn't be found.
+     */
+    public int getFileId(String name) {
+        Entry entry = lookup(name);
+        return entry == null ? -1 : entry.getInodeId();
+    }
+
+    public boolean isFileInFolder(String name) {
+        return lookup(name) != null;
+    }
+
+    /**
+     * @return The names of the files in the folder.
+     */
+    public String[] getFileNames() {
+        ArrayList<Entry> entries = getEntries();
+        String[] names = new String[entries.size()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = entries.get(i).getName();
+        }
+        return names;
+    }
+
+    /**
+     * @return All files in the folder, in no special order.
+     */
+    public ArrayList<Entry> getEntries() {
+        ArrayList<Entry> result = new ArrayList<Entry>();
+        byte[] block = new byte[blockSize];
+        if (readBlock(0, block)) {
+            // Every block of the file is a node, so the leaves are found
+            // without walking the tree
+            int numBlocks = getNumBlocks();
+            for (int b = 0; b < numBlocks; b++) {
+                if (b == 0 || readBlock(b, block)) {
+                    if (getInt(block, LEVEL) == 0) {
+                        addEntries(block, result);
+                    }
+                }
+            }
+        } else {
+            FolderBlock folder = loadOld();
+            String[] names = folder == null ? new String[0] : folder.getFileNames();
+            for (String name : names) {
+                result.add(new Entry(name, folder.getFileId(name), folder.getFileType(name)));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Read a part of the folder, a block at a time, so that the whole folder 
+     * never has to be in memory. Files added or removed between two calls 
+     * may or may not be listed, and a file can be listed twice if its leaf 
+     * was split meanwhile.
+     * @param cursor 0 to start from the beginning, else a cursor returned by
+     * the last call.
+     * @param limit Maximum number of files to add.
+     * @param entries Gets the files, in no special order.
+     * @return The cursor to continue from, or -1 if all files are listed.
+     */
+    public long list(long cursor, int limit, ArrayList<Entry> entries) {
+        long result = -1;
+        // Block index in the high half, entry in the block in the low half
+        int blockIndex = (int) (cursor >>> 32);
+        int skip = (int) cursor;
+        int added = 0;
+        byte[] block = new byte[blockSize];
+        if (readBlock(0, block)) {
+            int numBlocks = getNumBlocks();
+            while (result == -1 && blockIndex < numBlocks) {
+                if (readBlock(blockIndex, block) && getInt(block, LEVEL) == 0) {
+                    int count = getInt(block, COUNT);
+                    int pos = HEADER_SIZE;
+                    for (int i = 0; i < count && result == -1; i++) {
+                        if (i >= skip) {
+                            if (added == limit) {
+                                result = ((long) blockIndex << 32) | i;
+                            } else {
+                                entries.add(decode(block, pos));
+                                added++;
+                            }
+                        }
+                        pos += entrySize(block, pos);
+                    }
+                }
+                if (result == -1) {
+                    blockIndex++;
+                    skip = 0;
+                }
+            }
+        } else {
+            // Old folders are a single block in the cursor
+            FolderBlock folder = loadOld();
+            String[] names = folder == null ? new String[0] : folder.getFileNames();
+            for (int i = skip; i < names.length && result == -1; i++) {
+                if (added == limit) {
+                    result = i;
+                } else {
+                    entries.add(new Entry(names[i], folder.getFileId(names[i]), 
+                            folder.getFileType(names[i])));
+                    added++;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Add a file to the folder.
+     * @param inodeId The id of the file.
+     * @param name The name of the file.
+     * @param type Inode.TYPE_FILE or Inode.TYPE_FOLDER.
+     * @return false if the name is taken or not valid, or the disk is full.
+     */
+    public boolean addFile(int inodeId, String name, byte type) {
+        boolean result = false;
+        if (isNameValid(name) && lookup(name) == null) {
+            result = convert() && insert(encode(inodeId, name.getBytes(UTF8), type));
+        }
+        return result;
+    }
+
+    private static byte[] encode(int inodeId, byte[] name, byte type) {
+        byte[] entry = new byte[LEAF_ENTRY_SIZE + name.length];
+        setInt(entry, 0, hash(name));
+        setInt(entry, 4, inodeId);
+        entry[8] = type;
+        entry[9] = (byte) (name.length >>> 8);
+        entry[10] = (byte) name.length;
+        System.arraycopy(name, 0, entry, LEAF_ENTRY_SIZE, name.length);
+        return entry;
+    }
+
+    /**
+     * Remove a file from the folder. Only the leaf holding it is written.
+     * @param name The name of the file.
+     * @return false if there is no such file, or the folder is an old one
+     * that couldn't be converted.
+     */
+    public boolean removeFile(String name) {
+        boolean result = false;
+        if (lookup(name) != null && convert()) {
+            byte[] block = new byte[blockSize];
+            readBlock(0, block);
+            byte[] encoded = name.getBytes(UTF8);
+            int hash = hash(encoded);
+            int blockIndex = findLeaf(block, hash, null);
+            while (!result && blockIndex != -1) {
+                int pos = findInLeaf(block, hash, encoded);
+                if (pos != -1) {
+                    int size = entrySize(block, pos);
+                    int used = getInt(block, USED);
+                    System.arraycopy(block, pos + size, block, pos, used - pos - size);
+                    setInt(block, COUNT, getInt(block, COUNT) - 1);
+                    setInt(block, USED, used - size);
+                    writeBlock(blockIndex, block);
+                    result = true;
+                } else {
+                    blockIndex = getInt(block, OVERFLOW);
+                    if (blockIndex != -1) {
+                        readBlock(blockIndex, block);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Rename a file. The new name usually goes to another leaf. It is added
+     * before the old one is removed, since only adding can fail.
+     * @return false if there is no such file, the new name is taken or not
+     * valid, or the disk is full. The file keeps its old name then.
+     */
+    public boolean rename(String oldName, String newName) {
+        boolean result = false;
+        Entry entry = lookup(oldName);
+        if (entry != null && isNameValid(newName) && lookup(newName) == null) {
+            result = addFile(entry.getInodeId(), newName, entry.getType()) && removeFile(oldName);
+        }
+        return result;
+    }
+
+    /**
+     * Remove all files from the folder and give back its blocks.
+     */
+    public void clear() {
+        fileSystem.writeFile(folderId, empty(blockSize));
+    }
+
+    private int getNumBlocks() {
+        int result;
+        if (building != null) {
+            result = building.size();
+        } else {
+            result = fileSystem.readInode(folderId).getSize() / blockSize;
+        }
+        return result;
+    }
+
+    /**
+     * Read a block of the folder's file. Counted as a folder decode.
+     * @return false if it isn't a block of a hashed folder.
+     */
+    private boolean readBlock(int index, byte[] block) {
+        if (building != null) {
+            boolean result = index < building.size();
+            if (result) {
+                System.arraycopy(building.get(index), 0, block, 0, blockSize);
+            }
+            return result;
+        }
+        fileSystem.getStatistics().addFolderDecode();
+        Object event = Events.begin(EventSink.FOLDER_DECODE);
+        int read = fileSystem.readFile(folderId, (long) index * blockSize, block, 0, blockSize);
+        boolean result = read == blockSize && getInt(block, 0) == MAGIC;
+        Events.endFolder(event, "HashedFolder", blockSize, result ? getInt(block, COUNT) : 0);
+        return result;
+    }
+
+    private boolean writeBlock(int index, byte[] block) {
+        if (building != null) {
+            if (index == building.size()) {
+                building.add(block.clone());
+            } else {
+                building.set(index, block.clone());
+            }
+            return true;
+        }
+        Object event = Events.begin(EventSink.FOLDER_ENCODE);
+        boolean result = fileSystem.writeFile(folderId, (long) index * blockSize, block, 0, 
+                blockSize) != -1;
+        Events.endFolder(event, "HashedFolder", blockSize, getInt(block, COUNT));
+        return result;
+    }
+
+    /**
+     * Add an empty block at the end of the file.
+     * @return Its index, or -1 if the disk is full.
+     */
+    private int appendBlock(byte[] block) {
+        int index = getNumBlocks();
+        if (!writeBlock(index, block)) {
+            index = -1;
+        }
+        return index;
+    }
+
+    private static void initBlock(byte[] block, int level) {
+        Arrays.fill(block, (byte) 0);
+        setInt(block, 0, MAGIC);
+        setInt(block, LEVEL, level);
+        setInt(block, COUNT, 0);
+        setInt(block, USED, HEADER_SIZE);
+        setInt(block, OVERFLOW, -1);
+    }
+
+    /**
+     * Turn a folder saved by an old version into a hashed folder.
+     * @return false if the file isn't a folder at all, a name doesn't fit
+     * in a block or the disk is full. The folder is unchanged then.
+     */
+    private boolean convert() {
+        boolean result = true;
+        byte[] block = new byte[blockSize];
+        FolderBlock folder = null;
+        if (!readBlock(0, block)) {
+            folder = loadOld();
+            result = folder != null;
+        }
+        if (folder != null) {
+            building = new ArrayList<byte[]>();
+            building.add(empty(blockSize));
+            String[] names = folder.getFileNames();
+            for (int i = 0; i < names.length && result; i++) {
+                // Long names from old folders are kept as long as they fit 
+                // in a block, in an overflow leaf if they have to
+                byte[] encoded = names[i].getBytes(UTF8);
+                result = HEADER_SIZE + LEAF_ENTRY_SIZE + encoded.length <= blockSize
+                        && insert(encode(folder.getFileId(names[i]), encoded, 
+                                folder.getFileType(names[i])));
+            }
+            byte[] data = new byte[building.size() * blockSize];
+            for (int i = 0; i < building.size(); i++) {
+                System.arraycopy(building.get(i), 0, data, i * blockSize, blockSize);
+            }
+            building = null;
+            result = result && replaceData(data);
+        }
+        return result;
+    }
+
+    /**
+     * Replace the content of the folder's file with a converted folder. The
+     * old folders are chains, which can't be read from the middle without
+     * following the chain, so the new content goes to new blocks in extents
+     * and the chain is only given back once they are written.
+     * @return false if the disk is full. The folder is unchanged then.
+     */
+    private boolean replaceData(byte[] data) {
+        boolean result;
+        Inode inode = fileSystem.readInode(folderId);
+        if (inode.getLayout() == Inode.LAYOUT_CHAIN) {
+            int size = inode.getSize();
+            int chain = inode.getDataPtr();
+            inode.setDataPtr(-1);
+            inode.setNumExtents(0);
+            inode.setLayout(Inode.LAYOUT_EXTENTS);
+            inode.setSize(0);
+            fileSystem.writeInode(folderId, inode);
+            result = fileSystem.writeFile(folderId, data);
+            if (result) {
+                if (chain != -1) {
+                    fileSystem.releaseBlock(chain);
+                }
+            } else {
+                inode.setLayout(Inode.LAYOUT_CHAIN);
+                inode.setDataPtr(chain);
+                inode.setSize(size);
+                fileSystem.writeInode(folderId, inode);
+            }
+        } else {
+            // The other layouts keep their blocks when a write fails
+            result = fileSystem.writeFile(folderId, data);
+        }
+        return result;
+    }
+
+    /**
+     * @return The folder saved by an old version, or null if the file isn't
+     * one.
+     */
+    private FolderBlock loadOld() {
+        fileSystem.getStatistics().addFolderDecode();
+        return FolderBlock.load(fileSystem.readFile(folderId));
+    }
+
+    /**
+     * Go from the root down to the leaf for a hash.
+     * @param block Holds the root, holds the leaf when done.
+     * @param hash The hash.
+     * @param path If not null, gets the index blocks passed on the way.
+     * @return Index of the leaf block.
+     */
+    private int findLeaf(byte[] block, int hash, ArrayList<Integer> path) {
+        int blockIndex = 0;
+        while (getInt(block, LEVEL) > 0) {
+            if (path != null) {
+                path.add(blockIndex);
+            }
+            int i = findChild(block, hash);
+            blockIndex = getInt(block, HEADER_SIZE + i * INDEX_ENTRY_SIZE + 4);
+            readBlock(blockIndex, block);
+        }
+        return blockIndex;
+    }
+
+    /**
+     * @return Position of the last index entry with a hash of at most hash.
+     */
+    private static int findChild(byte[] block, int hash) {
+        // Binary search, the first entry covers everything below it
+        int low = 0;
+        int high = getInt(block, COUNT) - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (getInt(block, HEADER_SIZE + mid * INDEX_ENTRY_SIZE) <= hash) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return Offset of the entry with the name in a leaf, or -1.
+     */
+    private static int findInLeaf(byte[] block, int hash, byte[] name) {
+        int result = -1;
+        int pos = HEADER_SIZE;
+        int used = getInt(block, USED);
+        while (result == -1 && pos < used && getInt(block, pos) <= hash) {
+            if (getInt(block, pos) == hash && nameEquals(block, pos, name)) {
+                result = pos;
+            }
+            pos += entrySize(block, pos);
+        }
+        return result;
+    }
+
+    private static boolean nameEquals(byte[] block, int pos, byte[] name) {
+        boolean result = nameLength(block, pos) == name.length;
+        for (int i = 0; i < name.length && result; i++) {
+            result = block[pos + LEAF_ENTRY_SIZE + i] == name[i];
+        }
+        return result;
+    }
+
+    private static int nameLength(byte[] block, int pos) {
+        return ((block[pos + 9] & 0xFF) << 8) | (block[pos + 10] & 0xFF);
+    }
+
+    private static int entrySize(byte[] block, int pos) {
+        return LEAF_ENTRY_SIZE + nameLength(block, pos);
+    }
+
+    private static Entry decode(byte[] block, int pos) {
+        String name = new String(block, pos + LEAF_ENTRY_SIZE, nameLength(block, pos), UTF8);
+        return new Entry(name, getInt(block, pos + 4), block[pos + 8]);
+    }
+
+    private static void addEntries(byte[] block, ArrayList<Entry> entries) {
+        int pos = HEADER_SIZE;
+        int used = getInt(block, USED);
+        while (pos < used) {
+            entries.add(decode(block, pos));
+            pos += entrySize(block, pos);
+        }
+    }
+
+    /**
+     * Put an encoded entry in its leaf, splitting the leaf if it is full.
+     */
+    private boolean insert(byte[] entry) {
+        boolean result;
+        int hash = getInt(entry, 0);
+        byte[] block = new byte[blockSize];
+        readBlock(0, block);
+        ArrayList<Integer> path = new ArrayList<Integer>();
+        int blockIndex = findLeaf(block, hash, path);
+
+        if (getInt(block, USED) + entry.length <= blockSize) {
+            insertSorted(block, entry);
+            result = writeBlock(blockIndex, block);
+        } else {
+            // The overflow leaves are split together with the leaf
+            ArrayList<byte[]> entries = getEncodedEntries(block);
+            ArrayList<Integer> chain = new ArrayList<Integer>();
+            byte[] overflow = new byte[blockSize];
+            int next = getInt(block, OVERFLOW);
+            while (next != -1) {
+                chain.add(next);
+                readBlock(next, overflow);
+                entries.addAll(getEncodedEntries(overflow));
+                next = getInt(overflow, OVERFLOW);
+            }
+            entries.add(entry);
+            Collections.sort(entries, BY_HASH);
+            int split = findSplit(entries);
+            if (split == -1) {
+                // All the names have the same hash
+                result = insertOverflow(block, entry);
+                if (result) {
+                    writeBlock(blockIndex, block);
+                }
+            } else {
+                result = splitLeaf(blockIndex, entries, split, chain, path);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Split a leaf and its overflow leaves in two. Each half gets as many
+     * blocks as its entries need, the overflow leaves of the old leaf are
+     * used first. Those that are left over stay empty at the end of the left
+     * half, for the next split.
+     *
+     * Blocks that have to be added are written before the split is linked
+     * in, and the old overflow leaves after, so if there is no room the 
+     * folder is as before.
+     * @param blockIndex The leaf.
+     * @param entries The entries of the leaf and its overflow leaves, sorted.
+     * @param split Index of the first entry of the right half.
+     * @param chain The overflow leaves of the leaf.
+     * @param path The index blocks above the leaf.
+     */
+    private boolean splitLeaf(int blockIndex, ArrayList<byte[]> entries, int split,
+            ArrayList<Integer> chain, ArrayList<Integer> path) {
+        boolean result = true;
+        ArrayList<byte[]> left = pack(entries.subList(0, split));
+        ArrayList<byte[]> right = pack(entries.subList(split, entries.size()));
+        while (left.size() + right.size() - 2 < chain.size()) {
+            left.add(empty(blockSize));
+        }
+
+        // The overflow leaves of both halves, and where they go
+        ArrayList<byte[]> overflows = new ArrayList<byte[]>();
+        overflows.addAll(left.subList(1, left.size()));
+        overflows.addAll(right.subList(1, right.size()));
+        int firstAdded = getNumBlocks();
+        int[] indexes = new int[overflows.size()];
+        for (int i = 0; i < indexes.length; i++) {
+            indexes[i] = i < chain.size() ? chain.get(i) : firstAdded + i - chain.size();
+        }
+        int i = 0;
+        for (int half = 0; half < 2; half++) {
+            List<byte[]> blocks = half == 0 ? left : right;
+            for (int b = 0; b < blocks.size(); b++) {
+                setInt(blocks.get(b), OVERFLOW, b + 1 < blocks.size() ? indexes[i++] : -1);
+            }
+        }
+
+        for (i = chain.size(); i < indexes.length && result; i++) {
+            result = writeBlock(indexes[i], overflows.get(i));
+        }
+        if (result) {
+            result = splitBlock(blockIndex, left.get(0), right.get(0), 
+                    getInt(entries.get(split), 0), path);
+        }
+        if (result) {
+            for (i = 0; i < chain.size(); i++) {
+                writeBlock(indexes[i], overflows.get(i));
+            }
+        } else if (getNumBlocks() > firstAdded) {
+            removeBlocks(firstAdded);
+        }
+        return result;
+    }
+
+    /**
+     * Put sorted entries in as few leaves as possible, in order. The 
+     * overflow pointers are left to the caller.
+     */
+    private ArrayList<byte[]> pack(List<byte[]> entries) {
+        ArrayList<byte[]> result = new ArrayList<byte[]>();
+        byte[] block = empty(blockSize);
+        result.add(block);
+        for (byte[] entry : entries) {
+            if (getInt(block, USED) + entry.length > blockSize) {
+                block = empty(blockSize);
+                result.add(block);
+            }
+            append(block, entry);
+        }
+        return result;
+    }
+
+    /**
+     * Put an entry in the first overflow leaf of a leaf that has room,
+     * adding one at the end of the chain if none has.
+     * @param block The leaf. Its overflow pointer is updated but it isn't
+     * written.
+     */
+    private boolean insertOverflow(byte[] block, byte[] entry) {
+        boolean result = false;
+        byte[] overflow = new byte[blockSize];
+        int next = getInt(block, OVERFLOW);
+        int last = -1;
+        while (!result && next != -1) {
+            readBlock(next, overflow);
+            if (getInt(overflow, USED) + entry.length <= blockSize) {
+                insertSorted(overflow, entry);
+                result = writeBlock(next, overflow);
+            } else {
+                last = next;
+                next = getInt(overflow, OVERFLOW);
+            }
+        }
+        if (!result) {
+            byte[] added = new byte[blockSize];
+            initBlock(added, 0);
+            append(added, entry);
+            int index = appendBlock(added);
+            if (index != -1) {
+                if (last == -1) {
+                    setInt(block, OVERFLOW, index);
+                } else {
+                    setInt(overflow, OVERFLOW, index);
+                    writeBlock(last, overflow);
+                }
+                result = true;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Find where to split sorted entries in two, as close to the middle as
+     * possible without splitting names with the same hash. A split where 
+     * both halves fit in a block is taken if there is one.
+     * @return Index of the first entry of the right half, or -1 if all the
+     * names have the same hash.
+     */
+    private int findSplit(ArrayList<byte[]> entries) {
+        int total = 0;
+        for (byte[] entry : entries) {
+            total += entry.length;
+        }
+        int best = -1;
+        int bestDistance = Integer.MAX_VALUE;
+        boolean bestFits = false;
+        int left = 0;
+        for (int i = 1; i < entries.size(); i++) {
+            left += entries.get(i - 1).length;
+            boolean boundary = getInt(entries.get(i), 0) != getInt(entries.get(i - 1), 0);
+            boolean fits = HEADER_SIZE + left <= blockSize
+                    && HEADER_SIZE + total - left <= blockSize;
+            int distance = Math.abs(total - 2 * left);
+            if (boundary && (fits && !bestFits || fits == bestFits && distance < bestDistance)) {
+                best = i;
+                bestDistance = distance;
+                bestFits = fits;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Store the two halves of a split block. The right half gets a new
+     * block, which is added to the parent. The root stays in block 0, so
+     * when it is split both halves move to new blocks and the root gets a
+     * level higher.
+     *
+     * The split block is only changed once the new blocks are linked in, so
+     * if that fails, e.g. because the disk is full, the folder is as before
+     * and the new blocks are removed again.
+     * @param blockIndex The block that was split.
+     * @param left The left half.
+     * @param right The right half.
+     * @param hash The first hash of the right half.
+     * @param path The index blocks above the split block.
+     */
+    private boolean splitBlock(int blockIndex, byte[] left, byte[] right, int hash,
+            ArrayList<Integer> path) {
+        boolean result = false;
+        int level = getInt(left, LEVEL);
+        if (blockIndex == 0) {
+            int leftIndex = appendBlock(left);
+            int rightIndex = leftIndex == -1 ? -1 : appendBlock(right);
+            if (rightIndex != -1) {
+                byte[] root = new byte[blockSize];
+                initBlock(root, level + 1);
+                appendIndex(root, 0, leftIndex);
+                appendIndex(root, hash, rightIndex);
+                result = writeBlock(0, root);
+            }
+            if (!result && leftIndex != -1) {
+                removeBlocks(leftIndex);
+            }
+        } else {
+            int rightIndex = appendBlock(right);
+            if (rightIndex != -1) {
+                // Until the left half is written the entries of the right
+                // half are in both blocks, but lookups only go to one
+                if (insertIndex(path, hash, rightIndex)) {
+                    result = writeBlock(blockIndex, left);
+                } else {
+                    removeBlocks(rightIndex);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Remove the blocks from an index to the end of the file, added by a
+     * split that failed. Left in the file, they would be listed as leaves.
+     */
+    private void removeBlocks(int fromIndex) {
+        if (building != null) {
+            building.subList(fromIndex, building.size()).clear();
+        } else {
+            fileSystem.truncateFile(folderId, (long) fromIndex * blockSize);
+        }
+    }
+
+    /**
+     * Add a (hash, block) pair to the last index block of a path, splitting
+     * it if it is full.
+     */
+    private boolean insertIndex(ArrayList<Integer> path, int hash, int child) {
+        boolean result;
+        int blockIndex = path.remove(path.size() - 1);
+        byte[] block = new byte[blockSize];
+        readBlock(blockIndex, block);
+        int count = getInt(block, COUNT);
+        int at = findChild(block, hash) + 1;
+        if (HEADER_SIZE + (count + 1) * INDEX_ENTRY_SIZE <= blockSize) {
+            int pos = HEADER_SIZE + at * INDEX_ENTRY_SIZE;
+            System.arraycopy(block, pos, block, pos + INDEX_ENTRY_SIZE,
+                    (count - at) * INDEX_ENTRY_SIZE);
+            setInt(block, pos, hash);
+            setInt(block, pos + 4, child);
+            setInt(block, COUNT, count + 1);
+            setInt(block, USED, HEADER_SIZE + (count + 1) * INDEX_ENTRY_SIZE);
+            result = writeBlock(blockIndex, block);
+        } else {
+            // Hashes in index blocks are unique, so any place will do
+            int[] hashes = new int[count + 1];
+            int[] children = new int[count + 1];
+            for (int i = 0, j = 0; i <= count; i++) {
+                if (i == at) {
+                    hashes[i] = hash;
+                    children[i] = child;
+                } else {
+                    hashes[i] = getInt(block, HEADER_SIZE + j * INDEX_ENTRY_SIZE);
+                    children[i] = getInt(block, HEADER_SIZE + j * INDEX_ENTRY_SIZE + 4);
+                    j++;
+                }
+            }
+            int split = (count + 1) / 2;
+            int level = getInt(block, LEVEL);
+            byte[] right = new byte[blockSize];
+            initBlock(block, level);
+            initBlock(right, level);
+            for (int i = 0; i <= count; i++) {
+                appendIndex(i < split ? block : right, hashes[i], children[i]);
+            }
+            result = splitBlock(blockIndex, block, right, hashes[split], path);
+        }
+        return result;
+    }
+
+    private static ArrayList<byte[]> getEncodedEntries(byte[] block) {
+        ArrayList<byte[]> entries = new ArrayList<byte[]>();
+        int pos = HEADER_SIZE;
+        int used = getInt(block, USED);
+        while (pos < used) {
+            int size = entrySize(block, pos);
+            byte[] entry = new byte[size];
+            System.arraycopy(block, pos, entry, 0, size);
+            entries.add(entry);
+            pos += size;
+        }
+        return entries;
+    }
+
+    /**
+     * Put an entry in a leaf with room for it, after the entries with the
+     * same or a lower hash.
+     */
+    private static void insertSorted(byte[] block, byte[] entry) {
+        int hash = getInt(entry, 0);
+        int used = getInt(block, USED);
+        int pos = HEADER_SIZE;
+        while (pos < used && getInt(block, pos) <= hash) {
+            pos += entrySize(block, pos);
+        }
+        System.arraycopy(block, pos, block, pos + entry.length, used - pos);
+        System.arraycopy(entry, 0, block, pos, entry.length);
+        setInt(block, COUNT, getInt(block, COUNT) + 1);
+        setInt(block, USED, used + entry.length);
+    }
+
+    private static void append(byte[] block, byte[] entry) {
+        int used = getInt(block, USED);
+        System.arraycopy(entry, 0, block, used, entry.length);
+        setInt(block, COUNT, getInt(block, COUNT) + 1);
+        setInt(block, USED, used + entry.length);
+    }
+
+    private static void appendIndex(byte[] block, int hash, int child) {
+        int used = getInt(block, USED);
+        setInt(block, used, hash);
+        setInt(block, used + 4, child);
+        setInt(block, COUNT, getInt(block, COUNT) + 1);
+        setInt(block, USED, used + INDEX_ENTRY_SIZE);
+    }
+
+    private static int getInt(byte[] block, int pos) {
+        return FileSystem.byteArrayToInt(block, pos);
+    }
+
+    private static void setInt(byte[] block, int pos, int value) {
+        FileSystem.intToByteArray(value, block, pos);
+    }
+}
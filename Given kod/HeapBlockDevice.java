@@ -0,0 +1,99 @@
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Block device keeping all blocks in memory, one byte array per block. Nothing
+ * is stored anywhere unless the file system is saved to a file.
+ */
+public class HeapBlockDevice implements BlockDevice, Serializable {
+    private static final long serialVersionUID = -9144122433259753867L;
+    private byte[][] blockArray;
+
+    /**
+     * Creates a device where all blocks are zero.
+     * @param numBlocks Number of blocks.
+     * @param blockSize Size of a block in bytes.
+     */
+    public HeapBlockDevice(int numBlocks, int blockSize) {
+        blockArray = new byte[numBlocks][blockSize];
+    }
+
+    /**
+     * Creates a device using existing blocks, for example from an image saved
+     * by an old version.
+     * @param blockArray The blocks. Not copied.
+     */
+    public HeapBlockDevice(byte[][] blockArray) {
+        this.blockArray = blockArray;
+    }
+
+    /**
+     * Copy all blocks of another device into memory.
+     * @param device The device to copy.
+     * @return The copy.
+     */
+    public static HeapBlockDevice copyOf(BlockDevice device) {
+        HeapBlockDevice copy = new HeapBlockDevice(device.getNumBlocks(), device.getBlockSize());
+        for (int i = 0; i < device.getNumBlocks(); i++) {
+            device.read(i, 0, copy.blockArray[i], 0, device.getBlockSize());
+        }
+        return copy;
+    }
+
+    public int getNumBlocks() {
+        return blockArray.length;
+    }
+
+    public int getBlockSize() {
+        return blockArray[0].length;
+    }
+
+    public void resize(int numBlocks, int blockSize) {
+        blockArray = new byte[numBlocks][blockSize];
+    }
+
+    public void read(int blockId, int offset, byte[] dst, int off, int len) {
+        System.arraycopy(blockArray[blockId], offset, dst, off, len);
+    }
+
+    public void readBlocks(int blockId, int count, byte[] dst, int off) {
+        int blockSize = getBlockSize();
+        for (int i = 0; i < count; i++) {
+            System.arraycopy(blockArray[blockId + i], 0, dst, off + i * blockSize, blockSize);
+        }
+    }
+
+    public ByteBuffer view(int blockId, int offset, int len) {
+        return ByteBuffer.wrap(blockArray[blockId], offset, len).asReadOnlyBuffer();
+    }
+
+    public void write(int blockId, int offset, byte[] src, int off, int len) {
+        System.arraycopy(src, off, blockArray[blockId], offset, len);
+    }
+
+    public void writeBlocks(int blockId, int count, byte[] src, int off) {
+        int blockSize = getBlockSize();
+        for (int i = 0; i < count; i++) {
+            System.arraycopy(src, off + i * blockSize, blockArray[blockId + i], 0, blockSize);
+        }
+    }
+
+    public void clear(int blockId, int offset, int len) {
+        Arrays.fill(blockArray[blockId], offset, offset + len, (byte) 0);
+    }
+
+    public int getInt(int blockId, int offset) {
+        return FileSystem.byteArrayToInt(blockArray[blockId], offset);
+    }
+
+    public void putInt(int blockId, int offset, int value) {
+        FileSystem.intToByteArray(value, blockArray[blockId], offset);
+    }
+
+    public void flush() {
+    }
+
+    public void close() {
+    }
+}
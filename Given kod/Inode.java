@@ -1,3 +1,5 @@
+import java.util.Arrays;
+
 /*
  *  Copyright Mattias Liljeson Oct 12, 2011
  */
@@ -5,48 +7,128 @@
 /**
  * Class used when working with a block containing an inode. This is a simple 
  * implementation which can be made better with more and better meta data if 
- * wished for. This implementation does not use an index but relies on a linked 
- * list for simplicity
+ * wished for. The data blocks are found in one of three ways, depending on 
+ * the layout byte: a linked list of blocks, a table of extents or a Unix style 
+ * index with direct and indirect block pointers.
  * 
  * @author Mattias Liljeson <mattiasliljeson.gmail.com>
  */
 public class Inode {
+    public static final byte TYPE_FILE = 0;
+    public static final byte TYPE_FOLDER = 1;
+    
+    /** Data is stored as a linked list of blocks starting at dataPtr. */
+    public static final byte LAYOUT_CHAIN = 0;
+    /** Data is stored in runs of contiguous blocks (extents). */
+    public static final byte LAYOUT_EXTENTS = 1;
+    /** Data is found through direct and indirect block pointers. */
+    public static final byte LAYOUT_INDEXED = 2;
+    
+    // Where the extent table or the block pointers start in the block. The 
+    // last 4 bytes are left alone since they are used as next block id by the
+    // chain format.
+    private static final int EXTENTS_OFFSET = 14;
+    
+    /** Number of direct block pointers in an indexed inode. */
+    public static final int NUM_DIRECT = 12;
+    /** Index of the single indirect pointer among the block pointers. */
+    public static final int SINGLE_INDIRECT = NUM_DIRECT;
+    /** Index of the double indirect pointer among the block pointers. */
+    public static final int DOUBLE_INDIRECT = NUM_DIRECT + 1;
+    
     private byte type;
     private int size;
     //private long created;
     //private long lastModified;
     private int dataPtr;
+    private byte layout;
+    private int numExtents;
+    private int[] extentStart;
+    private int[] extentLength;
+    private int[] blockPtrs = new int[NUM_DIRECT + 2];
+    private int blockSize;
 
-    public Inode(){
+    public Inode(int blockSize){
+        this.blockSize = blockSize;
+        extentStart = new int[getMaxExtents(blockSize)];
+        extentLength = new int[getMaxExtents(blockSize)];
         dataPtr = -1;
+        Arrays.fill(blockPtrs, -1);
     }
     
-    public Inode(boolean isFolder){
-        dataPtr = -1;
+    public Inode(int blockSize, boolean isFolder){
+        this(blockSize);
         if(isFolder)
-            type = 1;
+            type = TYPE_FOLDER;
+    }
+    
+    public Inode(int blockSize, boolean isFolder, byte layout){
+        this(blockSize, isFolder);
+        this.layout = layout;
     }
     
+    /**
+     * @param block A whole block. The block size is taken from its length.
+     */
     public Inode(byte[] block) {
+        this(block.length);
         load(block);
     }
     
+    /**
+     * @param blockSize Size of a block in bytes.
+     * @return Number of extents that fit in an inode block.
+     */
+    public static int getMaxExtents(int blockSize) {
+        return (blockSize - EXTENTS_OFFSET - 4) / 8;
+    }
+    
     public boolean load(byte[] block) {
         boolean success = false;
-        if(block.length >= FileSystem.BLOCK_SIZE) {
+        if(block.length >= blockSize) {
             type = block[0];
             size = FileSystem.byteArrayToInt(block, 1);
             dataPtr = FileSystem.byteArrayToInt(block, 5);
+            // Blocks written before extents existed have 0 here, i.e. a chain
+            layout = block[9];
+            numExtents = 0;
+            if(layout == LAYOUT_EXTENTS) {
+                numExtents = FileSystem.byteArrayToInt(block, 10);
+                for(int i=0; i<numExtents; i++) {
+                    extentStart[i] = FileSystem.byteArrayToInt(block, EXTENTS_OFFSET + i*8);
+                    extentLength[i] = FileSystem.byteArrayToInt(block, EXTENTS_OFFSET + i*8 + 4);
+                }
+            }
+            if(layout == LAYOUT_INDEXED) {
+                for(int i=0; i<blockPtrs.length; i++) {
+                    blockPtrs[i] = FileSystem.byteArrayToInt(block, EXTENTS_OFFSET + i*4);
+                }
+            } else {
+                Arrays.fill(blockPtrs, -1);
+            }
             success = true;
         }
         return success;
     }
     
     public byte[] save() {
-        byte[] block = new byte[FileSystem.BLOCK_SIZE];
+        byte[] block = new byte[blockSize];
         block[0] = type;
         FileSystem.intToByteArray(size, block, 1);
         FileSystem.intToByteArray(dataPtr, block, 5);
+        block[9] = layout;
+        if(layout == LAYOUT_EXTENTS) {
+            FileSystem.intToByteArray(numExtents, block, 10);
+            for(int i=0; i<numExtents; i++) {
+                FileSystem.intToByteArray(extentStart[i], block, EXTENTS_OFFSET + i*8);
+                FileSystem.intToByteArray(extentLength[i], block, EXTENTS_OFFSET + i*8 + 4);
+            }
+        }
+        if(layout == LAYOUT_INDEXED) {
+            for(int i=0; i<blockPtrs.length; i++) {
+                FileSystem.intToByteArray(blockPtrs[i], block, EXTENTS_OFFSET + i*4);
+            }
+        }
         return block;
     } 
     
@@ -74,4 +156,68 @@ public class Inode {
         this.type = type;
     }
 
+    public byte getLayout() {
+        return layout;
+    }
+
+    public void setLayout(byte layout) {
+        this.layout = layout;
+    }
+
+    public int getNumExtents() {
+        return numExtents;
+    }
+
+    /**
+     * Drops extents from the end of the extent table. Does not free the 
+     * blocks.
+     * @param numExtents How many extents to keep.
+     */
+    public void setNumExtents(int numExtents) {
+        this.numExtents = numExtents;
+    }
+
+    public int getExtentStart(int index) {
+        return extentStart[index];
+    }
+
+    public int getExtentLength(int index) {
+        return extentLength[index];
+    }
+
+    public void setExtentLength(int index, int length) {
+        extentLength[index] = length;
+    }
+
+    /**
+     * Adds a run of blocks to the end of the file.
+     * @param start First block in the run.
+     * @param length Number of blocks in the run.
+     * @return false if the extent table is full.
+     */
+    public boolean addExtent(int start, int length) {
+        boolean success = false;
+        if(numExtents < extentStart.length) {
+            extentStart[numExtents] = start;
+            extentLength[numExtents] = length;
+            numExtents++;
+            success = true;
+        }
+        return success;
+    }
+
+    /**
+     * Get a block pointer of an indexed inode.
+     * @param index 0 to NUM_DIRECT-1 for the direct pointers, SINGLE_INDIRECT
+     * or DOUBLE_INDIRECT for the indirect ones.
+     * @return The block id, or -1 if not set.
+     */
+    public int getBlockPtr(int index) {
+        return blockPtrs[index];
+    }
+
+    public void setBlockPtr(int index, int blockId) {
+        blockPtrs[index] = blockId;
+    }
+
 }
@@ -0,0 +1,211 @@
+import java.util.BitSet;
+
+/**
+ * Decoded inodes, indexed by inode id. The fields are kept in parallel
+ * primitive arrays so that looking at the type or size of a file doesn't
+ * decode its block or create any objects. Inodes that have been changed are
+ * marked dirty and are written back to their blocks by the file system when
+ * it flushes, not on every change. The dirty inodes are kept in a bit set,
+ * so a flush only visits those and not every id on the device.
+ *
+ * The methods are synchronized. The file system also holds the table's lock
+ * while it flushes, so that a change can't be marked clean before it is 
+ * written.
+ */
+public class InodeTable {
+    private boolean[] loaded;
+    private BitSet dirty;
+    private byte[] types;
+    private byte[] layouts;
+    private int[] sizes;
+    private int[] dataPtrs;
+    // The extent table (start and length pairs) or the block pointers,
+    // depending on the layout. null for chains.
+    private int[][] ptrs;
+    // Changed every time the block is freed
+    private int[] generations;
+    private int numDirty;
+    private int blockSize;
+
+    /**
+     * @param numBlocks Number of blocks on the device. Any block can hold an
+     * inode.
+     * @param blockSize Size of a block in bytes.
+     */
+    public InodeTable(int numBlocks, int blockSize) {
+        this.blockSize = blockSize;
+        loaded = new boolean[numBlocks];
+        dirty = new BitSet(numBlocks);
+        types = new byte[numBlocks];
+        layouts = new byte[numBlocks];
+        sizes = new int[numBlocks];
+        dataPtrs = new int[numBlocks];
+        ptrs = new int[numBlocks][];
+        generations = new int[numBlocks];
+    }
+
+    /**
+     * @param id The inode id.
+     * @return true if the inode is in the table.
+     */
+    public synchronized boolean isLoaded(int id) {
+        return loaded[id];
+    }
+
+    /**
+     * Add an inode read from its block. It is not marked dirty. Nothing 
+     * happens if the inode is already in the table, another thread may have
+     * changed it after the block was read.
+     * @param id The inode id.
+     * @param block The block holding the inode.
+     */
+    public synchronized void load(int id, byte[] block) {
+        if (!loaded[id]) {
+            set(id, new Inode(block));
+            loaded[id] = true;
+        }
+    }
+
+    /**
+     * Change an inode. It is marked dirty.
+     * @param id The inode id.
+     * @param inode The new content.
+     */
+    public synchronized void put(int id, Inode inode) {
+        set(id, inode);
+        if (!dirty.get(id)) {
+            dirty.set(id);
+            numDirty++;
+        }
+        loaded[id] = true;
+    }
+
+    private void set(int id, Inode inode) {
+        types[id] = inode.getType();
+        layouts[id] = inode.getLayout();
+        sizes[id] = inode.getSize();
+        dataPtrs[id] = inode.getDataPtr();
+
+        int[] p = null;
+        if (inode.getLayout() == Inode.LAYOUT_EXTENTS) {
+            p = reuse(ptrs[id], inode.getNumExtents() * 2);
+            for (int i = 0; i < inode.getNumExtents(); i++) {
+                p[i * 2] = inode.getExtentStart(i);
+                p[i * 2 + 1] = inode.getExtentLength(i);
+            }
+        } else if (inode.getLayout() == Inode.LAYOUT_INDEXED) {
+            p = reuse(ptrs[id], Inode.NUM_DIRECT + 2);
+            for (int i = 0; i < p.length; i++) {
+                p[i] = inode.getBlockPtr(i);
+            }
+        }
+        ptrs[id] = p;
+    }
+
+    private static int[] reuse(int[] array, int length) {
+        int[] result = array;
+        if (result == null || result.length != length) {
+            result = new int[length];
+        }
+        return result;
+    }
+
+    /**
+     * Get a copy of an inode that the caller is free to change.
+     * @param id The inode id. Has to be loaded.
+     * @return The inode.
+     */
+    public synchronized Inode get(int id) {
+        Inode inode = new Inode(blockSize, types[id] == Inode.TYPE_FOLDER, layouts[id]);
+        inode.setType(types[id]);
+        inode.setSize(sizes[id]);
+        inode.setDataPtr(dataPtrs[id]);
+        int[] p = ptrs[id];
+        if (layouts[id] == Inode.LAYOUT_EXTENTS) {
+            for (int i = 0; i < p.length; i += 2) {
+                inode.addExtent(p[i], p[i + 1]);
+            }
+        } else if (layouts[id] == Inode.LAYOUT_INDEXED) {
+            for (int i = 0; i < p.length; i++) {
+                inode.setBlockPtr(i, p[i]);
+            }
+        }
+        return inode;
+    }
+
+    public synchronized byte getType(int id) {
+        return types[id];
+    }
+
+    public synchronized byte getLayout(int id) {
+        return layouts[id];
+    }
+
+    public synchronized int getSize(int id) {
+        return sizes[id];
+    }
+
+    /**
+     * Forget an inode without writing it back, when its block is freed. The
+     * generation of the id changes.
+     * @param id The inode id.
+     */
+    public synchronized void remove(int id) {
+        generations[id]++;
+        if (dirty.get(id)) {
+            dirty.clear(id);
+            numDirty--;
+        }
+        loaded[id] = false;
+        ptrs[id] = null;
+    }
+
+    /**
+     * @param id The inode id.
+     * @return true if the inode has changed since it was last written back.
+     */
+    public synchronized boolean isDirty(int id) {
+        return dirty.get(id);
+    }
+
+    /**
+     * Mark an inode as written back.
+     * @param id The inode id.
+     */
+    public synchronized void clearDirty(int id) {
+        if (dirty.get(id)) {
+            dirty.clear(id);
+            numDirty--;
+        }
+    }
+
+    /**
+     * Find the next dirty inode.
+     * @param fromId The id to start at.
+     * @return The first dirty inode id at or after fromId, -1 if there is none.
+     */
+    public synchronized int nextDirty(int fromId) {
+        return dirty.nextSetBit(fromId);
+    }
+
+    /**
+     * @param id The inode id.
+     * @return A number that changes every time the block of the inode is
+     * freed, so that a file descriptor can tell that its file has been
+     * removed even if the id is used again.
+     */
+    public synchronized int getGeneration(int id) {
+        return generations[id];
+    }
+
+    public synchronized int getNumDirty() {
+        return numDirty;
+    }
+
+    /**
+     * @return Number of inodes the table has room for.
+     */
+    public int getCapacity() {
+        return loaded.length;
+    }
+}
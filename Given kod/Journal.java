@@ -0,0 +1,450 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead redo journal in front of a block device. Blocks changed by a
+ * transaction are kept in memory until the transaction's group is committed.
+ * The new content is then first written to the journal region together with
+ * a header listing the blocks, the device is flushed once, and only after
+ * that are the blocks written to their home locations. If the system stops
+ * before the home locations are stored, the header is still valid and
+ * replay() copies the blocks again when the device is mounted.
+ *
+ * Several transactions are committed together (group commit) so that the
+ * device is flushed once per group instead of once per transaction. A group
+ * is written when it has GROUP_SIZE transactions, when the first of them is
+ * GROUP_DELAY ms old, or when the journal is flushed. The age is checked by
+ * commit() and by a timer thread shared by all journals, so a transaction
+ * is stored about GROUP_DELAY ms after it is committed even if nothing else
+ * happens. The timer doesn't commit while a transaction is running, the
+ * group is then committed when that transaction ends.
+ *
+ * Writes made outside a transaction are committed with the next group. A
+ * group that fills half of the journal is committed before the next 
+ * transaction starts, so that the journal doesn't fill up in the middle of
+ * it. A transaction that changes more blocks than are left is committed in
+ * parts, so it is only atomic up to that size. Such a group is marked as 
+ * split in its header, see isSplit().
+ *
+ * The journal is shared by all threads. Transactions of different threads
+ * end up in the same group, which is only committed when none of them is
+ * running, unless it outgrows the journal or is flushed.
+ */
+public class Journal implements BlockDevice {
+    /** "JRNL" */
+    public static final int MAGIC = 0x4A524E4C;
+    /** "JRNS", a group committed while a transaction was running. */
+    public static final int SPLIT_MAGIC = 0x4A524E53;
+    /** Transactions committed together at most. */
+    public static final int GROUP_SIZE = 16;
+    /** How long a committed transaction may wait for its group, in ms. */
+    public static final long GROUP_DELAY = 100;
+
+    // Header: magic, sequence, number of blocks, checksum, then block ids
+    private static final int HEADER_SIZE = 16;
+
+    // Commits groups that are old enough. The tasks only hold a journal
+    // until they run, so journals that are dropped are not kept alive.
+    private static final ScheduledThreadPoolExecutor TIMER = 
+            new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "Journal group commit");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private BlockDevice device;
+    private int start;
+    private int length;
+    private int maxBlocks;
+    // Changed blocks not written to the journal yet, in the order they were
+    // first changed
+    private LinkedHashMap<Integer, byte[]> pending = new LinkedHashMap<Integer, byte[]>();
+    private int depth;
+    private int numTransactions;
+    private long firstCommitTime;
+    // A timer task will look at the group
+    private boolean groupScheduled;
+    // Closed or discarded, nothing more is committed
+    private boolean closed;
+    private int sequence;
+    // false while the home locations of the last group may not be stored
+    private boolean checkpointFlushed = true;
+    private long numCommits;
+    private long numGroupCommits;
+
+    /**
+     * @param device The device. The journal region has to be formatted with
+     * format() and replayed with replay() first.
+     * @param start First block of the journal region.
+     * @param length Number of blocks in the journal region, at least 2.
+     */
+    public Journal(BlockDevice device, int start, int length) {
+        this.device = device;
+        this.start = start;
+        this.length = length;
+        maxBlocks = Math.min(length - 1, (device.getBlockSize() - HEADER_SIZE) / 4);
+    }
+
+    /**
+     * Make a journal region empty.
+     * @param device The device.
+     * @param start First block of the journal region.
+     */
+    public static void format(BlockDevice device, int start) {
+        device.clear(start, 0, device.getBlockSize());
+    }
+
+    /**
+     * Copy the blocks of the last committed group to their home locations.
+     * Doing this more than once is harmless.
+     * @param device The device.
+     * @param start First block of the journal region.
+     * @param length Number of blocks in the journal region.
+     * @return Number of blocks copied, 0 if the journal has no valid group.
+     * @throws IOException If the device can't be flushed.
+     */
+    public static int replay(BlockDevice device, int start, int length) throws IOException {
+        int result = 0;
+        int blockSize = device.getBlockSize();
+        byte[] header = new byte[blockSize];
+        device.read(start, 0, header, 0, blockSize);
+        int count = FileSystem.byteArrayToInt(header, 8);
+        int magic = FileSystem.byteArrayToInt(header, 0);
+        if ((magic == MAGIC || magic == SPLIT_MAGIC) && count > 0
+                && count < length && HEADER_SIZE + count * 4 <= blockSize) {
+            byte[][] blocks = new byte[count][blockSize];
+            for (int i = 0; i < count; i++) {
+                device.read(start + 1 + i, 0, blocks[i], 0, blockSize);
+            }
+            if (checksum(header, blocks, count) == FileSystem.byteArrayToInt(header, 12)) {
+                for (int i = 0; i < count; i++) {
+                    device.write(FileSystem.byteArrayToInt(header, HEADER_SIZE + i * 4),
+                            0, blocks[i], 0, blockSize);
+                }
+                device.flush();
+                result = count;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Check whether the last group was committed in the middle of a 
+     * transaction. After a crash the device may then hold only a part of
+     * that transaction.
+     * @param device The device.
+     * @param start First block of the journal region.
+     * @return true if the last group is marked as split.
+     */
+    public static boolean isSplit(BlockDevice device, int start) {
+        return device.getInt(start, 0) == SPLIT_MAGIC;
+    }
+
+    private static int checksum(byte[] header, byte[][] blocks, int count) {
+        CRC32 crc = new CRC32();
+        crc.update(header, HEADER_SIZE, count * 4);
+        for (int i = 0; i < count; i++) {
+            crc.update(blocks[i]);
+        }
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Start a transaction. Transactions can be nested, only the outermost one
+     * counts. If none is running and the group fills half of the journal, 
+     * the group is committed first.
+     */
+    public synchronized void begin() {
+        if (depth == 0 && pending.size() > maxBlocks / 2) {
+            try {
+                commitGroup();
+            } catch (IOException ex) {
+                // The blocks stay pending, the next commit or flush tries 
+                // again and reports the error
+            }
+        }
+        depth++;
+    }
+
+    /**
+     * End a transaction. The group is written to the journal if it is full or
+     * old enough.
+     * @throws IOException If the device fails.
+     */
+    public synchronized void commit() throws IOException {
+        if (depth > 0) {
+            depth--;
+        }
+        if (depth == 0) {
+            numCommits++;
+            numTransactions++;
+            long now = System.currentTimeMillis();
+            if (numTransactions == 1) {
+                firstCommitTime = now;
+            }
+            if (numTransactions >= GROUP_SIZE || now - firstCommitTime >= GROUP_DELAY) {
+                commitGroup();
+            } else if (!groupScheduled) {
+                scheduleGroup(firstCommitTime + GROUP_DELAY - now);
+            }
+        }
+    }
+
+    /**
+     * Have the timer look at the group after a delay.
+     */
+    private void scheduleGroup(long delay) {
+        groupScheduled = true;
+        TIMER.schedule(new Runnable() {
+            public void run() {
+                commitOldGroup();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Called by the timer. Commit the group if it is GROUP_DELAY ms old and
+     * no transaction is running.
+     */
+    private synchronized void commitOldGroup() {
+        groupScheduled = false;
+        if (!closed && numTransactions > 0) {
+            long wait = firstCommitTime + GROUP_DELAY - System.currentTimeMillis();
+            if (wait > 0) {
+                // The group was committed and a new one started since
+                scheduleGroup(wait);
+            } else if (depth == 0) {
+                try {
+                    commitGroup();
+                } catch (IOException ex) {
+                    // The blocks stay pending, the next commit or flush 
+                    // tries again and reports the error
+                }
+            }
+        }
+    }
+
+    /**
+     * Write all pending blocks to the journal, flush, and then write them to
+     * their home locations.
+     * @throws IOException If the device fails.
+     */
+    private void commitGroup() throws IOException {
+        if (!pending.isEmpty()) {
+            int blockSize = device.getBlockSize();
+            // The last group's home locations have to be stored before its
+            // copy in the journal is overwritten
+            if (!checkpointFlushed) {
+                device.flush();
+            }
+
+            int count = pending.size();
+            byte[] header = new byte[blockSize];
+            byte[][] blocks = new byte[count][];
+            int i = 0;
+            for (Map.Entry<Integer, byte[]> entry : pending.entrySet()) {
+                FileSystem.intToByteArray(entry.getKey(), header, HEADER_SIZE + i * 4);
+                blocks[i] = entry.getValue();
+                device.write(start + 1 + i, 0, blocks[i], 0, blockSize);
+                i++;
+            }
+            sequence++;
+            FileSystem.intToByteArray(depth > 0 ? SPLIT_MAGIC : MAGIC, header, 0);
+            FileSystem.intToByteArray(sequence, header, 4);
+            FileSystem.intToByteArray(count, header, 8);
+            FileSystem.intToByteArray(checksum(header, blocks, count), header, 12);
+            device.write(start, 0, header, 0, blockSize);
+            device.flush();
+            numGroupCommits++;
+
+            for (Map.Entry<Integer, byte[]> entry : pending.entrySet()) {
+                device.write(entry.getKey(), 0, entry.getValue(), 0, blockSize);
+            }
+            checkpointFlushed = false;
+            pending.clear();
+        }
+        numTransactions = 0;
+    }
+
+    /**
+     * Get the pending copy of a block, making one if there is none.
+     */
+    private byte[] getPending(int blockId) {
+        byte[] block = pending.get(blockId);
+        if (block == null) {
+            if (pending.size() >= maxBlocks) {
+                // Doesn't fit in the journal, commit what there is
+                try {
+                    commitGroup();
+                } catch (IOException ex) {
+                    throw new IllegalStateException("Journal commit failed", ex);
+                }
+            }
+            block = new byte[device.getBlockSize()];
+            device.read(blockId, 0, block, 0, block.length);
+            pending.put(blockId, block);
+        }
+        return block;
+    }
+
+    public int getNumBlocks() {
+        return device.getNumBlocks();
+    }
+
+    public int getBlockSize() {
+        return device.getBlockSize();
+    }
+
+    public synchronized void read(int blockId, int offset, byte[] dst, int off, int len) {
+        byte[] block = pending.get(blockId);
+        if (block != null) {
+            System.arraycopy(block, offset, dst, off, len);
+        } else {
+            device.read(blockId, offset, dst, off, len);
+        }
+    }
+
+    /**
+     * Pending blocks are copied from memory, the rest is read in runs from
+     * the device.
+     */
+    public synchronized void readBlocks(int blockId, int count, byte[] dst, int off) {
+        int blockSize = device.getBlockSize();
+        int i = 0;
+        while (i < count) {
+            byte[] block = pending.get(blockId + i);
+            if (block != null) {
+                System.arraycopy(block, 0, dst, off + i * blockSize, blockSize);
+                i++;
+            } else {
+                int n = 1;
+                while (i + n < count && !pending.containsKey(blockId + i + n)) {
+                    n++;
+                }
+                device.readBlocks(blockId + i, n, dst, off + i * blockSize);
+                i += n;
+            }
+        }
+    }
+
+    /**
+     * A pending block is wrapped as it is. Its array is replaced, not 
+     * changed, when the group is committed.
+     */
+    public synchronized ByteBuffer view(int blockId, int offset, int len) {
+        ByteBuffer result;
+        byte[] block = pending.get(blockId);
+        if (block != null) {
+            result = ByteBuffer.wrap(block, offset, len).asReadOnlyBuffer();
+        } else {
+            result = device.view(blockId, offset, len);
+        }
+        return result;
+    }
+
+    public synchronized void write(int blockId, int offset, byte[] src, int off, int len) {
+        System.arraycopy(src, off, getPending(blockId), offset, len);
+    }
+
+    public synchronized void writeBlocks(int blockId, int count, byte[] src, int off) {
+        int blockSize = device.getBlockSize();
+        for (int i = 0; i < count; i++) {
+            System.arraycopy(src, off + i * blockSize, getPending(blockId + i), 0, blockSize);
+        }
+    }
+
+    public synchronized void clear(int blockId, int offset, int len) {
+        byte[] block = getPending(blockId);
+        for (int i = offset; i < offset + len; i++) {
+            block[i] = 0;
+        }
+    }
+
+    public synchronized int getInt(int blockId, int offset) {
+        int result;
+        byte[] block = pending.get(blockId);
+        if (block != null) {
+            result = FileSystem.byteArrayToInt(block, offset);
+        } else {
+            result = device.getInt(blockId, offset);
+        }
+        return result;
+    }
+
+    public synchronized void putInt(int blockId, int offset, int value) {
+        FileSystem.intToByteArray(value, getPending(blockId), offset);
+    }
+
+    /**
+     * Pending changes are thrown away, the file system formats the device
+     * after resizing it.
+     */
+    public synchronized void resize(int numBlocks, int blockSize) throws IOException {
+        pending.clear();
+        device.resize(numBlocks, blockSize);
+    }
+
+    /**
+     * Commit everything pending and make sure it is stored at its home
+     * location.
+     */
+    public synchronized void flush() throws IOException {
+        commitGroup();
+        device.flush();
+        checkpointFlushed = true;
+    }
+
+    public synchronized void close() throws IOException {
+        flush();
+        closed = true;
+        device.close();
+    }
+
+    /**
+     * Stop using the journal without committing what is pending. Used when
+     * the file system formats or mounts the device again, so that the timer
+     * doesn't write old blocks over it.
+     */
+    public synchronized void discard() {
+        pending.clear();
+        numTransactions = 0;
+        depth = 0;
+        closed = true;
+    }
+
+    /**
+     * @return First block of the journal region.
+     */
+    public int getStart() {
+        return start;
+    }
+
+    /**
+     * @return Number of blocks in the journal region.
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * @return Number of transactions committed.
+     */
+    public synchronized long getNumCommits() {
+        return numCommits;
+    }
+
+    /**
+     * @return Number of groups written, each costing one flush of the device.
+     */
+    public synchronized long getNumGroupCommits() {
+        return numGroupCommits;
+    }
+}
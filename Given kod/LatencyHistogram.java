@@ -0,0 +1,135 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts how long something took, in nanoseconds, like HdrHistogram does.
+ * Each power of two is split into SUB_BUCKETS buckets of equal width, so a
+ * value is known to within about 3% whatever its size. Values below
+ * 2 * SUB_BUCKETS get a bucket each.
+ *
+ * All buckets are allocated up front and recording only increments one of
+ * them, so nothing is allocated and no lock is taken. Threads may record at
+ * the same time. Percentiles read while others record can be off by the
+ * values recorded meanwhile.
+ */
+public class LatencyHistogram {
+    /** Buckets per power of two. */
+    public static final int SUB_BUCKETS = 32;
+    /** Values of 2^MAX_EXPONENT ns (about 18 minutes) and more share the last bucket. */
+    public static final int MAX_EXPONENT = 40;
+
+    private static final int SUB_BITS = Integer.numberOfTrailingZeros(SUB_BUCKETS);
+
+    private final AtomicLongArray counts =
+            new AtomicLongArray((MAX_EXPONENT - SUB_BITS + 1) * SUB_BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @param value A time in nanoseconds, not negative.
+     * @return The bucket of the value.
+     */
+    private int getIndex(long value) {
+        int result;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent < SUB_BITS) {
+            result = (int) value;
+        } else if (exponent >= MAX_EXPONENT) {
+            result = counts.length() - 1;
+        } else {
+            // The leading one bit picks the power of two, the bits after it
+            // the bucket within it
+            int shift = exponent - SUB_BITS;
+            int sub = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+            result = (shift + 1) * SUB_BUCKETS + sub;
+        }
+        return result;
+    }
+
+    /**
+     * @param index A bucket.
+     * @return The largest value that goes into the bucket.
+     */
+    private long getHighestValue(int index) {
+        long result = index;
+        if (index >= SUB_BUCKETS) {
+            int shift = index / SUB_BUCKETS - 1;
+            long low = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+            result = low + (1L << shift) - 1;
+        }
+        return result;
+    }
+
+    /**
+     * Count a time.
+     * @param nanos The time in nanoseconds. Negative times, from a clock
+     * going backwards, count as 0.
+     */
+    public void record(long nanos) {
+        long value = Math.max(nanos, 0);
+        counts.incrementAndGet(getIndex(value));
+        count.incrementAndGet();
+        total.addAndGet(value);
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * @return Number of times recorded.
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return The longest time recorded in nanoseconds, 0 if none.
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @return The mean time in nanoseconds, 0 if none.
+     */
+    public double getMean() {
+        long n = count.get();
+        return n == 0 ? 0 : (double) total.get() / n;
+    }
+
+    /**
+     * @param percentile How many percent of the times, 0 to 100.
+     * @return The time in nanoseconds that at least percentile percent of
+     * the times were at most, rounded up to the end of its bucket. 0 if
+     * nothing has been recorded.
+     */
+    public long getValueAtPercentile(double percentile) {
+        long result = 0;
+        long n = count.get();
+        if (n > 0) {
+            long wanted = Math.max(1, (long) Math.ceil(Math.min(percentile, 100) / 100 * n));
+            long seen = 0;
+            int i = 0;
+            while (i < counts.length() && seen < wanted) {
+                seen += counts.get(i);
+                i++;
+            }
+            result = Math.min(getHighestValue(i - 1), max.get());
+        }
+        return result;
+    }
+
+    /**
+     * Forget all times.
+     */
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+        count.set(0);
+        total.set(0);
+        max.set(0);
+    }
+}
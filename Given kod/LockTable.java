@@ -0,0 +1,112 @@
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Read/write locks for inodes. There is not one lock per inode, the ids are
+ * spread over a fixed number of locks (stripes), so two inodes can share a
+ * lock. Code that holds more than one of the locks has to take them in stripe
+ * order, lockWrite(int, int) and lockEntry(int, int, boolean) do that for two
+ * inodes.
+ */
+public class LockTable {
+    private final ReentrantReadWriteLock[] locks;
+    private final int mask;
+
+    /**
+     * @param numStripes Number of locks. Rounded up to a power of two.
+     */
+    public LockTable(int numStripes) {
+        int size = Integer.highestOneBit(Math.max(1, numStripes - 1)) << 1;
+        locks = new ReentrantReadWriteLock[size];
+        for (int i = 0; i < size; i++) {
+            locks[i] = new ReentrantReadWriteLock();
+        }
+        mask = size - 1;
+    }
+
+    private int stripe(int inodeId) {
+        return inodeId & mask;
+    }
+
+    /**
+     * @param inodeId The inode id.
+     * @return The lock used for the inode.
+     */
+    public ReentrantReadWriteLock get(int inodeId) {
+        return locks[stripe(inodeId)];
+    }
+
+    /**
+     * Take the write locks of two inodes, in stripe order.
+     * @param inodeId1 The first inode id.
+     * @param inodeId2 The second inode id.
+     */
+    public void lockWrite(int inodeId1, int inodeId2) {
+        int first = Math.min(stripe(inodeId1), stripe(inodeId2));
+        int second = Math.max(stripe(inodeId1), stripe(inodeId2));
+        locks[first].writeLock().lock();
+        if (second != first) {
+            locks[second].writeLock().lock();
+        }
+    }
+
+    /**
+     * Release the write locks taken by lockWrite(int, int).
+     * @param inodeId1 The first inode id.
+     * @param inodeId2 The second inode id.
+     */
+    public void unlockWrite(int inodeId1, int inodeId2) {
+        int first = Math.min(stripe(inodeId1), stripe(inodeId2));
+        int second = Math.max(stripe(inodeId1), stripe(inodeId2));
+        if (second != first) {
+            locks[second].writeLock().unlock();
+        }
+        locks[first].writeLock().unlock();
+    }
+
+    /**
+     * Take the read lock of a folder and the read or write lock of a file in
+     * it, in stripe order. If they share a stripe only the lock of the file is
+     * taken.
+     * @param folderId The folder's inode id.
+     * @param inodeId The file's inode id.
+     * @param write true to take the write lock of the file.
+     */
+    public void lockEntry(int folderId, int inodeId, boolean write) {
+        int folder = stripe(folderId);
+        int file = stripe(inodeId);
+        if (folder < file) {
+            locks[folder].readLock().lock();
+        }
+        if (write) {
+            locks[file].writeLock().lock();
+        } else {
+            locks[file].readLock().lock();
+        }
+        if (folder > file) {
+            locks[folder].readLock().lock();
+        }
+    }
+
+    /**
+     * Release the locks taken by lockEntry(int, int, boolean).
+     * @param folderId The folder's inode id.
+     * @param inodeId The file's inode id.
+     * @param write Same as when locking.
+     */
+    public void unlockEntry(int folderId, int inodeId, boolean write) {
+        int folder = stripe(folderId);
+        int file = stripe(inodeId);
+        if (folder != file) {
+            locks[folder].readLock().unlock();
+        }
+        if (write) {
+            locks[file].writeLock().unlock();
+        } else {
+            locks[file].readLock().unlock();
+        }
+    }
+
+    public int getNumStripes() {
+        return locks.length;
+    }
+}
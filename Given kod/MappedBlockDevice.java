@@ -0,0 +1,170 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectStreamException;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Block device stored in a file on the real disk. The file is memory mapped,
+ * so blocks are read and written in place by the operating system's page
+ * cache and opening a large volume doesn't read it. The blocks are not on the
+ * Java heap.
+ *
+ * A mapping can be at most 2 GB, so the file is mapped in segments of whole
+ * blocks.
+ */
+public class MappedBlockDevice implements BlockDevice, Serializable {
+    private static final long serialVersionUID = 3086834360180840202L;
+    private static final int MAX_SEGMENT_SIZE = 1 << 30;
+
+    private transient RandomAccessFile file;
+    private transient FileChannel channel;
+    private transient MappedByteBuffer[] segments;
+    private int numBlocks;
+    private int blockSize;
+    private int blocksPerSegment;
+
+    /**
+     * Opens an image file, creating it or making it larger if it is smaller
+     * than the device.
+     * @param path The image file.
+     * @param numBlocks Number of blocks.
+     * @param blockSize Size of a block in bytes.
+     * @throws IOException If the file can't be opened or mapped.
+     */
+    public MappedBlockDevice(File path, int numBlocks, int blockSize) throws IOException {
+        file = new RandomAccessFile(path, "rw");
+        channel = file.getChannel();
+        map(numBlocks, blockSize);
+    }
+
+    private void map(int numBlocks, int blockSize) throws IOException {
+        this.numBlocks = numBlocks;
+        this.blockSize = blockSize;
+        blocksPerSegment = Math.max(1, MAX_SEGMENT_SIZE / blockSize);
+
+        // The file is never made smaller since the old mapping may still be
+        // in use until it is garbage collected
+        long size = (long) numBlocks * blockSize;
+        if (file.length() < size) {
+            file.setLength(size);
+        }
+
+        segments = new MappedByteBuffer[(numBlocks + blocksPerSegment - 1) / blocksPerSegment];
+        for (int i = 0; i < segments.length; i++) {
+            long start = (long) i * blocksPerSegment * blockSize;
+            int blocks = Math.min(blocksPerSegment, numBlocks - i * blocksPerSegment);
+            segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, start, (long) blocks * blockSize);
+        }
+    }
+
+    /**
+     * Map the file again with the new geometry. The file grows if needed.
+     */
+    public void resize(int numBlocks, int blockSize) throws IOException {
+        flush();
+        map(numBlocks, blockSize);
+    }
+
+    private ByteBuffer segment(int blockId) {
+        return segments[blockId / blocksPerSegment];
+    }
+
+    private int position(int blockId, int offset) {
+        return (blockId % blocksPerSegment) * blockSize + offset;
+    }
+
+    public int getNumBlocks() {
+        return numBlocks;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public void read(int blockId, int offset, byte[] dst, int off, int len) {
+        // A duplicate has its own position, so callers don't disturb each other
+        ByteBuffer buffer = segment(blockId).duplicate();
+        buffer.position(position(blockId, offset));
+        buffer.get(dst, off, len);
+    }
+
+    public void readBlocks(int blockId, int count, byte[] dst, int off) {
+        // A run may cross into the next segment
+        int done = 0;
+        while (done < count) {
+            int b = blockId + done;
+            int n = Math.min(count - done, blocksPerSegment - b % blocksPerSegment);
+            ByteBuffer buffer = segment(b).duplicate();
+            buffer.position(position(b, 0));
+            buffer.get(dst, off + done * blockSize, n * blockSize);
+            done += n;
+        }
+    }
+
+    public ByteBuffer view(int blockId, int offset, int len) {
+        ByteBuffer buffer = segment(blockId).asReadOnlyBuffer();
+        int start = position(blockId, offset);
+        buffer.limit(start + len);
+        buffer.position(start);
+        return buffer;
+    }
+
+    public void write(int blockId, int offset, byte[] src, int off, int len) {
+        ByteBuffer buffer = segment(blockId).duplicate();
+        buffer.position(position(blockId, offset));
+        buffer.put(src, off, len);
+    }
+
+    public void writeBlocks(int blockId, int count, byte[] src, int off) {
+        // A run may cross into the next segment
+        int done = 0;
+        while (done < count) {
+            int b = blockId + done;
+            int n = Math.min(count - done, blocksPerSegment - b % blocksPerSegment);
+            ByteBuffer buffer = segment(b).duplicate();
+            buffer.position(position(b, 0));
+            buffer.put(src, off + done * blockSize, n * blockSize);
+            done += n;
+        }
+    }
+
+    public void clear(int blockId, int offset, int len) {
+        ByteBuffer buffer = segment(blockId);
+        int start = position(blockId, offset);
+        for (int i = start; i < start + len; i++) {
+            buffer.put(i, (byte) 0);
+        }
+    }
+
+    public int getInt(int blockId, int offset) {
+        return segment(blockId).getInt(position(blockId, offset));
+    }
+
+    public void putInt(int blockId, int offset, int value) {
+        segment(blockId).putInt(position(blockId, offset), value);
+    }
+
+    public void flush() throws IOException {
+        for (MappedByteBuffer segment : segments) {
+            segment.force();
+        }
+    }
+
+    public void close() throws IOException {
+        flush();
+        channel.close();
+        file.close();
+    }
+
+    /**
+     * The mapping can't be serialized. A file system saved with Java
+     * serialization gets a copy of the blocks on the heap instead.
+     */
+    private Object writeReplace() throws ObjectStreamException {
+        return HeapBlockDevice.copyOf(this);
+    }
+}
@@ -0,0 +1,39 @@
+/**
+ * An entry in the open file table of the file system. Handed out as a file
+ * descriptor by FileSystem.open() and used by pread(), pwrite() and
+ * truncate().
+ */
+public class OpenFile {
+    private int inodeId;
+    private int generation;
+    private Readahead readahead = new Readahead();
+
+    /**
+     * @param inodeId The file.
+     * @param generation Generation of the inode when it was opened, see
+     * InodeTable.getGeneration().
+     */
+    public OpenFile(int inodeId, int generation) {
+        this.inodeId = inodeId;
+        this.generation = generation;
+    }
+
+    public int getInodeId() {
+        return inodeId;
+    }
+
+    /**
+     * @return Generation of the inode when it was opened. If the inode's is
+     * another now, the file has been removed.
+     */
+    public int getGeneration() {
+        return generation;
+    }
+
+    /**
+     * @return How far reads through the descriptor are read ahead.
+     */
+    public Readahead getReadahead() {
+        return readahead;
+    }
+}
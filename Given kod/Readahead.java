@@ -0,0 +1,85 @@
+/**
+ * Decides how far to read ahead of a reader that goes through a file in
+ * order, like the readahead of Linux. Each file descriptor has one. The
+ * reader reports the blocks it reads, and when less than half of the window
+ * is left ahead of it, the next window is read ahead.
+ *
+ * The window starts at twice the size of the first read, at least 
+ * MIN_WINDOW blocks. It doubles each time it is moved, unless the reader 
+ * missed a block of an earlier window in the cache. Those blocks had time to
+ * be read, so they were pushed out of the cache before they were used and 
+ * the window halves instead. Missing blocks of the last window only means
+ * that the reader caught up with the reading ahead. A read that isn't where
+ * the last one ended stops reading ahead until the reader is sequential 
+ * again.
+ */
+public class Readahead {
+    /** Blocks read ahead when a sequential reader is first seen. */
+    public static final int MIN_WINDOW = 4;
+    /** Most blocks read ahead of a reader. */
+    public static final int MAX_WINDOW = 256;
+
+    // Block after the last read, -1 before the first read
+    private int next = -1;
+    // 0 when not reading ahead
+    private int window;
+    // Blocks before this have been read ahead
+    private int end;
+    // First block of the last window
+    private int start;
+    // A block read ahead was gone from the cache when it was read
+    private boolean missed;
+
+    /**
+     * Tell that blocks of the file have been read and find out what to read
+     * ahead.
+     * @param first First block read, counted from the start of the file.
+     * @param last The block after the last block read.
+     * @param hit true if the first block was in the cache.
+     * @return Number of blocks to read ahead from getStart(), 0 for none.
+     */
+    public synchronized int onRead(int first, int last, boolean hit) {
+        int result = 0;
+        // Small reads continue in the block where the last one ended
+        boolean sequential = first == next || first == next - 1
+                || (next == -1 && first == 0);
+        next = last;
+        if (!sequential) {
+            window = 0;
+            missed = false;
+        } else {
+            if (first < start && !hit) {
+                missed = true;
+            }
+            end = Math.max(end, last);
+            boolean move = window == 0 || end - last < window / 2;
+            if (window == 0) {
+                window = Math.min(Math.max(2 * (last - first), MIN_WINDOW), MAX_WINDOW);
+            } else if (move) {
+                window = missed ? Math.max(window / 2, MIN_WINDOW)
+                        : Math.min(window * 2, MAX_WINDOW);
+                missed = false;
+            }
+            if (move) {
+                start = end;
+                end = last + window;
+                result = end - start;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return First block to read ahead, after onRead() returned more than 0.
+     */
+    public synchronized int getStart() {
+        return start;
+    }
+
+    /**
+     * @return Current window in blocks, 0 when not reading ahead.
+     */
+    public synchronized int getWindow() {
+        return window;
+    }
+}
@@ -0,0 +1,100 @@
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Reference counts of data blocks, for blocks shared by copies of a file.
+ * Only the references beyond the first are counted, so a block used by one 
+ * file has the count 0, like every other block.
+ *
+ * The file system keeps a copy of the counts on the device, and only writes
+ * the counts that changed since the last time. They are changed with 
+ * atomic operations since files sharing a block don't share a lock.
+ */
+public class RefCountTable {
+    private final AtomicIntegerArray extra;
+    private final ChangedBlocks changed;
+
+    /**
+     * @param numBlocks Number of blocks on the device.
+     */
+    public RefCountTable(int numBlocks) {
+        extra = new AtomicIntegerArray(numBlocks);
+        changed = new ChangedBlocks(numBlocks);
+    }
+
+    /**
+     * Add a reference to a block.
+     * @param blockId Which block.
+     */
+    public void share(int blockId) {
+        extra.incrementAndGet(blockId);
+        changed.mark(blockId);
+    }
+
+    /**
+     * @param blockId Which block.
+     * @return true if more than one file uses the block.
+     */
+    public boolean isShared(int blockId) {
+        return extra.get(blockId) > 0;
+    }
+
+    /**
+     * Drop a reference to a block.
+     * @param blockId Which block.
+     * @return true if it was the last reference, the block is free then.
+     */
+    public boolean release(int blockId) {
+        boolean result = false;
+        boolean done = false;
+        while (!done) {
+            int count = extra.get(blockId);
+            if (count == 0) {
+                result = true;
+                done = true;
+            } else {
+                done = extra.compareAndSet(blockId, count, count - 1);
+                if (done) {
+                    changed.mark(blockId);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param blockId Which block.
+     * @return Number of files using the block, 1 for blocks that aren't 
+     * shared and for blocks that aren't used at all.
+     */
+    public int getCount(int blockId) {
+        return extra.get(blockId) + 1;
+    }
+
+    /**
+     * Set the count of a block read from the device. It isn't marked as
+     * changed.
+     * @param blockId Which block.
+     * @param count Number of files using the block, at least 1.
+     */
+    public void setCount(int blockId, int count) {
+        extra.set(blockId, count - 1);
+    }
+
+    /**
+     * @param blockId Where to start looking.
+     * @return The first block at or after blockId whose count changed since
+     * clearChanged() was last called for it, or -1.
+     */
+    public int nextChanged(int blockId) {
+        return changed.next(blockId);
+    }
+
+    /**
+     * Forget that counts changed, before they are saved.
+     * @param start First block.
+     * @param end The block after the last one.
+     */
+    public void clearChanged(int start, int end) {
+        changed.clear(start, end);
+    }
+}
@@ -42,6 +42,26 @@ public class Shell {
 		setNormalColors();
 	}
 	
+	/**
+	 * List a folder, printing every file as soon as it is read.
+	 */
+	private void ls(String[] path) {
+		fileManager.ls(path, new FileManager.ListPrinter() {
+			public void printFolder(String line) {
+				setFolderColors();
+				printer.println(line);
+			}
+			public void printFile(String line) {
+				setFileColors();
+				printer.println(line);
+			}
+			public void printSummary(String line) {
+				printInfoMsg(line);
+			}
+		});
+		setNormalColors();
+	}
+	
 	private void setNormalColors() {
 		printer.setForegroundColor(Ansi.FColor.WHITE);
 		printer.print("");
@@ -71,7 +91,8 @@ public class Shell {
     
     public void start() {
         String[] asCommands = {"quit", "format", "ls", "create", "cat", "save", "read",
-            "rm", "copy", "append", "rename", "mkdir", "cd", "pwd", "help", "load"};
+            "rm", "copy", "append", "rename", "mkdir", "cd", "pwd", "help", "load", "sync", "check", "export",
+            "import-tree", "export-tree", "stats", "stress"};
 
         boolean bRun = true;
         String sCommand;
@@ -100,19 +121,26 @@ public class Shell {
                         return;
 
                     case 1: // format
-                        if (asCommandArray.length != 1) {
-							printWarningMsg("Usage: format");
-                        } else {
+                        if (asCommandArray.length == 1) {
                             printInfoMsg(fileManager.format());
+                        } else if (asCommandArray.length == 3) {
+                            try {
+                                printInfoMsg(fileManager.format(Integer.parseInt(asCommandArray[1]), 
+                                        Integer.parseInt(asCommandArray[2])));
+                            } catch (NumberFormatException ex) {
+                                printWarningMsg("Usage: format [<blocks> <block-size>]");
+                            }
+                        } else {
+							printWarningMsg("Usage: format [<blocks> <block-size>]");
                         }
                         break;
                     case 2: // ls
                         if (asCommandArray.length == 1) {
 							
-                            printInfoMsg(fileManager.ls(split(".", '/')));
+                            ls(split(".", '/'));
                         } else {
                             if (asCommandArray.length == 2) {
-								printInfoMsg(fileManager.ls(split(asCommandArray[1], '/')));
+								ls(split(asCommandArray[1], '/'));
                             } else {
 								printWarningMsg("Usage: ls <path>");
                             }
@@ -135,10 +163,12 @@ public class Shell {
                         }
                         break;
                     case 5: // save
-                        if (asCommandArray.length != 2) {
-                            printWarningMsg("Usage: save <real-file>");
-                        } else {
+                        if (asCommandArray.length == 2) {
                             printInfoMsg(fileManager.save(asCommandArray[1]));
+                        } else if (asCommandArray.length == 3 && asCommandArray[1].equals("-i")) {
+                            printInfoMsg(fileManager.save(asCommandArray[2], true));
+                        } else {
+                            printWarningMsg("Usage: save [-i] <real-file>");
                         }
                         break;
                     case 6: // read
@@ -218,6 +248,62 @@ public class Shell {
                             printInfoMsg(fileManager.loadfile(asCommandArray[1]));
                         }
                         break;
+                    case 16: // sync
+                        if (asCommandArray.length != 1) {
+                            printWarningMsg("Usage: sync");
+                        } else {
+                            printInfoMsg(fileManager.sync());
+                        }
+                        break;
+                    case 17: // check
+                        if (asCommandArray.length != 1) {
+                            printWarningMsg("Usage: check");
+                        } else {
+                            printInfoMsg(fileManager.check());
+                        }
+                        break;
+                    case 18: // export
+                        if (asCommandArray.length != 3) {
+                            printWarningMsg("Usage: export <file> <real-file>");
+                        } else {
+                            printInfoMsg(fileManager.exportFile(split(asCommandArray[1], '/'), asCommandArray[2]));
+                        }
+                        break;
+                    case 19: // import-tree
+                        if (asCommandArray.length != 3) {
+                            printWarningMsg("Usage: import-tree <real-folder> <directory>");
+                        } else {
+                            printInfoMsg(fileManager.importTree(asCommandArray[1], split(asCommandArray[2], '/')));
+                        }
+                        break;
+                    case 20: // export-tree
+                        if (asCommandArray.length != 3) {
+                            printWarningMsg("Usage: export-tree <directory> <real-folder>");
+                        } else {
+                            printInfoMsg(fileManager.exportTree(split(asCommandArray[1], '/'), asCommandArray[2]));
+                        }
+                        break;
+                    case 21: // stats
+                        if (asCommandArray.length == 1) {
+                            printInfoMsg(fileManager.stats(false));
+                        } else if (asCommandArray.length == 2 && asCommandArray[1].equals("-r")) {
+                            printInfoMsg(fileManager.stats(true));
+                        } else {
+                            printWarningMsg("Usage: stats [-r]");
+                        }
+                        break;
+                    case 22: // stress
+                        if (asCommandArray.length == 3) {
+                            try {
+                                printInfoMsg(fileManager.stress(Integer.parseInt(asCommandArray[1]), 
+                                        Integer.parseInt(asCommandArray[2])));
+                            } catch (NumberFormatException ex) {
+                                printWarningMsg("Usage: stress <threads> <operations>");
+                            }
+                        } else {
+                            printWarningMsg("Usage: stress <threads> <operations>");
+                        }
+                        break;
 
                     default:
                         printWarningMsg("Unknown command " + asCommandArray[0]);
@@ -232,10 +318,12 @@ public class Shell {
         printer.println("-----------------------------------------------------------------------------------");
         printer.println("* quit:                             Quit OSD Disk Tool");
         printer.println("* format;                           Formats disk");
+        printer.println("* format <blocks> <block-size>:     Formats disk with a new geometry");
         printer.println("* ls     <path>:                    Lists contents of <path>.");
         printer.println("* create <path>:                    Creates a file and stores contents in <path>");
         printer.println("* cat    <path>:                    Dumps contents of <file>.");
         printer.println("* save   <real-file>:               Saves disk to <real-file>");
+        printer.println("* save   -i <real-file>:            Saves only changed blocks to <real-file>");
         printer.println("* read   <real-file>:               Reads <real-file> onto disk");
         printer.println("* rm     <path>:                    Removes <file>");
         printer.println("* copy   <source>    <destination>: Copy <source> to <destination>");
@@ -245,6 +333,15 @@ public class Shell {
         printer.println("* cd     <directory>:               Changes current working directory to <directory>");
         printer.println("* pwd:                              Get current working directory");
         printer.println("* help:                             Prints this help screen");
+        printer.println("* sync:                             Writes all changes to the disk");
+        printer.println("* check:                            Checks that no blocks are lost or shared");
+        printer.println("* export <file>      <real-file>:   Copies <file> to <real-file>");
+        printer.println("* import-tree <real-folder> <directory>: Copies <real-folder> into <directory>");
+        printer.println("* export-tree <directory> <real-folder>: Copies <directory> into <real-folder>");
+        printer.println("* stats:                            Prints command times and file system counters");
+        printer.println("* stats  -r:                        Resets the statistics");
+        printer.println("* stress <threads> <operations>:    Runs <operations> from each of <threads> at once in");
+        printer.println("                                    a new folder, removes it and checks the disk");
 		setNormalColors();
 		printer.print("");
     }
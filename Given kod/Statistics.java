@@ -0,0 +1,108 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * What the file system has been doing: a LatencyHistogram for each
+ * FileManager command and counters for the work under them. Nothing is
+ * allocated when something is counted, so it is always on.
+ */
+public class Statistics {
+    public static final int CREATE = 0;
+    public static final int CAT = 1;
+    public static final int COPY = 2;
+    public static final int REMOVE = 3;
+    public static final int LIST = 4;
+    public static final int CHANGE_DIR = 5;
+    public static final int SAVE = 6;
+    public static final int READ = 7;
+    /** Name of each command, as typed in the shell. */
+    public static final String[] NAMES = {"create", "cat", "cp", "rm", "ls", "cd", "save", "read"};
+
+    private final LatencyHistogram[] histograms = new LatencyHistogram[NAMES.length];
+    private final AtomicLong blocksRead = new AtomicLong();
+    private final AtomicLong blocksWritten = new AtomicLong();
+    private final AtomicLong folderDecodes = new AtomicLong();
+    private final AtomicLong allocatorCalls = new AtomicLong();
+
+    public Statistics() {
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Count how long a command took.
+     * @param command One of CREATE to READ.
+     * @param start System.nanoTime() when the command started.
+     */
+    public void record(int command, long start) {
+        histograms[command].record(System.nanoTime() - start);
+    }
+
+    /**
+     * @param command One of CREATE to READ.
+     * @return The times of the command.
+     */
+    public LatencyHistogram getHistogram(int command) {
+        return histograms[command];
+    }
+
+    /**
+     * @param count Number of blocks read from the device. Reading a part of
+     * a block counts as a block.
+     */
+    public void addBlocksRead(int count) {
+        blocksRead.addAndGet(count);
+    }
+
+    /**
+     * @param count Number of blocks written to the device. Writing a part of
+     * a block counts as a block.
+     */
+    public void addBlocksWritten(int count) {
+        blocksWritten.addAndGet(count);
+    }
+
+    /**
+     * Count a folder block decoded, a HashedFolder node or a whole old
+     * FolderBlock.
+     */
+    public void addFolderDecode() {
+        folderDecodes.incrementAndGet();
+    }
+
+    /**
+     * Count a call asking the allocator for free blocks.
+     */
+    public void addAllocatorCall() {
+        allocatorCalls.incrementAndGet();
+    }
+
+    public long getBlocksRead() {
+        return blocksRead.get();
+    }
+
+    public long getBlocksWritten() {
+        return blocksWritten.get();
+    }
+
+    public long getFolderDecodes() {
+        return folderDecodes.get();
+    }
+
+    public long getAllocatorCalls() {
+        return allocatorCalls.get();
+    }
+
+    /**
+     * Start counting from zero again.
+     */
+    public void reset() {
+        for (LatencyHistogram histogram : histograms) {
+            histogram.reset();
+        }
+        blocksRead.set(0);
+        blocksWritten.set(0);
+        folderDecodes.set(0);
+        allocatorCalls.set(0);
+    }
+}
@@ -0,0 +1,340 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Runs a mix of operations on the file system from several threads at once
+ * and then checks it with FileSystem.check(). The threads create, write,
+ * append to, rename and remove files, make folders and copy files, each in
+ * a transaction of its own, like the shell does.
+ *
+ * The test works in a folder it makes, which is removed at the end. Every
+ * thread has a folder of its own in it, and they all share one more. Files
+ * in a thread's own folder are only changed by that thread, so what it
+ * writes there is read back and compared. In the shared folder the threads
+ * race for the same names. The file system is checked when all threads are
+ * done, and again when the folder has been removed.
+ *
+ * Operations may fail, e.g. when the disk is full. That is not an error as
+ * long as they leave the file system whole.
+ *
+ * The results are those of the last run.
+ */
+public class StressTest {
+    /** Name of the folder the test works in. */
+    public static final String FOLDER = "stress";
+    /** Number of names the threads pick from in each folder. */
+    public static final int NUM_NAMES = 20;
+    /** Largest write, in bytes. */
+    public static final int MAX_WRITE = 3000;
+    /** Most errors described in the report. */
+    public static final int MAX_REPORTED = 10;
+
+    private final FileSystem fileSystem;
+    private final int numThreads;
+    private final int numOps;
+
+    private final ArrayList<String> errors = new ArrayList<String>();
+    private int numErrors;
+    private ArrayList<String> problems = new ArrayList<String>();
+    private long time;
+
+    /**
+     * @param fileSystem The file system.
+     * @param numThreads Number of threads.
+     * @param numOps Number of operations each thread runs.
+     */
+    public StressTest(FileSystem fileSystem, int numThreads, int numOps) {
+        this.fileSystem = fileSystem;
+        this.numThreads = numThreads;
+        this.numOps = numOps;
+    }
+
+    /**
+     * Run the test. Nothing else should use the file system meanwhile, the
+     * check would report files being changed as problems.
+     * @param path The folder to make the test's folder in.
+     * @return false if the folder couldn't be made, e.g. because it exists.
+     * @throws InterruptedException If the thread is interrupted while waiting
+     * for the threads of the test. They are still running then.
+     */
+    public boolean run(String[] path) throws InterruptedException {
+        synchronized (errors) {
+            errors.clear();
+            numErrors = 0;
+        }
+        problems = new ArrayList<String>();
+        time = 0;
+        long start = System.nanoTime();
+
+        final String[] root = append(path, FOLDER);
+        boolean result = false;
+        fileSystem.beginTransaction();
+        try {
+            result = fileSystem.touchFile(FOLDER, true, path) != -1
+                    && fileSystem.touchFile("shared", true, root) != -1;
+        } finally {
+            commit();
+        }
+        if (result) {
+            Thread[] threads = new Thread[numThreads];
+            for (int t = 0; t < numThreads; t++) {
+                final int thread = t;
+                threads[t] = new Thread(new Runnable() {
+                    public void run() {
+                        try {
+                            runThread(thread, root);
+                        } catch (Throwable ex) {
+                            // Broken folders can show up as any kind of error
+                            error("Thread " + thread + ": " + ex);
+                        }
+                    }
+                }, "Stress test " + t);
+            }
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+
+            problems.addAll(fileSystem.check());
+            fileSystem.beginTransaction();
+            try {
+                if (!fileSystem.removeFile(FOLDER, path)) {
+                    error("The test's folder couldn't be removed");
+                }
+            } finally {
+                commit();
+            }
+            for (String problem : fileSystem.check()) {
+                problems.add("After removing the test's folder: " + problem);
+            }
+        }
+        time = System.nanoTime() - start;
+        return result;
+    }
+
+    /**
+     * The operations of one thread.
+     * @param thread Number of the thread, its files are filled with it.
+     * @param root The test's folder.
+     */
+    private void runThread(int thread, String[] root) {
+        Random random = new Random(thread);
+        byte fill = (byte) (thread + 1);
+        String[] own = append(root, "t" + thread);
+        String[] shared = append(root, "shared");
+        fileSystem.beginTransaction();
+        try {
+            fileSystem.touchFile("t" + thread, true, root);
+        } finally {
+            commit();
+        }
+
+        for (int i = 0; i < numOps; i++) {
+            boolean isOwn = random.nextBoolean();
+            String[] folder = isOwn ? own : shared;
+            String name = "f" + random.nextInt(NUM_NAMES);
+            fileSystem.beginTransaction();
+            try {
+                switch (random.nextInt(8)) {
+                    case 0: // create
+                        fileSystem.touchFile(name, false, folder);
+                        break;
+                    case 1: // write
+                        byte[] data = new byte[random.nextInt(MAX_WRITE)];
+                        Arrays.fill(data, fill);
+                        if (fileSystem.writeToFile(name, data, folder) && isOwn) {
+                            byte[] back = read(name, folder);
+                            if (!Arrays.equals(data, back)) {
+                                error(path(folder, name) + " doesn't hold what was written");
+                            }
+                        }
+                        break;
+                    case 2: // write a part
+                        writePart(random, name, folder, fill, isOwn);
+                        break;
+                    case 3: // append
+                        fileSystem.appendToFile(name, folder, new byte[random.nextInt(MAX_WRITE / 4)]);
+                        break;
+                    case 4: // rename
+                        // In the shared folder another thread may take the name
+                        if (fileSystem.rename(name, name + "x", folder)
+                                && !fileSystem.rename(name + "x", name, folder) && isOwn) {
+                            error(path(folder, name) + " couldn't be renamed back");
+                        }
+                        break;
+                    case 5: // rm
+                        fileSystem.removeFile(name, folder);
+                        break;
+                    case 6: // mkdir
+                        fileSystem.touchFile("sub", true, folder);
+                        fileSystem.touchFile(name, false, append(folder, "sub"));
+                        if (random.nextInt(4) == 0) {
+                            fileSystem.removeFile("sub", folder);
+                        }
+                        break;
+                    default: // cp
+                        String copy = "c" + thread + "_" + random.nextInt(NUM_NAMES);
+                        fileSystem.removeFile(copy, shared);
+                        if (random.nextInt(8) == 0) {
+                            fileSystem.copy(own, append(shared, copy));
+                        } else {
+                            fileSystem.copy(append(folder, name), append(shared, copy));
+                        }
+                        break;
+                }
+            } finally {
+                commit();
+            }
+        }
+    }
+
+    /**
+     * Write a part of a file through a file descriptor. In the thread's own
+     * folder it is read back.
+     */
+    private void writePart(Random random, String name, String[] folder, byte fill,
+            boolean isOwn) {
+        int fd = fileSystem.open(name, folder);
+        if (fd != -1) {
+            long offset = random.nextInt(MAX_WRITE);
+            byte[] data = new byte[random.nextInt(MAX_WRITE / 2) + 1];
+            Arrays.fill(data, fill);
+            if (fileSystem.pwrite(fd, offset, data, 0, data.length) == data.length && isOwn) {
+                byte[] back = new byte[data.length];
+                if (readFully(fd, offset, back) != back.length || !Arrays.equals(data, back)) {
+                    error(path(folder, name) + " doesn't hold what was written at " + offset);
+                }
+            }
+            fileSystem.close(fd);
+        }
+    }
+
+    /**
+     * @return The content of a file, or null if it can't be read.
+     */
+    private byte[] read(String name, String[] folder) {
+        byte[] result = null;
+        int fd = fileSystem.open(name, folder);
+        if (fd != -1) {
+            long size = fileSystem.size(fd);
+            if (size != -1) {
+                result = new byte[(int) size];
+                if (readFully(fd, 0, result) != size) {
+                    result = null;
+                }
+            }
+            fileSystem.close(fd);
+        }
+        return result;
+    }
+
+    /**
+     * Read through a file descriptor until dst is full or the file ends.
+     * @return Number of bytes read.
+     */
+    private int readFully(int fd, long offset, byte[] dst) {
+        int result = 0;
+        int n = 1;
+        while (result < dst.length && n > 0) {
+            n = fileSystem.pread(fd, offset + result, dst, result, dst.length - result);
+            if (n > 0) {
+                result += n;
+            }
+        }
+        return result;
+    }
+
+    private void commit() {
+        try {
+            fileSystem.commitTransaction();
+        } catch (IOException ex) {
+            error("Failed to write journal: " + ex);
+        }
+    }
+
+    private void error(String error) {
+        synchronized (errors) {
+            numErrors++;
+            if (errors.size() < MAX_REPORTED) {
+                errors.add(error);
+            }
+        }
+    }
+
+    private static String[] append(String[] path, String name) {
+        String[] result = new String[path.length + 1];
+        System.arraycopy(path, 0, result, 0, path.length);
+        result[path.length] = name;
+        return result;
+    }
+
+    private static String path(String[] folder, String name) {
+        StringBuilder result = new StringBuilder();
+        for (String part : folder) {
+            result.append(part).append('/');
+        }
+        return result.append(name).toString();
+    }
+
+    /**
+     * @return true if the last run found no errors and no problems.
+     */
+    public boolean isPassed() {
+        synchronized (errors) {
+            return numErrors == 0 && problems.isEmpty();
+        }
+    }
+
+    /**
+     * @return What the last run found.
+     */
+    public String getReport() {
+        StringBuilder result = new StringBuilder();
+        double seconds = Math.max(1, time) / 1e9;
+        long ops = (long) numThreads * numOps;
+        result.append(String.format("%d operation(s) from %d thread(s) in %.2f s (%.0f ops/s)",
+                ops, numThreads, seconds, ops / seconds));
+        synchronized (errors) {
+            if (numErrors > 0) {
+                result.append("\n").append(numErrors).append(" error(s)");
+                for (String error : errors) {
+                    result.append("\n").append(error);
+                }
+            }
+        }
+        if (!problems.isEmpty()) {
+            result.append("\n").append(problems.size()).append(" problem(s) found");
+            for (String problem : problems) {
+                result.append("\n").append(problem);
+            }
+        }
+        if (isPassed()) {
+            result.append("\nNo problems found");
+        }
+        return result.toString();
+    }
+
+    /**
+     * Run the test on a new file system in memory, in front of a small
+     * buffer cache so that blocks are evicted while the threads run.
+     * @param args Number of threads and operations per thread, 8 and 2000 if
+     * not given. Exits with 1 if the test fails.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int numThreads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int numOps = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        FileSystem fileSystem = new FileSystem(new BufferCache(new HeapBlockDevice(65536, 512), 256));
+        fileSystem.format(65536, 512);
+        StressTest test = new StressTest(fileSystem, numThreads, numOps);
+        test.run(new String[0]);
+        System.out.println(test.getReport());
+        fileSystem.close();
+        if (!test.isPassed()) {
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Class used when working with the superblock, the first block of the device.
+ * It records the geometry the device was formatted with and where the root
+ * folder, the journal and the map of used blocks are, so that a device can 
+ * be mounted without knowing how it was made.
+ * The fields are at the start of the block, so they can be read before the
+ * block size is known.
+ */
+public class Superblock {
+    /** "OSDF" */
+    public static final int MAGIC = 0x4F534446;
+    /** Version 1 had no journal and version 2 no map. */
+    public static final int VERSION = 3;
+    /** Number of bytes used at the start of the block. */
+    public static final int SIZE = 36;
+
+    private int numBlocks;
+    private int blockSize;
+    private int rootId;
+    private int journalStart;
+    private int journalBlocks;
+    private int mapStart;
+    private int mapBlocks;
+
+    public Superblock() {
+    }
+
+    public Superblock(int numBlocks, int blockSize, int rootId, 
+            int journalStart, int journalBlocks, int mapStart, int mapBlocks) {
+        this.numBlocks = numBlocks;
+        this.blockSize = blockSize;
+        this.rootId = rootId;
+        this.journalStart = journalStart;
+        this.journalBlocks = journalBlocks;
+        this.mapStart = mapStart;
+        this.mapBlocks = mapBlocks;
+    }
+
+    public Superblock(byte[] block) {
+        load(block);
+    }
+
+    /**
+     * @param block At least SIZE bytes from the start of the first block.
+     * @return false if the bytes are not a superblock of a known version.
+     */
+    public boolean load(byte[] block) {
+        boolean success = false;
+        if (block.length >= SIZE && FileSystem.byteArrayToInt(block, 0) == MAGIC) {
+            int version = FileSystem.byteArrayToInt(block, 4);
+            if (version >= 1 && version <= VERSION) {
+                blockSize = FileSystem.byteArrayToInt(block, 8);
+                numBlocks = FileSystem.byteArrayToInt(block, 12);
+                rootId = FileSystem.byteArrayToInt(block, 16);
+                journalStart = 0;
+                journalBlocks = 0;
+                mapStart = 0;
+                mapBlocks = 0;
+                if (version >= 2) {
+                    journalStart = FileSystem.byteArrayToInt(block, 20);
+                    journalBlocks = FileSystem.byteArrayToInt(block, 24);
+                }
+                if (version >= 3) {
+                    mapStart = FileSystem.byteArrayToInt(block, 28);
+                    mapBlocks = FileSystem.byteArrayToInt(block, 32);
+                }
+                success = true;
+            }
+        }
+        return success;
+    }
+
+    /**
+     * @return SIZE bytes to write at the start of the first block.
+     */
+    public byte[] save() {
+        byte[] block = new byte[SIZE];
+        FileSystem.intToByteArray(MAGIC, block, 0);
+        FileSystem.intToByteArray(VERSION, block, 4);
+        FileSystem.intToByteArray(blockSize, block, 8);
+        FileSystem.intToByteArray(numBlocks, block, 12);
+        FileSystem.intToByteArray(rootId, block, 16);
+        FileSystem.intToByteArray(journalStart, block, 20);
+        FileSystem.intToByteArray(journalBlocks, block, 24);
+        FileSystem.intToByteArray(mapStart, block, 28);
+        FileSystem.intToByteArray(mapBlocks, block, 32);
+        return block;
+    }
+
+    /**
+     * Read the superblock of an image file.
+     * @param path The image file.
+     * @return The superblock, or null if the file doesn't start with one.
+     * @throws IOException If the file can't be read.
+     */
+    public static Superblock read(File path) throws IOException {
+        Superblock result = null;
+        RandomAccessFile file = new RandomAccessFile(path, "r");
+        try {
+            byte[] block = new byte[SIZE];
+            if (file.length() >= SIZE) {
+                file.readFully(block);
+                Superblock superblock = new Superblock();
+                if (superblock.load(block)) {
+                    result = superblock;
+                }
+            }
+        } finally {
+            file.close();
+        }
+        return result;
+    }
+
+    public int getNumBlocks() {
+        return numBlocks;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public int getRootId() {
+        return rootId;
+    }
+
+    public int getJournalStart() {
+        return journalStart;
+    }
+
+    /**
+     * @return Number of blocks in the journal region, 0 if there is none.
+     */
+    public int getJournalBlocks() {
+        return journalBlocks;
+    }
+
+    public int getMapStart() {
+        return mapStart;
+    }
+
+    /**
+     * @return Number of blocks in the map region, 0 if there is none.
+     */
+    public int getMapBlocks() {
+        return mapBlocks;
+    }
+}
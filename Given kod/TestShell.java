@@ -1,10 +1,68 @@
 
+import java.io.File;
+import java.io.IOException;
+
 public class TestShell {
 
+    /**
+     * @param args Optional path to an image file. The file system is then kept
+     * in that file instead of in memory. A new file is formatted, an existing
+     * one is mounted with the geometry in its superblock. The file is memory
+     * mapped unless a second argument gives the number of blocks to keep in a
+     * BufferCache, then it is read and written through the cache.
+     * 
+     * Run with -Dfilesystem.jfr=true to report events to Java Flight 
+     * Recorder, see Events.
+     */
     public static void main(String[] args) {
-        FileSystem BlockTest = new FileSystem();
-        FileManager FS = new FileManager(BlockTest);
+        FileSystem BlockTest;
+        FileManager FS;
+        if (Boolean.getBoolean("filesystem.jfr") && !Events.installJfr()) {
+            System.out.println("Flight Recorder events need " + Events.JFR_SINK 
+                    + " on the class path and Java 11 or later");
+        }
+        if (args.length > 0) {
+            File image = new File(args[0]);
+            int cacheSize = 0;
+            if (args.length > 1) {
+                try {
+                    cacheSize = Integer.parseInt(args[1]);
+                } catch (NumberFormatException ex) {
+                    System.out.println("Cache size has to be a number of blocks");
+                    return;
+                }
+            }
+            try {
+                // An existing image knows its own geometry
+                Superblock superblock = null;
+                if (image.exists()) {
+                    superblock = Superblock.read(image);
+                }
+                int numBlocks = FileSystem.DEFAULT_NUM_BLOCKS;
+                int blockSize = FileSystem.DEFAULT_BLOCK_SIZE;
+                if (superblock != null) {
+                    numBlocks = superblock.getNumBlocks();
+                    blockSize = superblock.getBlockSize();
+                }
+                BlockDevice device;
+                if (cacheSize > 0) {
+                    device = new BufferCache(new FileBlockDevice(image, numBlocks, blockSize), 
+                            cacheSize);
+                } else {
+                    device = new MappedBlockDevice(image, numBlocks, blockSize);
+                }
+                BlockTest = new FileSystem(device);
+                FS = new FileManager(BlockTest, superblock == null);
+            } catch (IOException ex) {
+                System.out.println("Couldn't open image file " + args[0]);
+                return;
+            }
+        } else {
+            BlockTest = new FileSystem();
+            FS = new FileManager(BlockTest);
+        }
         Shell Bash = new Shell(FS, null);
         Bash.start();
+        FS.close();
     }
 }
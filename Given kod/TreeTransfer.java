@@ -0,0 +1,515 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Copies whole trees of files between the real disk and the file system.
+ *
+ * When importing, a pool of threads walks the real folders and reads the
+ * files. What they find is put in a queue, and only the thread calling
+ * importTree() takes from it and adds to the file system, BATCH_SIZE files
+ * per transaction. The readers never wait for each other's locks in the file
+ * system, and they can't get far ahead of the writer: the queue holds at most
+ * QUEUE_SIZE items, and the readers take room for a file's content from a
+ * budget of MAX_BUFFERED bytes before reading it. The writer gives the room
+ * back when the file is added. Files larger than MAX_READ_SIZE are not read
+ * by the pool, the writer streams them into the file system.
+ *
+ * When exporting, the pool walks the folders of the file system and writes
+ * the files to the real disk. The file system can be read by several
+ * threads at once, so nothing has to go through one thread.
+ *
+ * The counters are those of the last import or export.
+ */
+public class TreeTransfer {
+    /** Files added to the file system per transaction when importing. */
+    public static final int BATCH_SIZE = 64;
+    /** Files read ahead of the writer at most when importing. */
+    public static final int QUEUE_SIZE = 256;
+    /** Larger files are streamed by the writer instead of read by the pool. */
+    public static final int MAX_READ_SIZE = 1 << 20;
+    /** Bytes of file content read ahead of the writer at most when importing. */
+    public static final int MAX_BUFFERED = 16 << 20;
+    /** Number of files listed at a time when exporting. */
+    public static final int LIST_PAGE_SIZE = 256;
+
+    /**
+     * Something found by the walkers, to be added to the file system.
+     */
+    private static class Item {
+        private final String[] path;
+        private final String name;
+        private final boolean folder;
+        private final byte[] data;
+        private final File hostFile;
+
+        /**
+         * @param path The folder to add it to.
+         * @param name Name of the file.
+         * @param folder true to make a folder.
+         * @param data Content of the file, null if it is streamed.
+         * @param hostFile The real file.
+         */
+        public Item(String[] path, String name, boolean folder, byte[] data, File hostFile) {
+            this.path = path;
+            this.name = name;
+            this.folder = folder;
+            this.data = data;
+            this.hostFile = hostFile;
+        }
+    }
+
+    // Put in the queue when the walk is done
+    private static final Item END = new Item(null, null, false, null, null);
+
+    /**
+     * Runs tasks that add more tasks, and knows when all of them are done.
+     */
+    private static class Walk {
+        private final ExecutorService pool;
+        private final AtomicInteger pending = new AtomicInteger();
+        private final Runnable onFinished;
+
+        /**
+         * @param pool The threads.
+         * @param onFinished Run by the thread finishing the last task.
+         */
+        public Walk(ExecutorService pool, Runnable onFinished) {
+            this.pool = pool;
+            this.onFinished = onFinished;
+        }
+
+        public void submit(final Runnable task) {
+            pending.incrementAndGet();
+            pool.execute(new Runnable() {
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        if (pending.decrementAndGet() == 0) {
+                            onFinished.run();
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    private final FileSystem fileSystem;
+    private final int numThreads;
+
+    private final AtomicInteger numFiles = new AtomicInteger();
+    private final AtomicInteger numFolders = new AtomicInteger();
+    private final AtomicLong numBytes = new AtomicLong();
+    private final AtomicInteger numFailed = new AtomicInteger();
+    private long time;
+
+    /**
+     * @param fileSystem The file system.
+     * @param numThreads Number of threads walking and reading.
+     */
+    public TreeTransfer(FileSystem fileSystem, int numThreads) {
+        this.fileSystem = fileSystem;
+        this.numThreads = numThreads;
+    }
+
+    /**
+     * Copy the content of a real folder into a folder of the file system,
+     * with all sub-folders. The folder is made if it doesn't exist, as long
+     * as its parent does. Files that already exist are not replaced, they
+     * count as failed.
+     * @param hostDir The real folder.
+     * @param path Path of the folder in the file system.
+     * @return false if the real folder or the parent of the folder doesn't
+     * exist.
+     * @throws InterruptedException If the thread is interrupted while waiting
+     * for the walkers. Part of the tree may be copied.
+     */
+    public boolean importTree(File hostDir, String[] path) throws InterruptedException {
+        resetCounters();
+        long start = System.nanoTime();
+        boolean result = hostDir.isDirectory() && makeFolder(path);
+        if (result) {
+            final BlockingQueue<Item> queue = new ArrayBlockingQueue<Item>(QUEUE_SIZE);
+            // Fair, so a large file isn't kept waiting by smaller ones
+            final Semaphore buffered = new Semaphore(MAX_BUFFERED, true);
+            ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+            try {
+                Walk walk = new Walk(pool, new Runnable() {
+                    public void run() {
+                        put(queue, END);
+                    }
+                });
+                walk.submit(importFolder(walk, queue, buffered, hostDir, path));
+
+                ArrayList<Item> batch = new ArrayList<Item>(BATCH_SIZE);
+                boolean done = false;
+                while (!done) {
+                    batch.clear();
+                    batch.add(queue.take());
+                    queue.drainTo(batch, BATCH_SIZE - 1);
+                    fileSystem.beginTransaction();
+                    try {
+                        for (Item item : batch) {
+                            if (item == END) {
+                                done = true;
+                            } else {
+                                add(item);
+                                if (item.data != null) {
+                                    buffered.release(item.data.length);
+                                }
+                            }
+                        }
+                    } finally {
+                        commit();
+                    }
+                }
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+        time = System.nanoTime() - start;
+        return result;
+    }
+
+    /**
+     * Make the folder to import into, if it doesn't exist.
+     */
+    private boolean makeFolder(String[] path) {
+        boolean result = fileSystem.isPathValid(path);
+        if (!result && path.length > 0) {
+            String[] parent = fileSystem.getFolderPath(path);
+            fileSystem.beginTransaction();
+            try {
+                result = fileSystem.touchFile(path[path.length - 1], true, parent) != -1;
+            } finally {
+                commit();
+            }
+        }
+        return result;
+    }
+
+    private void commit() {
+        try {
+            fileSystem.commitTransaction();
+        } catch (IOException ex) {
+            // The changes are still in the file system, only not journaled
+            numFailed.incrementAndGet();
+        }
+    }
+
+    /**
+     * Put an item in the queue, waiting for room. The walkers are only 
+     * interrupted when the writer has stopped, then the item is dropped.
+     */
+    private void put(BlockingQueue<Item> queue, Item item) {
+        try {
+            queue.put(item);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return A task listing a real folder. Sub-folders are queued before
+     * anything in them, so the writer makes them first.
+     */
+    private Runnable importFolder(final Walk walk, final BlockingQueue<Item> queue,
+            final Semaphore buffered, final File hostDir, final String[] path) {
+        return new Runnable() {
+            public void run() {
+                File[] children = hostDir.listFiles();
+                if (children == null) {
+                    numFailed.incrementAndGet();
+                } else {
+                    for (File child : children) {
+                        if (child.isDirectory()) {
+                            if (isLink(child)) {
+                                // Could lead back up the tree
+                                numFailed.incrementAndGet();
+                            } else {
+                                put(queue, new Item(path, child.getName(), true, null, child));
+                                walk.submit(importFolder(walk, queue, buffered, child,
+                                        append(path, child.getName())));
+                            }
+                        } else if (child.length() > MAX_READ_SIZE) {
+                            put(queue, new Item(path, child.getName(), false, null, child));
+                        } else {
+                            walk.submit(readFile(queue, buffered, child, path));
+                        }
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * @return A task reading a real file and queueing it. Room for the
+     * content is taken from buffered before it is read, and is given back
+     * by the writer.
+     */
+    private Runnable readFile(final BlockingQueue<Item> queue, final Semaphore buffered,
+            final File hostFile, final String[] path) {
+        return new Runnable() {
+            public void run() {
+                try {
+                    FileInputStream in = new FileInputStream(hostFile);
+                    try {
+                        FileChannel channel = in.getChannel();
+                        long size = channel.size();
+                        if (size > MAX_READ_SIZE) {
+                            // Got larger since the folder was listed
+                            put(queue, new Item(path, hostFile.getName(), false, null, hostFile));
+                        } else {
+                            readFile(queue, buffered, hostFile, path, channel, (int) size);
+                        }
+                    } finally {
+                        in.close();
+                    }
+                } catch (IOException ex) {
+                    numFailed.incrementAndGet();
+                } catch (InterruptedException ex) {
+                    // The writer has stopped
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+    }
+
+    private void readFile(BlockingQueue<Item> queue, Semaphore buffered, File hostFile,
+            String[] path, FileChannel channel, int size) throws IOException, InterruptedException {
+        buffered.acquire(size);
+        boolean queued = false;
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(size);
+            int read = 0;
+            while (buffer.hasRemaining() && read != -1) {
+                read = channel.read(buffer);
+            }
+            byte[] data = buffer.array();
+            if (buffer.hasRemaining()) {
+                // Got shorter while it was read
+                data = new byte[buffer.position()];
+                System.arraycopy(buffer.array(), 0, data, 0, data.length);
+                buffered.release(size - data.length);
+            }
+            put(queue, new Item(path, hostFile.getName(), false, data, hostFile));
+            queued = true;
+        } finally {
+            if (!queued) {
+                buffered.release(size);
+            }
+        }
+    }
+
+    /**
+     * Add a file or folder to the file system. Only called by the writer.
+     */
+    private void add(Item item) {
+        boolean result = false;
+        int id = fileSystem.touchFile(item.name, item.folder, item.path);
+        if (item.folder) {
+            // An existing folder is filled in
+            result = id != -1 || fileSystem.isPathValid(append(item.path, item.name));
+            if (result) {
+                numFolders.incrementAndGet();
+            }
+        } else if (id != -1) {
+            long bytes = -1;
+            if (item.data != null) {
+                if (fileSystem.writeFile(id, item.data)) {
+                    bytes = item.data.length;
+                }
+            } else {
+                try {
+                    FileInputStream in = new FileInputStream(item.hostFile);
+                    try {
+                        bytes = fileSystem.importFile(item.name, item.path, in.getChannel());
+                    } finally {
+                        in.close();
+                    }
+                } catch (IOException ex) {
+                    bytes = -1;
+                }
+            }
+            result = bytes != -1;
+            if (result) {
+                numFiles.incrementAndGet();
+                numBytes.addAndGet(bytes);
+            } else {
+                fileSystem.removeFile(item.name, item.path);
+            }
+        }
+        if (!result) {
+            numFailed.incrementAndGet();
+        }
+    }
+
+    /**
+     * Copy the content of a folder of the file system into a real folder,
+     * with all sub-folders. Real folders are made as needed and real files
+     * are replaced.
+     * @param path Path of the folder in the file system.
+     * @param hostDir The real folder.
+     * @return false if the folder doesn't exist.
+     * @throws InterruptedException If the thread is interrupted while waiting
+     * for the walkers. Part of the tree may be copied.
+     */
+    public boolean exportTree(String[] path, File hostDir) throws InterruptedException {
+        resetCounters();
+        long start = System.nanoTime();
+        boolean result = fileSystem.isPathValid(path);
+        if (result) {
+            final CountDownLatch finished = new CountDownLatch(1);
+            ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+            try {
+                Walk walk = new Walk(pool, new Runnable() {
+                    public void run() {
+                        finished.countDown();
+                    }
+                });
+                walk.submit(exportFolder(walk, path, hostDir));
+                finished.await();
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+        time = System.nanoTime() - start;
+        return result;
+    }
+
+    /**
+     * @return A task making a real folder and listing the folder to put in
+     * it.
+     */
+    private Runnable exportFolder(final Walk walk, final String[] path, final File hostDir) {
+        return new Runnable() {
+            public void run() {
+                if (hostDir.isDirectory() || hostDir.mkdir()) {
+                    ArrayList<DirectoryEntry> page = new ArrayList<DirectoryEntry>(LIST_PAGE_SIZE);
+                    long cursor = 0;
+                    do {
+                        page.clear();
+                        cursor = fileSystem.list(path, cursor, LIST_PAGE_SIZE, page);
+                        for (DirectoryEntry entry : page) {
+                            File child = new File(hostDir, entry.getName());
+                            if (entry.isFolder()) {
+                                numFolders.incrementAndGet();
+                                walk.submit(exportFolder(walk, append(path, entry.getName()), child));
+                            } else {
+                                walk.submit(exportFile(path, entry.getName(), child));
+                            }
+                        }
+                    } while (cursor != -1);
+                } else {
+                    numFailed.incrementAndGet();
+                }
+            }
+        };
+    }
+
+    /**
+     * @return A task writing a file to a real file.
+     */
+    private Runnable exportFile(final String[] path, final String name, final File hostFile) {
+        return new Runnable() {
+            public void run() {
+                long bytes = -1;
+                try {
+                    FileOutputStream out = new FileOutputStream(hostFile);
+                    try {
+                        bytes = fileSystem.exportFile(name, path, out.getChannel());
+                    } finally {
+                        out.close();
+                    }
+                } catch (IOException ex) {
+                    bytes = -1;
+                }
+                if (bytes != -1) {
+                    numFiles.incrementAndGet();
+                    numBytes.addAndGet(bytes);
+                } else {
+                    numFailed.incrementAndGet();
+                }
+            }
+        };
+    }
+
+    /**
+     * @return true if a real folder is a symbolic link, or reached through
+     * one.
+     */
+    private static boolean isLink(File dir) {
+        boolean result;
+        try {
+            File parent = dir.getAbsoluteFile().getParentFile();
+            File resolved = new File(parent.getCanonicalFile(), dir.getName());
+            result = !resolved.getCanonicalFile().equals(resolved.getAbsoluteFile());
+        } catch (IOException ex) {
+            result = true;
+        }
+        return result;
+    }
+
+    private static String[] append(String[] path, String name) {
+        String[] result = new String[path.length + 1];
+        System.arraycopy(path, 0, result, 0, path.length);
+        result[path.length] = name;
+        return result;
+    }
+
+    private void resetCounters() {
+        numFiles.set(0);
+        numFolders.set(0);
+        numBytes.set(0);
+        numFailed.set(0);
+        time = 0;
+    }
+
+    /**
+     * @return Number of files copied.
+     */
+    public int getNumFiles() {
+        return numFiles.get();
+    }
+
+    /**
+     * @return Number of folders made or filled in.
+     */
+    public int getNumFolders() {
+        return numFolders.get();
+    }
+
+    /**
+     * @return Number of bytes copied.
+     */
+    public long getNumBytes() {
+        return numBytes.get();
+    }
+
+    /**
+     * @return Number of files and folders that couldn't be copied.
+     */
+    public int getNumFailed() {
+        return numFailed.get();
+    }
+
+    /**
+     * @return How long the copy took, in nanoseconds.
+     */
+    public long getTime() {
+        return time;
+    }
+}
@@ -0,0 +1,78 @@
+package filesystem;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Taking a free block by how full the device is. FileSystem.getFreeBlock()
+ * is allocator.allocate(), which is measured here on the allocator itself.
+ * The used blocks are spread at random, so the free ones are too and the
+ * search has to skip used ones. Each block taken is given back, so the fill
+ * level stays the same.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AllocatorBenchmark {
+    /** Blocks on the device. */
+    public static final int NUM_BLOCKS = 1 << 20;
+    /** Blocks asked for by allocate(int). */
+    public static final int RUN_LENGTH = 8;
+
+    /** Used blocks in percent. */
+    @Param({"0", "50", "90", "99"})
+    public int fill;
+
+    private BitmapAllocator allocator;
+
+    @Setup
+    public void setUp() {
+        allocator = new BitmapAllocator(NUM_BLOCKS);
+        Random random = new Random(42);
+        for (int i = 0; i < NUM_BLOCKS; i++) {
+            if (random.nextInt(100) < fill) {
+                allocator.markUsed(i);
+            }
+        }
+    }
+
+    @Benchmark
+    public int getFreeBlock() {
+        int result = allocator.allocate();
+        allocator.markFree(result);
+        return result;
+    }
+
+    @Benchmark
+    public int allocateRun() {
+        BlockRun run = allocator.allocate(RUN_LENGTH);
+        allocator.free(run);
+        return run.getLength();
+    }
+
+    /**
+     * One thread per core sharing the allocator, which claims blocks with
+     * compare-and-set instead of a lock. Run with -t to try other thread
+     * counts.
+     */
+    @Benchmark
+    @Threads(Threads.MAX)
+    public int allocateRunShared() {
+        return allocateRun();
+    }
+}
@@ -0,0 +1,49 @@
+package filesystem;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Converting ints to and from bytes, which every block pointer and inode
+ * field goes through. The forms writing into an existing array should
+ * allocate nothing, see gc.alloc.rate.norm with -prof gc.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ConversionBenchmark {
+    private final byte[] block = new byte[FileSystem.DEFAULT_BLOCK_SIZE];
+    private int value = 0x12345678;
+    private int offset;
+
+    @Benchmark
+    public byte[] intToByteArrayInPlace() {
+        offset = (offset + 4) % block.length;
+        return FileSystem.intToByteArray(value++, block, offset);
+    }
+
+    @Benchmark
+    public int byteArrayToIntInPlace() {
+        offset = (offset + 4) % block.length;
+        return FileSystem.byteArrayToInt(block, offset);
+    }
+
+    /**
+     * The old form, which needs a new array for every int.
+     */
+    @Benchmark
+    public byte[] intToByteArray() {
+        return FileSystem.intToByteArray(value++);
+    }
+}
@@ -0,0 +1,67 @@
+package filesystem;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Copying a tree of folders and files. Every folder holds FAN_OUT files and
+ * FAN_OUT folders, down to the depth. The copy is removed again in the same
+ * operation, so the disk doesn't fill up. Removing a tree reads every folder
+ * and inode of it like copying does, so expect it to be a large part.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CopyBenchmark {
+    /** Files and folders in each folder. */
+    public static final int FAN_OUT = 4;
+    /** Size of each file in bytes. */
+    public static final int FILE_SIZE = 2048;
+
+    @Param({"0", "1", "2", "3"})
+    public int depth;
+
+    private FileSystem fileSystem;
+    private String[] source;
+    private String[] destination;
+    private String[] empty;
+
+    @Setup
+    public void setUp() {
+        fileSystem = Volumes.onHeap(16384, FileSystem.DEFAULT_BLOCK_SIZE);
+        empty = new String[0];
+        int treeId = fileSystem.touchFile("tree", true, empty);
+        Volumes.createTree(fileSystem, treeId, depth, FAN_OUT, Volumes.content(FILE_SIZE));
+        source = new String[] {"tree"};
+        destination = new String[] {"copy"};
+    }
+
+    @Benchmark
+    public boolean copyTree() {
+        fileSystem.copy(source, destination);
+        return fileSystem.removeFile("copy", empty);
+    }
+
+    /**
+     * Copying and removing an empty folder, the part that doesn't depend on
+     * the tree.
+     */
+    @Benchmark
+    public boolean copyEmptyFolder() {
+        fileSystem.touchFile("copy", true, empty);
+        return fileSystem.removeFile("copy", empty);
+    }
+}
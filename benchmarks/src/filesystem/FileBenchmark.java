@@ -0,0 +1,82 @@
+package filesystem;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reading and writing a file on the heap by file size, all of it at once and
+ * a part at a time like a program with a file descriptor does.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FileBenchmark {
+    /** Bytes read or written by each positional call. */
+    public static final int CHUNK_SIZE = 4096;
+
+    @Param({"512", "16384", "1048576"})
+    public int size;
+
+    private FileSystem fileSystem;
+    private int fileId;
+    private byte[] data;
+    private byte[] chunk;
+
+    @Setup
+    public void setUp() {
+        fileSystem = Volumes.onHeap(8192, FileSystem.DEFAULT_BLOCK_SIZE);
+        fileId = fileSystem.touchFile("file", false, new String[0]);
+        data = Volumes.content(size);
+        if (!fileSystem.writeFile(fileId, data)) {
+            throw new IllegalStateException("Couldn't write the file");
+        }
+        chunk = new byte[CHUNK_SIZE];
+    }
+
+    @Benchmark
+    public byte[] readFile() {
+        return fileSystem.readFile(fileId);
+    }
+
+    @Benchmark
+    public boolean writeFile() {
+        return fileSystem.writeFile(fileId, data);
+    }
+
+    @Benchmark
+    public long readFileInChunks() {
+        long result = 0;
+        int n;
+        while ((n = fileSystem.readFile(fileId, result, chunk, 0, chunk.length)) > 0) {
+            result += n;
+        }
+        return result;
+    }
+
+    @Benchmark
+    public long writeFileInChunks() {
+        long result = 0;
+        while (result < size) {
+            int len = (int) Math.min(chunk.length, size - result);
+            int n = fileSystem.writeFile(fileId, result, chunk, 0, len);
+            if (n == -1) {
+                throw new IllegalStateException("Write failed");
+            }
+            result += n;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,99 @@
+package filesystem;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Loading and saving folders by number of entries. FolderBlock is the old
+ * format, kept to read older images. Its binary form is compared with the
+ * Java serialization it replaced. HashedFolder is what folders are now.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FolderBenchmark {
+
+    @Param({"8", "64", "512"})
+    public int entries;
+
+    private FolderBlock folderBlock;
+    private byte[] binary;
+    private byte[] serialized;
+    private FileSystem fileSystem;
+    private int folderId;
+    private String present;
+
+    @Setup
+    public void setUp() throws IOException {
+        folderBlock = new FolderBlock();
+        for (int i = 0; i < entries; i++) {
+            folderBlock.addFile(1000 + i, "file" + i, Inode.TYPE_FILE);
+        }
+        binary = FolderBlock.save(folderBlock);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(folderBlock);
+        out.close();
+        serialized = bytes.toByteArray();
+
+        fileSystem = Volumes.onHeap(4096, FileSystem.DEFAULT_BLOCK_SIZE);
+        folderId = fileSystem.touchFile("folder", true, new String[0]);
+        for (int i = 0; i < entries; i++) {
+            if (fileSystem.touchFile("file" + i, false, folderId) == -1) {
+                throw new IllegalStateException("Couldn't create file" + i);
+            }
+        }
+        present = "file" + (entries / 2);
+    }
+
+    @Benchmark
+    public FolderBlock loadBinary() {
+        return FolderBlock.load(binary);
+    }
+
+    @Benchmark
+    public FolderBlock loadSerialized() {
+        return FolderBlock.load(serialized);
+    }
+
+    @Benchmark
+    public byte[] saveBinary() {
+        return FolderBlock.save(folderBlock);
+    }
+
+    @Benchmark
+    public ArrayList<HashedFolder.Entry> hashedGetEntries() {
+        return new HashedFolder(fileSystem, folderId).getEntries();
+    }
+
+    @Benchmark
+    public HashedFolder.Entry hashedLookup() {
+        return new HashedFolder(fileSystem, folderId).lookup(present);
+    }
+
+    /**
+     * Adding a name and removing it again, which writes the leaf twice.
+     */
+    @Benchmark
+    public boolean hashedAddRemove() {
+        HashedFolder folder = new HashedFolder(fileSystem, folderId);
+        return folder.addFile(1, "extra", Inode.TYPE_FILE) && folder.removeFile("extra");
+    }
+}
@@ -0,0 +1,87 @@
+package filesystem;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Saving the file system to an image file and reading it back through
+ * FileManager, like the save and read commands do. Reading mounts the image,
+ * which walks every file to find the free blocks.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ImageBenchmark {
+
+    @Param({"1024", "16384"})
+    public int numBlocks;
+
+    private FileSystem fileSystem;
+    private FileManager fileManager;
+    private File image;
+    private String path;
+    private int fileId;
+    private byte[] data;
+
+    @Setup
+    public void setUp() throws IOException {
+        fileSystem = Volumes.onHeap(numBlocks, FileSystem.DEFAULT_BLOCK_SIZE);
+        fileManager = new FileManager(fileSystem, false);
+        // Fill close to half of the disk with a tree of 2 KB files
+        data = Volumes.content(2048);
+        int treeId = fileSystem.touchFile("tree", true, new String[0]);
+        int depth = numBlocks > 4096 ? 4 : 2;
+        Volumes.createTree(fileSystem, treeId, depth, 4, data);
+        fileId = fileSystem.touchFile("changed", false, new String[0]);
+        image = File.createTempFile("image", ".img");
+        image.deleteOnExit();
+        path = image.getPath();
+        fileManager.save(path);
+    }
+
+    @TearDown
+    public void tearDown() {
+        image.delete();
+    }
+
+    @Benchmark
+    public String save() {
+        return fileManager.save(path);
+    }
+
+    /**
+     * Only the blocks of one file have changed since the last save.
+     */
+    @Benchmark
+    public String saveIncremental() {
+        fileSystem.writeFile(fileId, data);
+        return fileManager.save(path, true);
+    }
+
+    @Benchmark
+    public String read() {
+        return fileManager.read(path);
+    }
+
+    @Benchmark
+    public String roundTrip() {
+        fileManager.save(path);
+        return fileManager.read(path);
+    }
+}
@@ -0,0 +1,103 @@
+package filesystem;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Streaming a file into the file system, like the loadfile and import
+ * commands do, from 1 MB to 1 GB. The volume is an image file behind a
+ * buffer cache, since a 1 GB file doesn't fit a heap device on most
+ * machines. Bytes per second is ops/s times the size.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = {"-Xmx2g"})
+@State(Scope.Benchmark)
+public class ImportBenchmark {
+    /** Block size of the volume. */
+    public static final int BLOCK_SIZE = 4096;
+
+    @Param({"1048576", "16777216", "268435456", "1073741824"})
+    public int size;
+
+    private FileSystem fileSystem;
+    private File image;
+    private SourceChannel source;
+    private String[] root;
+
+    /**
+     * Gives the same chunk of bytes over and over until size bytes have been
+     * read, so the source costs nothing.
+     */
+    static class SourceChannel implements ReadableByteChannel {
+        private final byte[] chunk = Volumes.content(1 << 16);
+        private long remaining;
+
+        void reset(long size) {
+            remaining = size;
+        }
+
+        public int read(ByteBuffer dst) {
+            int result = -1;
+            if (remaining > 0) {
+                result = (int) Math.min(Math.min(dst.remaining(), chunk.length), remaining);
+                dst.put(chunk, 0, result);
+                remaining -= result;
+            }
+            return result;
+        }
+
+        public boolean isOpen() {
+            return true;
+        }
+
+        public void close() {
+        }
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        // Room for the data, its index blocks and the journal
+        int numBlocks = size / BLOCK_SIZE + size / BLOCK_SIZE / 512 + 4096;
+        image = File.createTempFile("import", ".img");
+        fileSystem = Volumes.onDisk(image, numBlocks, BLOCK_SIZE, BufferCache.DEFAULT_SIZE, 0);
+        root = new String[0];
+        if (fileSystem.touchFile("file", false, root) == -1) {
+            throw new IllegalStateException("Couldn't create the file");
+        }
+        source = new SourceChannel();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        fileSystem.close();
+        image.delete();
+    }
+
+    @Benchmark
+    public long importFile() throws IOException {
+        source.reset(size);
+        long result = fileSystem.importFile("file", root, source);
+        if (result != size) {
+            throw new IllegalStateException("Imported " + result + " bytes");
+        }
+        return result;
+    }
+}
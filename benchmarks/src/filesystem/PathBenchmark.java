@@ -0,0 +1,54 @@
+package filesystem;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Looking up a folder by its path, with the path a number of folders deep.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PathBenchmark {
+
+    @Param({"1", "4", "16", "64"})
+    public int depth;
+
+    private FileSystem fileSystem;
+    private String[] path;
+    private String[] missing;
+
+    @Setup
+    public void setUp() {
+        fileSystem = Volumes.onHeap(1024, FileSystem.DEFAULT_BLOCK_SIZE);
+        path = Volumes.createPath(fileSystem, depth);
+        missing = path.clone();
+        missing[depth - 1] = "missing";
+    }
+
+    @Benchmark
+    public int getFolderId() {
+        return fileSystem.getFolderId(path);
+    }
+
+    /**
+     * The last name doesn't exist, which is what creating a file looks up.
+     */
+    @Benchmark
+    public int getFolderIdMissing() {
+        return fileSystem.getFolderId(missing);
+    }
+}
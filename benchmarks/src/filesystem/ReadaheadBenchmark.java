@@ -0,0 +1,152 @@
+package filesystem;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reading a file from start to end with a cold buffer cache, with and
+ * without reading ahead. The image file is in the page cache of the OS, so
+ * the latency parameter makes each call to it wait like a disk would. The
+ * cache is emptied before every operation, each one reads FILE_SIZE bytes.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ReadaheadBenchmark {
+    /** Block size of the volume. */
+    public static final int BLOCK_SIZE = 4096;
+    /** Size of the file read. */
+    public static final int FILE_SIZE = 8 << 20;
+    /** Bytes asked for by each read. */
+    public static final int READ_SIZE = 4096;
+
+    /** Microseconds added to each call to the image file. */
+    @Param({"0", "100"})
+    public long latency;
+
+    private FileSystem fileSystem;
+    private BufferCache cache;
+    private File image;
+    private int fileId;
+    private int fd;
+    private byte[] buffer;
+    private NullChannel sink;
+
+    /**
+     * Throws away everything written to it.
+     */
+    static class NullChannel implements GatheringByteChannel {
+
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            long result = 0;
+            for (int i = offset; i < offset + length; i++) {
+                result += write(srcs[i]);
+            }
+            return result;
+        }
+
+        public long write(ByteBuffer[] srcs) {
+            return write(srcs, 0, srcs.length);
+        }
+
+        public int write(ByteBuffer src) {
+            int result = src.remaining();
+            src.position(src.limit());
+            return result;
+        }
+
+        public boolean isOpen() {
+            return true;
+        }
+
+        public void close() {
+        }
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        int numBlocks = FILE_SIZE / BLOCK_SIZE * 2 + 1024;
+        image = File.createTempFile("readahead", ".img");
+        // The cache holds half of the file
+        fileSystem = Volumes.onDisk(image, numBlocks, BLOCK_SIZE,
+                FILE_SIZE / BLOCK_SIZE / 2, latency);
+        cache = fileSystem.getCache();
+        fileId = fileSystem.touchFile("file", false, new String[0]);
+        if (!fileSystem.writeFile(fileId, Volumes.content(FILE_SIZE))) {
+            throw new IllegalStateException("Couldn't write the file");
+        }
+        fd = fileSystem.open(fileId);
+        buffer = new byte[READ_SIZE];
+        sink = new NullChannel();
+    }
+
+    /**
+     * Write back and throw away every cached block. Resizing to the same
+     * geometry only empties the cache.
+     */
+    @Setup(Level.Invocation)
+    public void dropCache() throws IOException {
+        cache.flush();
+        cache.resize(cache.getNumBlocks(), cache.getBlockSize());
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        fileSystem.close(fd);
+        fileSystem.close();
+        image.delete();
+    }
+
+    /**
+     * Reading through a file descriptor, which reads ahead.
+     */
+    @Benchmark
+    public long readSequential() {
+        long result = 0;
+        int n;
+        while ((n = fileSystem.pread(fd, result, buffer, 0, buffer.length)) > 0) {
+            result += n;
+        }
+        return result;
+    }
+
+    /**
+     * Reading by file id, which doesn't read ahead.
+     */
+    @Benchmark
+    public long readSequentialNoReadahead() {
+        long result = 0;
+        int n;
+        while ((n = fileSystem.readFile(fileId, result, buffer, 0, buffer.length)) > 0) {
+            result += n;
+        }
+        return result;
+    }
+
+    /**
+     * Streaming the file out like the export command, which reads ahead.
+     */
+    @Benchmark
+    public long export() throws IOException {
+        return fileSystem.exportFile("file", new String[0], sink);
+    }
+}
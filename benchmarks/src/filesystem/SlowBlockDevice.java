@@ -0,0 +1,88 @@
+package filesystem;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Block device that waits before every call to another device, like a disk
+ * that has to seek. An image file on a test machine is in the page cache of
+ * the OS, so without this reading ahead has nothing to hide.
+ */
+public class SlowBlockDevice implements BlockDevice {
+    private final BlockDevice device;
+    private final long latency;
+
+    /**
+     * @param device The device doing the work.
+     * @param latency Time in nanoseconds to wait before each call.
+     */
+    public SlowBlockDevice(BlockDevice device, long latency) {
+        this.device = device;
+        this.latency = latency;
+    }
+
+    private void seek() {
+        LockSupport.parkNanos(latency);
+    }
+
+    public int getNumBlocks() {
+        return device.getNumBlocks();
+    }
+
+    public int getBlockSize() {
+        return device.getBlockSize();
+    }
+
+    public void read(int blockId, int offset, byte[] dst, int off, int len) {
+        seek();
+        device.read(blockId, offset, dst, off, len);
+    }
+
+    public void readBlocks(int blockId, int count, byte[] dst, int off) {
+        seek();
+        device.readBlocks(blockId, count, dst, off);
+    }
+
+    public ByteBuffer view(int blockId, int offset, int len) {
+        seek();
+        return device.view(blockId, offset, len);
+    }
+
+    public void write(int blockId, int offset, byte[] src, int off, int len) {
+        seek();
+        device.write(blockId, offset, src, off, len);
+    }
+
+    public void writeBlocks(int blockId, int count, byte[] src, int off) {
+        seek();
+        device.writeBlocks(blockId, count, src, off);
+    }
+
+    public void clear(int blockId, int offset, int len) {
+        seek();
+        device.clear(blockId, offset, len);
+    }
+
+    public int getInt(int blockId, int offset) {
+        seek();
+        return device.getInt(blockId, offset);
+    }
+
+    public void putInt(int blockId, int offset, int value) {
+        seek();
+        device.putInt(blockId, offset, value);
+    }
+
+    public void resize(int numBlocks, int blockSize) throws IOException {
+        device.resize(numBlocks, blockSize);
+    }
+
+    public void flush() throws IOException {
+        device.flush();
+    }
+
+    public void close() throws IOException {
+        device.close();
+    }
+}
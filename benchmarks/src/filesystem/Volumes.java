@@ -0,0 +1,105 @@
+package filesystem;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * File systems and file content for the benchmarks.
+ */
+public class Volumes {
+
+    private Volumes() {
+    }
+
+    /**
+     * Creates a formatted file system with its blocks on the heap.
+     * @param numBlocks Number of blocks.
+     * @param blockSize Size of a block in bytes.
+     * @return The file system.
+     */
+    public static FileSystem onHeap(int numBlocks, int blockSize) {
+        FileSystem result = new FileSystem(new HeapBlockDevice(numBlocks, blockSize));
+        result.format();
+        return result;
+    }
+
+    /**
+     * Creates a formatted file system in a temporary image file, read and
+     * written through a buffer cache.
+     * @param image The image file, deleted when the JVM exits.
+     * @param numBlocks Number of blocks.
+     * @param blockSize Size of a block in bytes.
+     * @param cacheSize Number of buffers in the cache.
+     * @param latency Time in microseconds added to every call to the file,
+     * 0 for none.
+     * @return The file system.
+     * @throws IOException If the image can't be created.
+     */
+    public static FileSystem onDisk(File image, int numBlocks, int blockSize, int cacheSize,
+            long latency) throws IOException {
+        image.deleteOnExit();
+        BlockDevice device = new FileBlockDevice(image, numBlocks, blockSize);
+        if (latency > 0) {
+            device = new SlowBlockDevice(device, latency * 1000);
+        }
+        FileSystem result = new FileSystem(new BufferCache(device, cacheSize));
+        result.format();
+        return result;
+    }
+
+    /**
+     * @param size Number of bytes.
+     * @return Bytes that aren't all the same, so nothing can skip them.
+     */
+    public static byte[] content(int size) {
+        byte[] result = new byte[size];
+        for (int i = 0; i < size; i++) {
+            result[i] = (byte) ('a' + i % 26);
+        }
+        return result;
+    }
+
+    /**
+     * Create folders inside each other, "d0/d1/...".
+     * @param fileSystem Where to create them.
+     * @param depth Number of folders.
+     * @return The path of the innermost folder.
+     */
+    public static String[] createPath(FileSystem fileSystem, int depth) {
+        String[] result = new String[depth];
+        for (int i = 0; i < depth; i++) {
+            String[] parent = new String[i];
+            System.arraycopy(result, 0, parent, 0, i);
+            result[i] = "d" + i;
+            if (fileSystem.touchFile(result[i], true, parent) == -1) {
+                throw new IllegalStateException("Couldn't create folder " + result[i]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Create a tree of folders and files.
+     * @param fileSystem Where to create it.
+     * @param folderId The folder to fill.
+     * @param depth Levels of folders below folderId, 0 for only files.
+     * @param fanOut Number of files and number of subfolders in each folder.
+     * @param data What to write to each file.
+     */
+    public static void createTree(FileSystem fileSystem, int folderId, int depth, int fanOut,
+            byte[] data) {
+        for (int i = 0; i < fanOut; i++) {
+            int fileId = fileSystem.touchFile("f" + i, false, folderId);
+            if (fileId == -1 || !fileSystem.writeFile(fileId, data)) {
+                throw new IllegalStateException("Couldn't create file f" + i);
+            }
+            if (depth > 0) {
+                int childId = fileSystem.touchFile("d" + i, true, folderId);
+                if (childId == -1) {
+                    throw new IllegalStateException("Couldn't create folder d" + i);
+                }
+                createTree(fileSystem, childId, depth - 1, fanOut, data);
+            }
+        }
+    }
+}
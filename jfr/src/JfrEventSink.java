@@ -0,0 +1,205 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Reports the events of the file system to Java Flight Recorder. Loaded by
+ * Events.installJfr(), the file system itself doesn't depend on JFR. The
+ * events are disabled until a recording enables them, for example with
+ * jfr/filesystem.jfc. Until then begin() only asks JFR whether the type is
+ * enabled and nothing is allocated.
+ */
+public class JfrEventSink implements EventSink {
+
+    @Category("File System")
+    @Enabled(false)
+    @StackTrace(false)
+    abstract static class BlockEvent extends Event {
+        @Label("File Id")
+        int fileId;
+        @Label("Blocks")
+        int blocks;
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("filesystem.BlockRead")
+    @Label("Block Read")
+    @Description("Blocks of a file read from the device")
+    static class BlockRead extends BlockEvent {
+    }
+
+    @Name("filesystem.BlockWrite")
+    @Label("Block Write")
+    @Description("Blocks of a file written to the device")
+    static class BlockWrite extends BlockEvent {
+    }
+
+    @Name("filesystem.AllocatorSearch")
+    @Label("Allocator Search")
+    @Description("A free block searched for")
+    @Category("File System")
+    @Enabled(false)
+    @StackTrace(false)
+    static class AllocatorSearch extends Event {
+        @Label("Block Id")
+        int blockId;
+        @Label("Blocks Scanned")
+        int blocksScanned;
+        @Label("Free Blocks")
+        int freeBlocks;
+    }
+
+    @Category("File System")
+    @Enabled(false)
+    @StackTrace(false)
+    abstract static class FolderEvent extends Event {
+        @Label("Format")
+        String format;
+        @Label("Bytes")
+        @DataAmount
+        int bytes;
+        @Label("Entries")
+        int entries;
+    }
+
+    @Name("filesystem.FolderDecode")
+    @Label("Folder Decode")
+    @Description("A folder block read and decoded")
+    static class FolderDecode extends FolderEvent {
+    }
+
+    @Name("filesystem.FolderEncode")
+    @Label("Folder Encode")
+    @Description("A folder block encoded and written")
+    static class FolderEncode extends FolderEvent {
+    }
+
+    @Name("filesystem.PathResolution")
+    @Label("Path Resolution")
+    @Description("A path looked up a folder at a time")
+    @Category("File System")
+    @Enabled(false)
+    @StackTrace(false)
+    static class PathResolution extends Event {
+        @Label("Depth")
+        int depth;
+        @Label("Found")
+        boolean found;
+    }
+
+    @Category("File System")
+    @Enabled(false)
+    @StackTrace(false)
+    abstract static class ImageEvent extends Event {
+        @Label("Path")
+        String path;
+        @Label("Blocks")
+        int blocks;
+    }
+
+    @Name("filesystem.ImageSave")
+    @Label("Image Save")
+    @Description("The file system saved to an image file")
+    static class ImageSave extends ImageEvent {
+    }
+
+    @Name("filesystem.ImageLoad")
+    @Label("Image Load")
+    @Description("The file system loaded from an image file")
+    static class ImageLoad extends ImageEvent {
+    }
+
+    // Indexed by the type constants of EventSink
+    private final EventType[] types = {
+        EventType.getEventType(BlockRead.class),
+        EventType.getEventType(BlockWrite.class),
+        EventType.getEventType(AllocatorSearch.class),
+        EventType.getEventType(FolderDecode.class),
+        EventType.getEventType(FolderEncode.class),
+        EventType.getEventType(PathResolution.class),
+        EventType.getEventType(ImageSave.class),
+        EventType.getEventType(ImageLoad.class)
+    };
+
+    public Object begin(int type) {
+        Event result = null;
+        if (types[type].isEnabled()) {
+            switch (type) {
+                case BLOCK_READ:
+                    result = new BlockRead();
+                    break;
+                case BLOCK_WRITE:
+                    result = new BlockWrite();
+                    break;
+                case ALLOCATOR_SEARCH:
+                    result = new AllocatorSearch();
+                    break;
+                case FOLDER_DECODE:
+                    result = new FolderDecode();
+                    break;
+                case FOLDER_ENCODE:
+                    result = new FolderEncode();
+                    break;
+                case PATH_RESOLUTION:
+                    result = new PathResolution();
+                    break;
+                case IMAGE_SAVE:
+                    result = new ImageSave();
+                    break;
+                case IMAGE_LOAD:
+                    result = new ImageLoad();
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown event type " + type);
+            }
+            result.begin();
+        }
+        return result;
+    }
+
+    public void endBlocks(Object event, int fileId, int blocks, long bytes) {
+        BlockEvent blockEvent = (BlockEvent) event;
+        blockEvent.fileId = fileId;
+        blockEvent.blocks = blocks;
+        blockEvent.bytes = bytes;
+        blockEvent.commit();
+    }
+
+    public void endAllocatorSearch(Object event, int blockId, int blocksScanned, int freeBlocks) {
+        AllocatorSearch search = (AllocatorSearch) event;
+        search.blockId = blockId;
+        search.blocksScanned = blocksScanned;
+        search.freeBlocks = freeBlocks;
+        search.commit();
+    }
+
+    public void endFolder(Object event, String format, int bytes, int entries) {
+        FolderEvent folderEvent = (FolderEvent) event;
+        folderEvent.format = format;
+        folderEvent.bytes = bytes;
+        folderEvent.entries = entries;
+        folderEvent.commit();
+    }
+
+    public void endPathResolution(Object event, int depth, boolean found) {
+        PathResolution resolution = (PathResolution) event;
+        resolution.depth = depth;
+        resolution.found = found;
+        resolution.commit();
+    }
+
+    public void endImage(Object event, String path, int blocks) {
+        ImageEvent imageEvent = (ImageEvent) event;
+        imageEvent.path = path;
+        imageEvent.blocks = blocks;
+        imageEvent.commit();
+    }
+}